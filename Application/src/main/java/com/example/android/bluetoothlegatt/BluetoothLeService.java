@@ -20,7 +20,6 @@ import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
@@ -32,8 +31,13 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
-import com.example.android.bluetoothlegatt.pack.BluetoothRscp;
-import com.example.android.bluetoothlegatt.pack.BluetoothRscpCallback;
+import com.example.android.bluetoothlegatt.pack.CharacteristicDispatcher;
+import com.example.android.bluetoothlegatt.pack.GattConnection;
+import com.example.android.bluetoothlegatt.pack.GattConnectionManager;
+import com.example.android.bluetoothlegatt.pack.GattOperation;
+import com.example.android.bluetoothlegatt.pack.GattProfileHandler;
+import com.example.android.bluetoothlegatt.pack.RscMeasurement;
+import com.example.android.bluetoothlegatt.pack.RscMeasurementDecoder;
 
 import java.util.List;
 import java.util.UUID;
@@ -48,6 +52,7 @@ public class BluetoothLeService extends Service {
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
+    private GattConnection mConnection;
     private BluetoothGatt mBluetoothGatt;
     private int mConnectionState = STATE_DISCONNECTED;
 
@@ -78,24 +83,68 @@ public class BluetoothLeService extends Service {
 
     public final static UUID UUID_RSC_MEASUREMENT = UUID.fromString(SampleGattAttributes.RSC_MEASUREMENT_CHARAC);
 
+    private final RscMeasurement mRscMeasurement = new RscMeasurement();
+
+    // Characteristic values are routed by UUID, bound once per service discovery.
+    private final CharacteristicDispatcher mReadDispatcher = new CharacteristicDispatcher();
+    private final CharacteristicDispatcher mChangedDispatcher = new CharacteristicDispatcher();
+
+    {
+        mReadDispatcher.register(UUID_HEART_RATE_MEASUREMENT, new CharacteristicDispatcher.Decoder() {
+            @Override
+            public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+                heartRateBroadcastUpdate(ACTION_LOCATION_AVAILABLE, value);
+            }
+        });
+        mReadDispatcher.register(UUID_BODY_SENSOR_LOCATION, new CharacteristicDispatcher.Decoder() {
+            @Override
+            public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+                if (value == null || value.length < 1) {
+                    return;
+                }
+                final Intent intent = new Intent(ACTION_LOCATION_AVAILABLE);
+                intent.putExtra(EXTRA_DATA, "location = " + (value[0] & 0xFF));
+                sendBroadcast(intent);
+            }
+        });
+        mReadDispatcher.register(UUID_RSC_MEASUREMENT, new CharacteristicDispatcher.Decoder() {
+            @Override
+            public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+                if (value == null || value.length < RscMeasurementDecoder.MIN_FRAME_LENGTH) {
+                    return;
+                }
+                final Intent intent = new Intent(ACTION_LOCATION_AVAILABLE);
+                intent.putExtra(EXTRA_DATA, String.valueOf(value[1] & 0xFF | (value[2] & 0xFF) << 8));
+                sendBroadcast(intent);
+            }
+        });
+        mChangedDispatcher.register(UUID_RSC_MEASUREMENT, new CharacteristicDispatcher.Decoder() {
+            @Override
+            public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+                RSCBroadcastUpdate(ACTION_RSC_DATA_AVAILABLE, value);
+            }
+        });
+    }
+
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    private final GattProfileHandler mGattCallback = new GattProfileHandler() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            mBluetoothGatt = gatt;
             String intentAction;
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
                 broadcastUpdate(intentAction);
+                // Service discovery is started by the shared connection.
                 Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
+                mReadDispatcher.clear();
+                mChangedDispatcher.clear();
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
             }
@@ -105,6 +154,8 @@ public class BluetoothLeService extends Service {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                mReadDispatcher.bind(gatt.getServices());
+                mChangedDispatcher.bind(gatt.getServices());
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
@@ -114,76 +165,45 @@ public class BluetoothLeService extends Service {
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
+                                         byte[] value,
                                          int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_LOCATION_AVAILABLE, characteristic);
+                if (!mReadDispatcher.dispatch(characteristic, value)) {
+                    broadcastUpdate(ACTION_LOCATION_AVAILABLE, value);
+                }
                 Log.i("mylog", "beats data from here READ");
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
+                                            BluetoothGattCharacteristic characteristic,
+                                            byte[] value,
+                                            long timestampNanos) {
 //            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            RSCBroadcastUpdate(ACTION_RSC_DATA_AVAILABLE, characteristic);
+            mChangedDispatcher.dispatch(characteristic, value);
 
 //            Log.i("mylog", "beats data from here CHANGED");
 
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, byte[] value, int status) {
             Log.i("mylog", "onDescriptorWrite call");
         }
     };
 
-    private BluetoothRscpCallback callback = new BluetoothRscpCallback() {
-        @Override
-        public void onRSCMeasurementCharacChange(int speed, int cadence, int strideLength, int totalDistance, boolean isInstantaneousStrideLengthPresent,
-                                                 boolean isTotalDistancePresent, String walkingOrRunningState) {
-
-            String dataCollect = "Motion = " + walkingOrRunningState + "\ninstantaneousSpeed = " + (float) speed / 100 + "m/s\ninstantaneousCadence = " + cadence +
-                    "foot/min\ninstantaneousStrideLength = " + (float) strideLength / 100 + "meter\ntotalDistance = " + totalDistance + "meter";
-            Intent intent = new Intent("TEST");
-            intent.putExtra(EXTRA_DATA, dataCollect);
-            sendBroadcast(intent);
-        }
-    };
-
-    private void RSCBroadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
+    private void RSCBroadcastUpdate(final String action, final byte[] value) {
         final Intent intent = new Intent(action);
-        if (UUID_RSC_MEASUREMENT.equals(characteristic.getUuid())) {
-            int length = characteristic.getValue().length;
-            String motion;
-            Log.i("mylog", "characteristic value length = " + length);
-            int offset = 0;
-            int flag = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-            if ((flag & 0x04) != 0) {
-                motion = "Running";
-            } else {
-                motion = "Walking";
-            }
-            offset += 1;
-            final int instantaneousSpeed = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-            offset += 2;
-            final int instantaneousCadence = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-            offset += 1;
-            final int instantaneousStrideLength = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-            offset += 2;
-
-            final int totalDistance = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-//            final int totalDistance = 0;
-            if (instantaneousSpeed == 0) {
-                motion = "Standing still";
-            }
-            String dataCollect = "Motion = " + motion + "\ninstantaneousSpeed = " + (float) instantaneousSpeed / 100 + "m/s\ninstantaneousCadence = " + instantaneousCadence +
-                    "foot/min\ninstantaneousStrideLength = " + (float) instantaneousStrideLength / 100 + "meter\ntotalDistance = " + totalDistance + "meter";
-
-            intent.putExtra(EXTRA_DATA, dataCollect);
-            sendBroadcast(intent);
-
+        if (!RscMeasurementDecoder.decode(value, mRscMeasurement)) {
+            Log.w(TAG, "Malformed RSC Measurement, dropped.");
+            return;
         }
+        String dataCollect = "Motion = " + mRscMeasurement.getMotion() + "\ninstantaneousSpeed = " + (float) mRscMeasurement.getInstantaneousSpeed() / 100 + "m/s\ninstantaneousCadence = " + mRscMeasurement.getInstantaneousCadence() +
+                "foot/min\ninstantaneousStrideLength = " + (float) mRscMeasurement.getInstantaneousStrideLength() / 100 + "meter\ntotalDistance = " + mRscMeasurement.getTotalDistance() + "meter";
+
+        intent.putExtra(EXTRA_DATA, dataCollect);
+        sendBroadcast(intent);
     }
 
     private void broadcastUpdate(final String action) {
@@ -191,51 +211,49 @@ public class BluetoothLeService extends Service {
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
+    // This is special handling for the Heart Rate Measurement profile.  Data parsing is
+    // carried out as per profile specifications:
+    // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+    private void heartRateBroadcastUpdate(final String action, final byte[] value) {
         final Intent intent = new Intent(action);
+        if (value == null || value.length < 2) {
+            Log.w(TAG, "Malformed Heart Rate Measurement, dropped.");
+            return;
+        }
+        int offset = 0;
+        int flag = value[offset] & 0xFF;
+        Log.i("mylog", "flag  = " + flag);
+        final int heartRate;
+        if ((flag & 0x01) != 0) {
+            offset += 3;
+            Log.d(TAG, "Heart rate format UINT16.");
+            heartRate = value.length < offset ? -1 : value[1] & 0xFF | (value[2] & 0xFF) << 8;
+        } else {
+            offset += 2;
+            Log.d(TAG, "Heart rate format UINT8.");
+            heartRate = value[1] & 0xFF;
+        }
+        if (heartRate < 0) {
+            Log.w(TAG, "Malformed Heart Rate Measurement, dropped.");
+            return;
+        }
+        final int energyExpended = value.length < offset + 2 ? 0 : value[offset] & 0xFF | (value[offset + 1] & 0xFF) << 8;
+        Log.d(TAG, String.format("Received heart rate: %d", heartRate));
+        Log.d(TAG, String.format("Received Energy expended: %d", energyExpended));
+        intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
+        intent.putExtra(EXTRA_ENERGY_EXPANDED, String.valueOf(energyExpended));
+        sendBroadcast(intent);
+    }
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-//            int flag = characteristic.getProperties();
-            int offset = 0;
-            int flag = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-            Log.i("mylog", "flag  = " + flag);
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                offset += 3;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                offset += 2;
-                Log.d(TAG, "Heart rate format UINT8.");
-            }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            final int energyExpended = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            Log.d(TAG, String.format("Received Energy expended: %d", energyExpended));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-            intent.putExtra(EXTRA_ENERGY_EXPANDED, String.valueOf(energyExpended));
-        } else if (UUID_BODY_SENSOR_LOCATION.equals(characteristic.getUuid())) {
-            int location = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            intent.putExtra(EXTRA_DATA, "location = " + location);
-
-        } else if (UUID_RSC_MEASUREMENT.equals(characteristic.getUuid())) {
-            final int speed = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 1);
-            intent.putExtra(EXTRA_DATA, String.valueOf(speed));
+    private void broadcastUpdate(final String action, final byte[] data) {
+        final Intent intent = new Intent(action);
 
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
-            }
+        // For all other profiles, writes the data formatted in HEX.
+        if (data != null && data.length > 0) {
+            final StringBuilder stringBuilder = new StringBuilder(data.length);
+            for (byte byteChar : data)
+                stringBuilder.append(String.format("%02X ", byteChar));
+            intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
         }
         sendBroadcast(intent);
     }
@@ -272,7 +290,6 @@ public class BluetoothLeService extends Service {
         // BluetoothManager.
         if (mBluetoothManager == null) {
             mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-            BluetoothRscp buletoothRscp = new BluetoothRscp(getApplication(), callback);
 
             if (mBluetoothManager == null) {
                 Log.e(TAG, "Unable to initialize BluetoothManager.");
@@ -304,29 +321,26 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         if (device == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
+        if (mConnection != null && !address.equals(mBluetoothDeviceAddress)) {
+            close();
+        }
         // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
+        // parameter to false.  A previously connected device, or one already connected by
+        // another profile, reuses its existing connection.
+        mConnection = GattConnectionManager.getInstance(this).connect(device, false, mGattCallback);
+        if (mConnection == null) {
+            return false;
+        }
+        mBluetoothGatt = mConnection.getGatt();
         mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        if (mConnectionState != STATE_CONNECTED) {
+            mConnectionState = STATE_CONNECTING;
+        }
         return true;
     }
 
@@ -337,11 +351,14 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || mConnection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        // A link shared with other profiles stays up, this service only leaves it.
+        if (GattConnectionManager.getInstance(this).disconnect(mConnection, mGattCallback)) {
+            mConnection = null;
+        }
     }
 
     /**
@@ -349,26 +366,29 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        if (mConnection == null) {
             return;
         }
-        mBluetoothGatt.close();
+        GattConnectionManager.getInstance(this).release(mConnection, mGattCallback);
+        mConnection = null;
         mBluetoothGatt = null;
+        mConnectionState = STATE_DISCONNECTED;
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
+     * Request a read on a given {@code BluetoothGattCharacteristic}. The read is queued behind any
+     * request still outstanding on the connection. The read result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || mConnection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        mConnection.enqueue(GattOperation.readCharacteristic(characteristic));
     }
 
     /**
@@ -379,7 +399,7 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || mBluetoothGatt == null || mConnection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
@@ -389,8 +409,8 @@ public class BluetoothLeService extends Service {
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid()) || UUID_RSC_MEASUREMENT.equals(characteristic.getUuid())) {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
                     UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            mConnection.enqueue(GattOperation.writeDescriptor(descriptor,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
         }
     }
 
@@ -21,11 +21,14 @@ import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -36,26 +39,85 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.bluetoothlegatt.pack.GattConnection;
+import com.example.android.bluetoothlegatt.pack.GattConnectionManager;
+import com.example.android.bluetoothlegatt.pack.GattProfileHandler;
+
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    private ScanResultAggregator mScanResultAggregator;
+    private ScanService mScanService;
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
 
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 10 seconds.
-    private static final long SCAN_PERIOD = 10000;
+    // How long the early connection to the last used device is held once this screen is left,
+    // long enough for the profile of the next screen to attach to it.
+    private static final long PRECONNECT_HOLD_MILLIS = 10000;
+
+    private GattConnection mPreconnection;
+    private final GattProfileHandler mPreconnectHandler = new GattProfileHandler() {
+    };
+    private final Runnable mReleasePreconnection = new Runnable() {
+        @Override
+        public void run() {
+            releasePreconnection();
+        }
+    };
+    private boolean mResumed;
+    private final Runnable mShowKnownDevices = new Runnable() {
+        @Override
+        public void run() {
+            // The cache may finish loading after this screen was left.
+            if (mResumed) {
+                showKnownDevices();
+            }
+        }
+    };
+
+    // Code to manage Service lifecycle.
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mScanService = ((ScanService.LocalBinder) service).getService();
+            if (!mScanService.initialize()) {
+                finish();
+                return;
+            }
+            mScanResultAggregator.setScanScheduler(mScanService.getScanScheduler());
+            mScanService.addScanListener(mScanListener);
+            scanLeDevice(true);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mScanResultAggregator.setScanScheduler(null);
+            mScanService = null;
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
+        mScanResultAggregator = new ScanResultAggregator(mHandler, new ScanResultAggregator.Listener() {
+            @Override
+            public void onScanSnapshot(List<ScanResultAggregator.ScannedDevice> devices,
+                                       List<ScanResultAggregator.ScannedDevice> changed) {
+                if (mLeDeviceListAdapter != null) {
+                    mLeDeviceListAdapter.setDevices(devices);
+                }
+            }
+        });
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -76,6 +138,10 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+
+        // Discovery runs in ScanService, duty cycled, and survives this screen being paused.
+        Intent scanServiceIntent = new Intent(this, ScanService.class);
+        bindService(scanServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
     }
 
     @Override
@@ -98,6 +164,7 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
+                mScanResultAggregator.clear();
                 mLeDeviceListAdapter.clear();
                 scanLeDevice(true);
                 break;
@@ -128,7 +195,15 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
-        scanLeDevice(true);
+
+        // Show the devices of the last sessions as soon as they are read, live results refresh them.
+        mResumed = true;
+        KnownDeviceCache.getInstance(this).whenLoaded(mHandler, mShowKnownDevices);
+
+        if (mScanService != null) {
+            mScanService.addScanListener(mScanListener);
+            scanLeDevice(true);
+        }
     }
 
     @Override
@@ -144,68 +219,117 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        scanLeDevice(false);
+        if (mScanService != null) {
+            // Keep discovering in the background; the scheduler slows down once nothing changes.
+            mScanService.removeScanListener(mScanListener);
+            mScanService.setForeground(false);
+        }
+        mScanResultAggregator.clear();
+        mScanResultAggregator.cancel();
         mLeDeviceListAdapter.clear();
+        mHandler.postDelayed(mReleasePreconnection, PRECONNECT_HOLD_MILLIS);
+        mResumed = false;
+        mHandler.removeCallbacks(mShowKnownDevices);
+        KnownDeviceCache.getInstance(this).save();
+    }
+
+    private void showKnownDevices() {
+        KnownDeviceCache knownDevices = KnownDeviceCache.getInstance(this);
+        for (KnownDeviceCache.KnownDevice known : knownDevices.getDevices()) {
+            mScanResultAggregator.addKnownDevice(mBluetoothAdapter.getRemoteDevice(known.getAddress()),
+                    known.getName(), known.getRssi());
+        }
+        preconnect(knownDevices.getLastConnected());
+    }
+
+    /**
+     * Connect to the device used last while the scan is running, so picking it again finds the
+     * link already up.
+     */
+    private void preconnect(String address) {
+        mHandler.removeCallbacks(mReleasePreconnection);
+        if (address == null || mPreconnection != null || !mBluetoothAdapter.isEnabled()) {
+            return;
+        }
+        mPreconnection = GattConnectionManager.getInstance(this).connect(mBluetoothAdapter.getRemoteDevice(address),
+                false, mPreconnectHandler);
+    }
+
+    private void releasePreconnection() {
+        mHandler.removeCallbacks(mReleasePreconnection);
+        if (mPreconnection != null) {
+            GattConnectionManager.getInstance(this).release(mPreconnection, mPreconnectHandler);
+            mPreconnection = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        releasePreconnection();
+        if (mScanService != null) {
+            mScanService.removeScanListener(mScanListener);
+            unbindService(mServiceConnection);
+            mScanService = null;
+        }
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
+        KnownDeviceCache.getInstance(this).onConnected(device.getAddress(), device.getName());
         final Intent intent = new Intent(this, RSCPActivity.class);
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanService.stopScanning();
             mScanning = false;
         }
         startActivity(intent);
     }
 
     private void scanLeDevice(final boolean enable) {
+        if (mScanService == null) {
+            return;
+        }
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mScanService.startScanning();
+            // Somebody is looking at the list, scan at the fast duty cycle.
+            mScanService.setForeground(true);
         } else {
-            mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanService.stopScanning();
         }
+        mScanning = mScanService.isScanning();
         invalidateOptionsMenu();
     }
 
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private List<ScanResultAggregator.ScannedDevice> mLeDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<ScanResultAggregator.ScannedDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+        /**
+         * Show a snapshot of {@link ScanResultAggregator}; rows keep their ids across snapshots.
+         */
+        public void setDevices(List<ScanResultAggregator.ScannedDevice> devices) {
+            mLeDevices = devices;
+            notifyDataSetChanged();
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).getDevice();
         }
 
         public void clear() {
-            mLeDevices.clear();
+            mLeDevices = new ArrayList<ScanResultAggregator.ScannedDevice>();
+            notifyDataSetChanged();
         }
 
         @Override
@@ -220,7 +344,12 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public long getItemId(int i) {
-            return i;
+            return mLeDevices.get(i).getId();
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
         }
 
         @Override
@@ -237,7 +366,7 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            ScanResultAggregator.ScannedDevice device = mLeDevices.get(i);
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
@@ -250,18 +379,17 @@ public class DeviceScanActivity extends ListActivity {
     }
 
     // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
+    private final LeScanEngine.Listener mScanListener = new LeScanEngine.Listener() {
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+        public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            // Deduplicated off the UI thread, the list is updated from batched snapshots.
+            mScanResultAggregator.onScanResult(device, rssi);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            // ScanService tries again on its next scan window.
         }
     };
 
@@ -0,0 +1,389 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen or connected recently, kept across launches so the device list can be shown before
+ * the first scan result comes in.
+ * <p/>
+ * <p>The cache is a size-bounded LRU of at most {@link #MAX_DEVICES} devices, most recently seen
+ * first, with their last name, RSSI and advertised 16-bit services. Live scan results update it in
+ * place through {@link #onScanResult}; it is written back by {@link #save()}, atomically and only
+ * if something changed. The device the user connected to last is remembered separately, see
+ * {@link #getLastConnected()}.
+ * <p/>
+ * <p>The file is read and written on a thread of its own, never on the caller's: the cache starts
+ * out empty, see {@link #whenLoaded}, and results recorded before the file is read win over it.
+ * <p/>
+ * <p>File format, big endian: magic, version, last connected address or "", device count, then per
+ * device the address, the name or "", the RSSI, the wall clock time last seen and the services.
+ * Unreadable files are treated as an empty cache.
+ */
+final class KnownDeviceCache {
+
+    private static final String TAG = KnownDeviceCache.class.getSimpleName();
+
+    static final int MAX_DEVICES = 32;
+
+    private static final int MAGIC = 0x4B444331; // "KDC1"
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "known_devices.bin";
+    private static final int MAX_SERVICES = 16;
+    private static final int[] NO_SERVICES = new int[0];
+
+    private static KnownDeviceCache sInstance;
+    // Reads and writes the file, in the order they were asked for.
+    private static Handler sIoHandler;
+
+    /**
+     * Cached state of one device.
+     */
+    static final class KnownDevice {
+        private final String mAddress;
+        private String mName;
+        private int mRssi;
+        private long mLastSeenMillis;
+        private int[] mServices = NO_SERVICES;
+
+        KnownDevice(String address) {
+            mAddress = address;
+        }
+
+        KnownDevice(KnownDevice device) {
+            mAddress = device.mAddress;
+            mName = device.mName;
+            mRssi = device.mRssi;
+            mLastSeenMillis = device.mLastSeenMillis;
+            // Replaced, never modified, by the cache.
+            mServices = device.mServices;
+        }
+
+        String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return the last name seen, or null
+         */
+        String getName() {
+            return mName;
+        }
+
+        int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * {@link System#currentTimeMillis()} of the last sighting; survives reboots, unlike elapsed realtime.
+         */
+        long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        /**
+         * 16-bit UUIDs of the advertised services. Do not modify.
+         */
+        int[] getServices() {
+            return mServices;
+        }
+    }
+
+    private final File mFile;
+    // Access ordered: iteration runs from the least to the most recently seen device.
+    private final LinkedHashMap<String, KnownDevice> mDevices =
+            new LinkedHashMap<String, KnownDevice>(MAX_DEVICES * 4 / 3 + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, KnownDevice> eldest) {
+                    return size() > MAX_DEVICES;
+                }
+            };
+    private String mLastConnected;
+    private boolean mDirty;
+    private boolean mLoaded;
+    // Cleared before the file was read; its content is stale then.
+    private boolean mClearedBeforeLoad;
+    private final ArrayList<Runnable> mLoadedCallbacks = new ArrayList<Runnable>();
+    private final ArrayList<Handler> mLoadedHandlers = new ArrayList<Handler>();
+
+    private final Runnable mRead = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private KnownDeviceCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the cache, whose file may still be being read, see {@link #whenLoaded}
+     */
+    static synchronized KnownDeviceCache getInstance(Context context) {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sIoHandler = new Handler(thread.getLooper());
+            sInstance = new KnownDeviceCache(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+            sIoHandler.post(sInstance.mRead);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Run the callback on the handler once the file has been read, right away if it already was.
+     */
+    synchronized void whenLoaded(Handler handler, Runnable callback) {
+        if (mLoaded) {
+            handler.post(callback);
+            return;
+        }
+        mLoadedHandlers.add(handler);
+        mLoadedCallbacks.add(callback);
+    }
+
+    /**
+     * Record a live scan result. The service list is only copied out of the record when it differs
+     * from the cached one.
+     *
+     * @param parser parser holding the device's scan record, already parsed
+     */
+    synchronized void onScanResult(String address, String name, int rssi, ScanRecordParser parser) {
+        KnownDevice device = mDevices.get(address);
+        if (device == null) {
+            device = new KnownDevice(address);
+            mDevices.put(address, device);
+        }
+        if (name != null) {
+            device.mName = name;
+        }
+        device.mRssi = rssi;
+        device.mLastSeenMillis = System.currentTimeMillis();
+        if (parser != null && !sameServices(device.mServices, parser)) {
+            int count = Math.min(parser.getServiceUuid16Count(), MAX_SERVICES);
+            int[] services = new int[count];
+            for (int i = 0; i < count; i++) {
+                services[i] = parser.getServiceUuid16(i);
+            }
+            device.mServices = services;
+        }
+        mDirty = true;
+    }
+
+    private static boolean sameServices(int[] services, ScanRecordParser parser) {
+        int count = Math.min(parser.getServiceUuid16Count(), MAX_SERVICES);
+        if (count != services.length) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (services[i] != parser.getServiceUuid16(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remember the device the user connected to.
+     */
+    synchronized void onConnected(String address, String name) {
+        KnownDevice device = mDevices.get(address);
+        if (device == null) {
+            device = new KnownDevice(address);
+            mDevices.put(address, device);
+        }
+        if (name != null) {
+            device.mName = name;
+        }
+        mLastConnected = address;
+        mDirty = true;
+    }
+
+    /**
+     * @return address of the device connected to last, or null
+     */
+    synchronized String getLastConnected() {
+        return mLastConnected;
+    }
+
+    /**
+     * @return copies of the cached devices, most recently seen first; later results do not change them
+     */
+    synchronized List<KnownDevice> getDevices() {
+        ArrayList<KnownDevice> devices = new ArrayList<KnownDevice>(mDevices.size());
+        for (KnownDevice device : mDevices.values()) {
+            devices.add(new KnownDevice(device));
+        }
+        // Access order runs from the eldest entry.
+        Collections.reverse(devices);
+        return Collections.unmodifiableList(devices);
+    }
+
+    synchronized void clear() {
+        mDevices.clear();
+        mLastConnected = null;
+        mClearedBeforeLoad = !mLoaded;
+        mDirty = true;
+    }
+
+    /**
+     * Write the cache if it changed, in the background. The file is replaced atomically.
+     */
+    void save() {
+        sIoHandler.post(mWrite);
+    }
+
+    private void write() {
+        // Encoded under the lock, written without it.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            try {
+                encodeLocked(new DataOutputStream(bytes));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            mDirty = false;
+        }
+        File directory = mFile.getParentFile();
+        File temp = new File(directory, mFile.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("unable to create " + directory);
+            }
+            out = new FileOutputStream(temp);
+            bytes.writeTo(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile + ": " + e);
+            temp.delete();
+            synchronized (this) {
+                mDirty = true;
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void encodeLocked(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(mLastConnected != null ? mLastConnected : "");
+        out.writeShort(mDevices.size());
+        // Eldest first, so reading the file back restores the access order.
+        for (KnownDevice device : mDevices.values()) {
+            out.writeUTF(device.mAddress);
+            out.writeUTF(device.mName != null ? device.mName : "");
+            out.writeByte(device.mRssi);
+            out.writeLong(device.mLastSeenMillis);
+            out.writeByte(device.mServices.length);
+            for (int service : device.mServices) {
+                out.writeShort(service);
+            }
+        }
+        out.flush();
+    }
+
+    private void load() {
+        LinkedHashMap<String, KnownDevice> devices = new LinkedHashMap<String, KnownDevice>();
+        String lastConnected = null;
+        if (mFile.exists()) {
+            try {
+                lastConnected = read(devices);
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping unreadable cache " + mFile + ": " + e);
+                devices.clear();
+                lastConnected = null;
+            }
+        }
+        synchronized (this) {
+            // Devices seen meanwhile are more recent than the file, put them back on top.
+            if (!mClearedBeforeLoad) {
+                ArrayList<KnownDevice> live = new ArrayList<KnownDevice>(mDevices.values());
+                mDevices.clear();
+                mDevices.putAll(devices);
+                for (KnownDevice device : live) {
+                    mDevices.put(device.mAddress, device);
+                }
+                if (mLastConnected == null) {
+                    mLastConnected = lastConnected;
+                }
+            }
+            mLoaded = true;
+            for (int i = 0; i < mLoadedCallbacks.size(); i++) {
+                mLoadedHandlers.get(i).post(mLoadedCallbacks.get(i));
+            }
+            mLoadedHandlers.clear();
+            mLoadedCallbacks.clear();
+        }
+    }
+
+    /**
+     * @return the last connected address
+     */
+    private String read(Map<String, KnownDevice> devices) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            String lastConnected = in.readUTF();
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                KnownDevice device = new KnownDevice(in.readUTF());
+                String name = in.readUTF();
+                device.mName = name.length() > 0 ? name : null;
+                device.mRssi = in.readByte();
+                device.mLastSeenMillis = in.readLong();
+                int services = in.readUnsignedByte();
+                if (services > MAX_SERVICES) {
+                    throw new IOException("too many services: " + services);
+                }
+                device.mServices = new int[services];
+                for (int j = 0; j < services; j++) {
+                    device.mServices[j] = in.readUnsignedShort();
+                }
+                devices.put(device.mAddress, device);
+            }
+            return lastConnected.length() > 0 ? lastConnected : null;
+        } finally {
+            in.close();
+        }
+    }
+}
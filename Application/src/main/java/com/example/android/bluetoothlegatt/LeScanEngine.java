@@ -0,0 +1,215 @@
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Scans for advertisers of a set of services, on whichever API the platform offers.
+ * <p/>
+ * <p>From Lollipop on, {@link BluetoothLeScanner} is used with one {@link ScanFilter} per service
+ * and, if the controller supports batching, a report delay: matching and buffering then happen in
+ * the controller and the application processor only wakes up for a batch of matching results. On
+ * API 18 to 20 the deprecated {@link BluetoothAdapter#startLeScan} is used and every advertisement
+ * is matched in software with {@link ScanRecordParser}; its UUID variant is not, as it requires
+ * all the UUIDs instead of any of them.
+ */
+class LeScanEngine {
+
+    private static final String TAG = LeScanEngine.class.getSimpleName();
+
+    static final int MODE_LOW_POWER = 0;
+    static final int MODE_BALANCED = 1;
+    static final int MODE_LOW_LATENCY = 2;
+
+    /**
+     * Receives results on a binder thread.
+     */
+    interface Listener {
+        void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        /**
+         * The scan could not be started or was aborted by the stack.
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final int[] mServices;
+    private final Listener mListener;
+    private final ScanRecordParser mScanRecordParser = new ScanRecordParser();
+    private LollipopScanner mLollipopScanner;
+    private boolean mScanning;
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            synchronized (mScanRecordParser) {
+                if (!mScanRecordParser.parse(scanRecord) || !mScanRecordParser.hasAnyService(mServices)) {
+                    return;
+                }
+            }
+            mListener.onScanResult(device, rssi, scanRecord);
+        }
+    };
+
+    /**
+     * @param services 16-bit UUIDs of the services to scan for; a device advertising any of them is reported
+     */
+    LeScanEngine(BluetoothAdapter adapter, int[] services, Listener listener) {
+        mBluetoothAdapter = adapter;
+        mServices = services.clone();
+        mListener = listener;
+    }
+
+    /**
+     * @return true if this platform filters and batches through {@link BluetoothLeScanner}
+     */
+    static boolean isScannerAvailable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Start scanning, restarting a running scan with the new parameters.
+     *
+     * @param mode              one of the {@code MODE_*} constants, ignored before Lollipop
+     * @param reportDelayMillis longest time results may be held back in the controller, 0 to report
+     *                          each one at once; ignored if the controller cannot batch
+     * @return false if the scan could not be started
+     */
+    synchronized boolean start(int mode, long reportDelayMillis) {
+        if (mScanning) {
+            stop();
+        }
+        if (isScannerAvailable()) {
+            if (mLollipopScanner == null) {
+                mLollipopScanner = new LollipopScanner();
+            }
+            mScanning = mLollipopScanner.start(mode, reportDelayMillis);
+        } else {
+            mScanning = mBluetoothAdapter.startLeScan(mLeScanCallback);
+        }
+        if (!mScanning) {
+            Log.w(TAG, "Unable to start scanning.");
+        }
+        return mScanning;
+    }
+
+    synchronized void stop() {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        if (mLollipopScanner != null) {
+            mLollipopScanner.stop();
+        } else {
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        }
+    }
+
+    /**
+     * Deliver the results the controller holds back right away, e.g. when the UI comes up.
+     */
+    synchronized void flush() {
+        if (mScanning && mLollipopScanner != null) {
+            mLollipopScanner.flush();
+        }
+    }
+
+    synchronized boolean isScanning() {
+        return mScanning;
+    }
+
+    private synchronized void onScanFailed(int errorCode) {
+        Log.w(TAG, "Scan failed: " + errorCode);
+        mScanning = false;
+        mListener.onScanFailed(errorCode);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private final class LollipopScanner extends ScanCallback {
+
+        private final List<ScanFilter> mFilters = new ArrayList<ScanFilter>();
+        private BluetoothLeScanner mScanner;
+
+        LollipopScanner() {
+            for (int service : mServices) {
+                UUID uuid = new UUID(((long) service << 32) | 0x1000L, 0x800000805F9B34FBL);
+                mFilters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+            }
+        }
+
+        boolean start(int mode, long reportDelayMillis) {
+            // The scanner is null while Bluetooth is off.
+            mScanner = mBluetoothAdapter.getBluetoothLeScanner();
+            if (mScanner == null) {
+                return false;
+            }
+            ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(toScanMode(mode));
+            if (reportDelayMillis > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(reportDelayMillis);
+            }
+            mScanner.startScan(mFilters, settings.build(), this);
+            return true;
+        }
+
+        void stop() {
+            if (mScanner != null) {
+                mScanner.stopScan(this);
+                mScanner = null;
+            }
+        }
+
+        void flush() {
+            if (mScanner != null) {
+                mScanner.flushPendingScanResults(this);
+            }
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            deliver(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                deliver(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            LeScanEngine.this.onScanFailed(errorCode);
+        }
+
+        private void deliver(ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            mListener.onScanResult(result.getDevice(), result.getRssi(), record != null ? record.getBytes() : null);
+        }
+
+        private int toScanMode(int mode) {
+            switch (mode) {
+                case MODE_LOW_POWER:
+                    return ScanSettings.SCAN_MODE_LOW_POWER;
+                case MODE_LOW_LATENCY:
+                    return ScanSettings.SCAN_MODE_LOW_LATENCY;
+                default:
+                    return ScanSettings.SCAN_MODE_BALANCED;
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
@@ -24,6 +25,8 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.bluetoothlegatt.pack.RscMeasurement;
+import com.example.android.bluetoothlegatt.pack.RscMeasurementBus;
 import com.example.android.bluetoothlegatt.pack.RscpService;
 
 import java.util.ArrayList;
@@ -36,8 +39,9 @@ public class RSCPActivity extends Activity {
     private static final String FAILED = "Failed, pls retry";
     private static final String EXEC = "Execute...";
 
-    private static final int MEASUREMENT_DEFAULT_VALUE = -1;
     private RscpService mRscpService;
+    private RscMeasurementBus.Subscription mMeasurementSubscription;
+    private final Handler mHandler = new Handler();
     private boolean mConnected = false;
     private String mDeviceAddress;
 
@@ -47,6 +51,7 @@ public class RSCPActivity extends Activity {
     private TextView mCadence;
     private TextView mStrideLength;
     private TextView mTotalDistance;
+    private RscMeasurementViewBinder mMeasurementViewBinder;
     private TextView mSLMS;
     private TextView mTDMS;
     private TextView mWORS;
@@ -83,6 +88,7 @@ public class RSCPActivity extends Activity {
                 finish();
             }
 
+            mMeasurementSubscription = mRscpService.getMeasurementBus(mDeviceAddress).subscribe(mHandler, mMeasurementListener);
             mRscpService.connect(mDeviceAddress);
         }
 
@@ -92,10 +98,22 @@ public class RSCPActivity extends Activity {
         }
     };
 
+    private final RscMeasurementBus.Listener mMeasurementListener = new RscMeasurementBus.Listener() {
+        @Override
+        public void onMeasurement(long timestampNanos, RscMeasurement measurement) {
+            mMeasurementViewBinder.update(measurement);
+        }
+    };
+
     BroadcastReceiver mRSCPUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            final String address = intent.getStringExtra(RscpService.EXTRA_DEVICE_ADDRESS);
+            if (address != null && !address.equals(mDeviceAddress)) {
+                // Another device of the service's pool.
+                return;
+            }
             if (RscpService.ACTION_RSC_CONNECTED.equals(action)) {
                 mConnected = true;
                 mConnectState.setText("Connected.");
@@ -109,14 +127,6 @@ public class RSCPActivity extends Activity {
                 mConnectState.setText("Connecting.");
             } else if (RscpService.ACTION_RSC_DISCONNECTING.equals(action)) {
                 mConnectState.setText("Disconnecting.");
-            } else if (RscpService.ACTION_RSC_MEASUREMENT_DATA_AVAILABLE.equals(action)) {
-
-                showData(intent.getStringExtra(RscpService.RSC_WALKING_OR_RUNNING),
-                        intent.getIntExtra(RscpService.RSC_SPEED_DATA, MEASUREMENT_DEFAULT_VALUE),
-                        intent.getIntExtra(RscpService.RSC_CADENCE_DATA, MEASUREMENT_DEFAULT_VALUE),
-                        intent.getIntExtra(RscpService.RSC_STRIDE_LENGTH_DATA, MEASUREMENT_DEFAULT_VALUE),
-                        intent.getIntExtra(RscpService.RSC_TOTAL_DISTANCE_DATA, MEASUREMENT_DEFAULT_VALUE));
-
             } else if (RscpService.ACTION_RSC_FEATURE_DATA_AVAILABLE.equals(action)) {
                 mSLMS.setText(String.valueOf(intent.getBooleanExtra(RscpService.RSC_FEATURE_STRIDE_LENGTH_SUPPORTED, false)));
                 mTDMS.setText(String.valueOf(intent.getBooleanExtra(RscpService.RSC_FEATURE_TOTAL_DISTANCE_SUPPORTED, false)));
@@ -186,6 +196,7 @@ public class RSCPActivity extends Activity {
         mCadence = (TextView) findViewById(R.id.cadence);
         mStrideLength = (TextView) findViewById(R.id.stride_length);
         mTotalDistance = (TextView) findViewById(R.id.total_distance);
+        mMeasurementViewBinder = new RscMeasurementViewBinder(mMotion, mSpeed, mCadence, mStrideLength, mTotalDistance);
 
         mSLMS = (TextView) findViewById(R.id.stride_length_supported);
         mTDMS = (TextView) findViewById(R.id.total_distance_supported);
@@ -325,27 +336,33 @@ public class RSCPActivity extends Activity {
         registerReceiver(mRSCPUpdateReceiver, initializeIntentFilter());
         if (mRscpService != null) {
             mRscpService.connect(mDeviceAddress);
+            mRscpService.setForeground(true);
 //            mRscpService.setCharacteristicNotification(BluetoothRscp.RSC_MEASUREMENT_CHARAC, true);
         }
 
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mRscpService != null) {
+            mRscpService.setForeground(false);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mMeasurementSubscription != null) {
+            mRscpService.getMeasurementBus(mDeviceAddress).unsubscribe(mMeasurementSubscription);
+            mMeasurementSubscription = null;
+        }
+        mMeasurementViewBinder.cancel();
         mRscpService.close();
         unbindService(mServiceConnection);
         unregisterReceiver(mRSCPUpdateReceiver);
     }
 
-    private void showData(String motion, int speed, int cadence, int stride_length, int total_distance) {
-        mMotion.setText(motion);
-        mSpeed.setText(String.valueOf(speed));
-        mCadence.setText(String.valueOf(cadence));
-        mStrideLength.setText(String.valueOf(stride_length));
-        mTotalDistance.setText(String.valueOf(total_distance));
-    }
-
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -369,7 +386,6 @@ public class RSCPActivity extends Activity {
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(RscpService.ACTION_RSC_CONNECTED);
         intentFilter.addAction(RscpService.ACTION_RSC_DISCONNECTED);
-        intentFilter.addAction(RscpService.ACTION_RSC_MEASUREMENT_DATA_AVAILABLE);
         intentFilter.addAction(RscpService.ACTION_RSC_FEATURE_DATA_AVAILABLE);
         intentFilter.addAction(RscpService.ACTION_RSC_CURRENT_SENSOR_LOCATION_DATA_AVAILABLE);
         intentFilter.addAction(RscpService.ACTION_RSC_CUMULATIVE_VALUE_SET);
@@ -386,11 +402,7 @@ public class RSCPActivity extends Activity {
 
     public void clearUI() {
 
-        mMotion.setText("null");
-        mSpeed.setText("null");
-        mCadence.setText("null");
-        mStrideLength.setText("null");
-        mTotalDistance.setText("null");
+        mMeasurementViewBinder.clear();
         mSLMS.setText("null");
         mTDMS.setText("null");
         mWORS.setText("null");
@@ -0,0 +1,120 @@
+package com.example.android.bluetoothlegatt;
+
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import com.example.android.bluetoothlegatt.pack.RscMeasurement;
+
+/**
+ * Binds RSC measurements to their views at most once per frame.
+ * <p/>
+ * <p>{@link #update} only keeps the latest measurement and asks {@link Choreographer} for the next
+ * frame; measurements arriving before that frame replace each other. On the frame, a view is
+ * touched only if its value changed since it was last shown, so an unchanged value costs neither
+ * a String nor a layout pass. Must be used on the UI thread.
+ */
+class RscMeasurementViewBinder implements Choreographer.FrameCallback {
+
+    private static final String EMPTY = "null";
+    private static final int NONE = -1;
+
+    private final TextView mMotion;
+    private final TextView mSpeed;
+    private final TextView mCadence;
+    private final TextView mStrideLength;
+    private final TextView mTotalDistance;
+
+    private final RscMeasurement mLatest = new RscMeasurement();
+    private boolean mPending;
+    private boolean mFramePosted;
+
+    private String mShownMotion;
+    private int mShownSpeed = NONE;
+    private int mShownCadence = NONE;
+    private int mShownStrideLength = NONE;
+    private long mShownTotalDistance = NONE;
+
+    RscMeasurementViewBinder(TextView motion, TextView speed, TextView cadence, TextView strideLength,
+                             TextView totalDistance) {
+        mMotion = motion;
+        mSpeed = speed;
+        mCadence = cadence;
+        mStrideLength = strideLength;
+        mTotalDistance = totalDistance;
+    }
+
+    /**
+     * Show the measurement on the next frame, unless a newer one arrives first.
+     */
+    void update(RscMeasurement measurement) {
+        mLatest.set(measurement);
+        mPending = true;
+        if (!mFramePosted) {
+            mFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFramePosted = false;
+        if (!mPending) {
+            return;
+        }
+        mPending = false;
+
+        String motion = mLatest.getMotion();
+        if (!motion.equals(mShownMotion)) {
+            mShownMotion = motion;
+            mMotion.setText(motion);
+        }
+        int speed = mLatest.getInstantaneousSpeed();
+        if (speed != mShownSpeed) {
+            mShownSpeed = speed;
+            mSpeed.setText(String.valueOf(speed));
+        }
+        int cadence = mLatest.getInstantaneousCadence();
+        if (cadence != mShownCadence) {
+            mShownCadence = cadence;
+            mCadence.setText(String.valueOf(cadence));
+        }
+        int strideLength = mLatest.getInstantaneousStrideLength();
+        if (strideLength != mShownStrideLength) {
+            mShownStrideLength = strideLength;
+            mStrideLength.setText(String.valueOf(strideLength));
+        }
+        long totalDistance = mLatest.getTotalDistance();
+        if (totalDistance != mShownTotalDistance) {
+            mShownTotalDistance = totalDistance;
+            mTotalDistance.setText(String.valueOf(totalDistance));
+        }
+    }
+
+    /**
+     * Drop any pending measurement and blank the views.
+     */
+    void clear() {
+        cancel();
+        mShownMotion = null;
+        mShownSpeed = NONE;
+        mShownCadence = NONE;
+        mShownStrideLength = NONE;
+        mShownTotalDistance = NONE;
+        mMotion.setText(EMPTY);
+        mSpeed.setText(EMPTY);
+        mCadence.setText(EMPTY);
+        mStrideLength.setText(EMPTY);
+        mTotalDistance.setText(EMPTY);
+    }
+
+    /**
+     * Drop any pending measurement, e.g. when the views go away.
+     */
+    void cancel() {
+        mPending = false;
+        if (mFramePosted) {
+            mFramePosted = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.charset.Charset;
+
+/**
+ * Walks the AD structures of a raw advertisement in place.
+ * <p/>
+ * <p>{@link #parse} only records where each field sits inside the {@code scanRecord} array; nothing
+ * is copied and nothing is allocated, so an instance can be reused for every advertisement and a
+ * device can be rejected with {@link #hasAnyService} before any object is created for it. Only
+ * {@link #getLocalName()} allocates. Not thread safe.
+ * <p/>
+ * <p>Service UUIDs are compared as 16-bit short UUIDs; 32- and 128-bit UUIDs derived from the
+ * Bluetooth base UUID match their short form.
+ */
+class ScanRecordParser {
+
+    static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int AD_FLAGS = 0x01;
+    private static final int AD_UUID16_INCOMPLETE = 0x02;
+    private static final int AD_UUID16_COMPLETE = 0x03;
+    private static final int AD_UUID32_INCOMPLETE = 0x04;
+    private static final int AD_UUID32_COMPLETE = 0x05;
+    private static final int AD_UUID128_INCOMPLETE = 0x06;
+    private static final int AD_UUID128_COMPLETE = 0x07;
+    private static final int AD_NAME_SHORT = 0x08;
+    private static final int AD_NAME_COMPLETE = 0x09;
+    private static final int AD_TX_POWER = 0x0A;
+    private static final int AD_MANUFACTURER_DATA = 0xFF;
+
+    // Bluetooth base UUID 0000xxxx-0000-1000-8000-00805F9B34FB, least significant byte first.
+    private static final byte[] BASE_UUID_SUFFIX = {
+            (byte) 0xFB, 0x34, (byte) 0x9B, 0x5F, (byte) 0x80, 0x00, 0x00, (byte) 0x80, 0x00, 0x10, 0x00, 0x00
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // A record holds at most 31 (62 with a scan response) bytes, a few lists of each kind are plenty.
+    private static final int MAX_LISTS = 4;
+
+    private byte[] mRecord;
+    private int mFlags;
+    private int mTxPower;
+    private int mNameOffset;
+    private int mNameLength;
+    private boolean mNameComplete;
+    private int mManufacturerOffset;
+    private int mManufacturerLength;
+
+    // Offset and length of the data of each service UUID list, by UUID size.
+    private final int[] mUuid16Lists = new int[MAX_LISTS * 2];
+    private final int[] mUuid32Lists = new int[MAX_LISTS * 2];
+    private final int[] mUuid128Lists = new int[MAX_LISTS * 2];
+    private int mUuid16ListCount;
+    private int mUuid32ListCount;
+    private int mUuid128ListCount;
+
+    /**
+     * Index the AD structures of an advertisement. The array is referenced, not copied, until the
+     * next call.
+     *
+     * @return false if the record is malformed; fields found before the error remain available
+     */
+    boolean parse(byte[] record) {
+        mRecord = record;
+        mFlags = -1;
+        mTxPower = TX_POWER_UNKNOWN;
+        mNameOffset = -1;
+        mNameLength = 0;
+        mNameComplete = false;
+        mManufacturerOffset = -1;
+        mManufacturerLength = 0;
+        mUuid16ListCount = 0;
+        mUuid32ListCount = 0;
+        mUuid128ListCount = 0;
+        if (record == null) {
+            return false;
+        }
+        int offset = 0;
+        while (offset < record.length) {
+            int length = record[offset] & 0xFF;
+            if (length == 0) {
+                // Zero padding up to the end of the record.
+                break;
+            }
+            if (offset + 1 + length > record.length) {
+                return false;
+            }
+            int type = record[offset + 1] & 0xFF;
+            int data = offset + 2;
+            int dataLength = length - 1;
+            switch (type) {
+                case AD_FLAGS:
+                    if (dataLength >= 1) {
+                        mFlags = record[data] & 0xFF;
+                    }
+                    break;
+                case AD_UUID16_INCOMPLETE:
+                case AD_UUID16_COMPLETE:
+                    mUuid16ListCount = addList(mUuid16Lists, mUuid16ListCount, data, dataLength - dataLength % 2);
+                    break;
+                case AD_UUID32_INCOMPLETE:
+                case AD_UUID32_COMPLETE:
+                    mUuid32ListCount = addList(mUuid32Lists, mUuid32ListCount, data, dataLength - dataLength % 4);
+                    break;
+                case AD_UUID128_INCOMPLETE:
+                case AD_UUID128_COMPLETE:
+                    mUuid128ListCount = addList(mUuid128Lists, mUuid128ListCount, data, dataLength - dataLength % 16);
+                    break;
+                case AD_NAME_SHORT:
+                case AD_NAME_COMPLETE:
+                    // A complete name wins over a shortened one.
+                    if (mNameOffset < 0 || type == AD_NAME_COMPLETE) {
+                        mNameOffset = data;
+                        mNameLength = dataLength;
+                        mNameComplete = type == AD_NAME_COMPLETE;
+                    }
+                    break;
+                case AD_TX_POWER:
+                    if (dataLength >= 1) {
+                        mTxPower = record[data];
+                    }
+                    break;
+                case AD_MANUFACTURER_DATA:
+                    if (dataLength >= 2 && mManufacturerOffset < 0) {
+                        mManufacturerOffset = data;
+                        mManufacturerLength = dataLength;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset += 1 + length;
+        }
+        return true;
+    }
+
+    private static int addList(int[] lists, int count, int offset, int length) {
+        if (count == MAX_LISTS || length == 0) {
+            return count;
+        }
+        lists[count * 2] = offset;
+        lists[count * 2 + 1] = length;
+        return count + 1;
+    }
+
+    /**
+     * @return the record last parsed
+     */
+    byte[] getRecord() {
+        return mRecord;
+    }
+
+    /**
+     * @return the Flags AD value, -1 if absent
+     */
+    int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return the advertised TX power in dBm, {@link #TX_POWER_UNKNOWN} if absent
+     */
+    int getTxPowerLevel() {
+        return mTxPower;
+    }
+
+    int getServiceUuid16Count() {
+        int count = 0;
+        for (int i = 0; i < mUuid16ListCount; i++) {
+            count += mUuid16Lists[i * 2 + 1] / 2;
+        }
+        return count;
+    }
+
+    int getServiceUuid16(int index) {
+        for (int i = 0; i < mUuid16ListCount; i++) {
+            int entries = mUuid16Lists[i * 2 + 1] / 2;
+            if (index < entries) {
+                return uint16(mRecord, mUuid16Lists[i * 2] + index * 2);
+            }
+            index -= entries;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    int getServiceUuid128Count() {
+        int count = 0;
+        for (int i = 0; i < mUuid128ListCount; i++) {
+            count += mUuid128Lists[i * 2 + 1] / 16;
+        }
+        return count;
+    }
+
+    /**
+     * Most significant half of the 128-bit service UUID at an index, as in {@link java.util.UUID}.
+     */
+    long getServiceUuid128Msb(int index) {
+        return int64(mRecord, uuid128Offset(index) + 8);
+    }
+
+    long getServiceUuid128Lsb(int index) {
+        return int64(mRecord, uuid128Offset(index));
+    }
+
+    private int uuid128Offset(int index) {
+        for (int i = 0; i < mUuid128ListCount; i++) {
+            int entries = mUuid128Lists[i * 2 + 1] / 16;
+            if (index < entries) {
+                return mUuid128Lists[i * 2] + index * 16;
+            }
+            index -= entries;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * @return true if a service UUID list of the record contains the service
+     */
+    boolean hasService(int shortUuid) {
+        byte[] record = mRecord;
+        for (int i = 0; i < mUuid16ListCount; i++) {
+            int end = mUuid16Lists[i * 2] + mUuid16Lists[i * 2 + 1];
+            for (int offset = mUuid16Lists[i * 2]; offset < end; offset += 2) {
+                if (uint16(record, offset) == shortUuid) {
+                    return true;
+                }
+            }
+        }
+        for (int i = 0; i < mUuid32ListCount; i++) {
+            int end = mUuid32Lists[i * 2] + mUuid32Lists[i * 2 + 1];
+            for (int offset = mUuid32Lists[i * 2]; offset < end; offset += 4) {
+                if (uint16(record, offset) == shortUuid && uint16(record, offset + 2) == 0) {
+                    return true;
+                }
+            }
+        }
+        for (int i = 0; i < mUuid128ListCount; i++) {
+            int end = mUuid128Lists[i * 2] + mUuid128Lists[i * 2 + 1];
+            for (int offset = mUuid128Lists[i * 2]; offset < end; offset += 16) {
+                if (uint16(record, offset + 12) == shortUuid && uint16(record, offset + 14) == 0
+                        && isBaseUuid(record, offset)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the record advertises at least one of the services
+     */
+    boolean hasAnyService(int[] shortUuids) {
+        for (int shortUuid : shortUuids) {
+            if (hasService(shortUuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return offset of the local name bytes in the record, -1 if absent
+     */
+    int getLocalNameOffset() {
+        return mNameOffset;
+    }
+
+    int getLocalNameLength() {
+        return mNameLength;
+    }
+
+    boolean isLocalNameComplete() {
+        return mNameComplete;
+    }
+
+    /**
+     * @return the advertised local name, or null. Allocates.
+     */
+    String getLocalName() {
+        return mNameOffset < 0 ? null : new String(mRecord, mNameOffset, mNameLength, UTF_8);
+    }
+
+    /**
+     * @return the company identifier of the manufacturer specific data, -1 if absent
+     */
+    int getManufacturerId() {
+        return mManufacturerOffset < 0 ? -1 : uint16(mRecord, mManufacturerOffset);
+    }
+
+    /**
+     * @return offset of the manufacturer specific data after the company identifier, -1 if absent
+     */
+    int getManufacturerDataOffset() {
+        return mManufacturerOffset < 0 ? -1 : mManufacturerOffset + 2;
+    }
+
+    int getManufacturerDataLength() {
+        return mManufacturerOffset < 0 ? 0 : mManufacturerLength - 2;
+    }
+
+    private static boolean isBaseUuid(byte[] record, int offset) {
+        for (int i = 0; i < BASE_UUID_SUFFIX.length; i++) {
+            if (record[offset + i] != BASE_UUID_SUFFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int uint16(byte[] record, int offset) {
+        return (record[offset] & 0xFF) | (record[offset + 1] & 0xFF) << 8;
+    }
+
+    private static long int64(byte[] record, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (record[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,394 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects scan results off the UI thread and hands the UI a snapshot at a fixed cadence.
+ * <p/>
+ * <p>{@link #onScanResult} is called on the scan callback thread and only updates the entry of the
+ * device in a map keyed by address. While anything changed, a snapshot is published on the given
+ * handler every {@link #PUBLISH_INTERVAL_MILLIS}, no matter how many advertisements came in
+ * meanwhile. Snapshots are diffed: an entry that did not change since the last snapshot is handed
+ * out as the same {@link ScannedDevice} instance, and every device keeps the id it was given on
+ * first sight, so list rows stay put.
+ * <p/>
+ * <p>RSSI is smoothed per device with an exponential moving average, and devices are ranked
+ * closest first. The ranking is kept sorted incrementally: a device only moves, by binary
+ * insertion, once its smoothed RSSI drifted {@link #RANK_HYSTERESIS_DB} away from the value it was
+ * ranked by, so rows do not flicker between neighbours. Devices not heard from for
+ * {@link #EVICT_AFTER_INTERVALS} intervals of the scan duty cycle, and at least
+ * {@link #EVICT_AFTER_MILLIS}, are dropped; see {@link #setScanScheduler}. Expiry is tracked on a
+ * timer wheel, so an advertisement costs no timer work at all and a tick only looks at the devices
+ * due in its slot. Deadlines are worked out when the slot comes round, so a duty cycle slowing
+ * down extends them.
+ */
+class ScanResultAggregator {
+
+    // 4 Hz.
+    static final long PUBLISH_INTERVAL_MILLIS = 250;
+
+    static final long EVICT_AFTER_MILLIS = 10000;
+    static final int EVICT_AFTER_INTERVALS = 2;
+    static final int RANK_HYSTERESIS_DB = 3;
+
+    // Weight of a new sample in the moving average.
+    private static final float RSSI_ALPHA = 0.25f;
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 16;
+
+    /**
+     * Receives snapshots on the publishing handler.
+     */
+    interface Listener {
+        /**
+         * @param devices every known device, closest first
+         * @param changed the entries of {@code devices} that were added or updated since the last snapshot
+         */
+        void onScanSnapshot(List<ScannedDevice> devices, List<ScannedDevice> changed);
+    }
+
+    /**
+     * Immutable state of one device as of a snapshot.
+     */
+    static final class ScannedDevice {
+        private final long mId;
+        private final BluetoothDevice mDevice;
+        private final String mName;
+        private final int mRssi;
+        private final long mLastSeenMillis;
+
+        ScannedDevice(long id, BluetoothDevice device, String name, int rssi, long lastSeenMillis) {
+            mId = id;
+            mDevice = device;
+            mName = name;
+            mRssi = rssi;
+            mLastSeenMillis = lastSeenMillis;
+        }
+
+        /**
+         * Id given to the device on first sight, stable for the lifetime of the aggregator.
+         */
+        long getId() {
+            return mId;
+        }
+
+        BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        String getAddress() {
+            return mDevice.getAddress();
+        }
+
+        /**
+         * @return the advertised name, null if none was seen yet
+         */
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * Smoothed RSSI in dBm.
+         */
+        int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * {@link SystemClock#elapsedRealtime()} of the latest advertisement.
+         */
+        long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+    }
+
+    // Mutable per-device state, guarded by the aggregator.
+    private static final class Entry {
+        final long id;
+        final BluetoothDevice device;
+        String name;
+        float smoothedRssi;
+        int rssi;
+        int rankRssi;
+        long lastSeenMillis;
+        boolean dirty;
+        ScannedDevice published;
+        // Timer wheel: tick the entry expires at, and the next entry in the same slot.
+        long deadlineTick;
+        Entry nextInSlot;
+
+        Entry(long id, BluetoothDevice device) {
+            this.id = id;
+            this.device = device;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Ranking, strongest rankRssi first, ties by id.
+    private final ArrayList<Entry> mOrder = new ArrayList<Entry>();
+    private long mNextId;
+    private ScanScheduler mScanScheduler;
+    private boolean mDirty;
+    private boolean mPublishPosted;
+
+    private final Entry[] mWheel = new Entry[WHEEL_SLOTS];
+    private final long mEpochMillis = SystemClock.elapsedRealtime();
+    private long mLastTick;
+    private boolean mTickPosted;
+
+    private final Runnable mPublish = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanResultAggregator.this) {
+                mTickPosted = false;
+                expireLocked(tickOf(SystemClock.elapsedRealtime()));
+                if (!mTickPosted && !mEntries.isEmpty()) {
+                    mTickPosted = true;
+                    mHandler.postDelayed(mTick, TICK_MILLIS);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param handler  Handler of the thread snapshots are delivered on, usually the UI thread
+     * @param listener Receiver of the snapshots
+     */
+    ScanResultAggregator(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Record an advertisement. Cheap enough to be called for every one, on any thread.
+     */
+    void onScanResult(BluetoothDevice device, int rssi) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            String address = device.getAddress();
+            Entry entry = mEntries.get(address);
+            if (entry == null) {
+                entry = addLocked(device, rssi, now);
+            } else {
+                entry.smoothedRssi += RSSI_ALPHA * (rssi - entry.smoothedRssi);
+                int smoothed = Math.round(entry.smoothedRssi);
+                if (smoothed != entry.rssi) {
+                    entry.rssi = smoothed;
+                    entry.dirty = true;
+                }
+                if (Math.abs(smoothed - entry.rankRssi) >= RANK_HYSTERESIS_DB) {
+                    removeRanked(entry);
+                    entry.rankRssi = smoothed;
+                    insertRanked(entry);
+                }
+            }
+            String name = device.getName();
+            if (name != null && !name.equals(entry.name)) {
+                entry.name = name;
+                entry.dirty = true;
+            }
+            entry.lastSeenMillis = now;
+            if (entry.dirty) {
+                postPublishLocked(PUBLISH_INTERVAL_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Show a device remembered from an earlier session until live results confirm it. Like any
+     * other device, it is evicted if it is not heard from. Ignored if the device is already known.
+     */
+    synchronized void addKnownDevice(BluetoothDevice device, String name, int rssi) {
+        if (mEntries.get(device.getAddress()) != null) {
+            return;
+        }
+        Entry entry = addLocked(device, rssi, SystemClock.elapsedRealtime());
+        entry.name = name;
+        // Shown without waiting for the publishing interval.
+        postPublishLocked(0);
+    }
+
+    private Entry addLocked(BluetoothDevice device, int rssi, long now) {
+        Entry entry = new Entry(mNextId++, device);
+        entry.smoothedRssi = rssi;
+        entry.rssi = rssi;
+        entry.rankRssi = rssi;
+        entry.lastSeenMillis = now;
+        entry.dirty = true;
+        mEntries.put(device.getAddress(), entry);
+        insertRanked(entry);
+        entry.deadlineTick = tickOf(now + getEvictAfterMillisLocked());
+        scheduleLocked(entry);
+        return entry;
+    }
+
+    /**
+     * Pace eviction by the duty cycle of this scheduler, so devices are not dropped while the radio
+     * is off between slow windows; null falls back to {@link #EVICT_AFTER_MILLIS}.
+     */
+    synchronized void setScanScheduler(ScanScheduler scheduler) {
+        mScanScheduler = scheduler;
+    }
+
+    private long getEvictAfterMillisLocked() {
+        if (mScanScheduler == null) {
+            return EVICT_AFTER_MILLIS;
+        }
+        return Math.max(EVICT_AFTER_MILLIS, EVICT_AFTER_INTERVALS * mScanScheduler.getIntervalMillis());
+    }
+
+    /**
+     * Forget every device. Ids are not reused.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+        mOrder.clear();
+        Arrays.fill(mWheel, null);
+        postPublishLocked(0);
+    }
+
+    /**
+     * Stop publishing and evicting; results recorded afterwards restart both.
+     */
+    synchronized void cancel() {
+        mHandler.removeCallbacks(mPublish);
+        mHandler.removeCallbacks(mTick);
+        mPublishPosted = false;
+        mTickPosted = false;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    private void postPublishLocked(long delayMillis) {
+        mDirty = true;
+        if (!mPublishPosted) {
+            mPublishPosted = true;
+            mHandler.postDelayed(mPublish, delayMillis);
+        }
+    }
+
+    private static int compareRank(Entry a, Entry b) {
+        if (a.rankRssi != b.rankRssi) {
+            return a.rankRssi > b.rankRssi ? -1 : 1;
+        }
+        return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+    }
+
+    // Index of the entry in the ranking, or -(insertion point) - 1.
+    private int searchRanked(Entry entry) {
+        int low = 0;
+        int high = mOrder.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareRank(mOrder.get(mid), entry);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insertRanked(Entry entry) {
+        mOrder.add(-(searchRanked(entry) + 1), entry);
+    }
+
+    private void removeRanked(Entry entry) {
+        int index = searchRanked(entry);
+        if (index >= 0) {
+            mOrder.remove(index);
+        }
+    }
+
+    private long tickOf(long elapsedRealtimeMillis) {
+        return (elapsedRealtimeMillis - mEpochMillis) / TICK_MILLIS;
+    }
+
+    private void scheduleLocked(Entry entry) {
+        int slot = (int) (entry.deadlineTick % WHEEL_SLOTS);
+        entry.nextInSlot = mWheel[slot];
+        mWheel[slot] = entry;
+        if (!mTickPosted) {
+            mTickPosted = true;
+            mHandler.postDelayed(mTick, TICK_MILLIS);
+        }
+    }
+
+    private void expireLocked(long now) {
+        boolean evicted = false;
+        long evictAfterMillis = getEvictAfterMillisLocked();
+        // Catch up on ticks missed while the handler was busy, one revolution at most.
+        long from = Math.max(mLastTick + 1, now - WHEEL_SLOTS + 1);
+        for (long tick = from; tick <= now; tick++) {
+            int slot = (int) (tick % WHEEL_SLOTS);
+            Entry entry = mWheel[slot];
+            mWheel[slot] = null;
+            while (entry != null) {
+                Entry next = entry.nextInSlot;
+                entry.nextInSlot = null;
+                entry.deadlineTick = tickOf(entry.lastSeenMillis + evictAfterMillis);
+                if (entry.deadlineTick <= now) {
+                    mEntries.remove(entry.device.getAddress());
+                    removeRanked(entry);
+                    evicted = true;
+                } else {
+                    // Seen again or given longer since it was scheduled, move it to the slot of its new deadline.
+                    scheduleLocked(entry);
+                }
+                entry = next;
+            }
+        }
+        mLastTick = now;
+        if (evicted) {
+            postPublishLocked(0);
+        }
+    }
+
+    private void publish() {
+        List<ScannedDevice> devices;
+        List<ScannedDevice> changed;
+        synchronized (this) {
+            mPublishPosted = false;
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            devices = new ArrayList<ScannedDevice>(mOrder.size());
+            changed = new ArrayList<ScannedDevice>();
+            for (Entry entry : mOrder) {
+                if (entry.dirty || entry.published == null) {
+                    entry.published = new ScannedDevice(entry.id, entry.device, entry.name, entry.rssi,
+                            entry.lastSeenMillis);
+                    entry.dirty = false;
+                    changed.add(entry.published);
+                }
+                devices.add(entry.published);
+            }
+        }
+        mListener.onScanSnapshot(Collections.unmodifiableList(devices), Collections.unmodifiableList(changed));
+    }
+}
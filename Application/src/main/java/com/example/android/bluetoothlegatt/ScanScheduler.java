@@ -0,0 +1,302 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Runs a {@link LeScanEngine} in windows, at a duty cycle that follows how much is going on.
+ * <p/>
+ * <p>Scanning starts at the fast duty cycle. Once {@link #STABLE_WINDOWS} windows in a row brought
+ * neither a new device nor lost a known one, the scheduler drops to the slow duty cycle. It goes
+ * back to the fast one when a known device has not been seen for {@link #MISSED_WINDOWS} windows,
+ * or on {@link #boost()}, e.g. when the user comes back to the device list. A duty cycle whose
+ * window is not shorter than its interval scans continuously. A scan the stack aborted is started
+ * again when its window ends, in either case.
+ * <p/>
+ * <p>The time the radio spent scanning is accounted in {@link #getRadioOnMillis()}.
+ */
+final class ScanScheduler {
+
+    private static final String TAG = ScanScheduler.class.getSimpleName();
+
+    static final long FAST_WINDOW_MILLIS = 10000;
+    static final long FAST_INTERVAL_MILLIS = 10000;
+    static final long SLOW_WINDOW_MILLIS = 2000;
+    static final long SLOW_INTERVAL_MILLIS = 20000;
+
+    static final int STABLE_WINDOWS = 3;
+    static final int MISSED_WINDOWS = 2;
+
+    // Window of the last sighting of a device.
+    private static final class Sighting {
+        long window;
+    }
+
+    private final Handler mHandler;
+    private final LeScanEngine mEngine;
+
+    private long mFastWindowMillis = FAST_WINDOW_MILLIS;
+    private long mFastIntervalMillis = FAST_INTERVAL_MILLIS;
+    private long mSlowWindowMillis = SLOW_WINDOW_MILLIS;
+    private long mSlowIntervalMillis = SLOW_INTERVAL_MILLIS;
+    private long mReportDelayMillis;
+
+    private boolean mRunning;
+    private boolean mFast = true;
+    private boolean mInWindow;
+    private long mWindow;
+    private int mStableWindows;
+    private boolean mNewDevice;
+    private final HashMap<String, Sighting> mSightings = new HashMap<String, Sighting>();
+
+    private long mStartMillis;
+    private long mStopMillis;
+    private long mScanStartMillis = -1;
+    private long mRadioOnMillis;
+
+    private final Runnable mStartWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                startWindowLocked();
+            }
+        }
+    };
+
+    private final Runnable mEndWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                endWindowLocked();
+            }
+        }
+    };
+
+    private final Runnable mScanFailed = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                // The radio went off when the scan failed, not when the window ends.
+                if (mScanStartMillis >= 0 && !mEngine.isScanning()) {
+                    mRadioOnMillis += SystemClock.elapsedRealtime() - mScanStartMillis;
+                    mScanStartMillis = -1;
+                }
+            }
+        }
+    };
+
+    /**
+     * @param handler Handler the windows are timed on
+     * @param engine  Scanner to run; it must not be started or stopped by anybody else meanwhile
+     */
+    ScanScheduler(Handler handler, LeScanEngine engine) {
+        mHandler = handler;
+        mEngine = engine;
+    }
+
+    /**
+     * Duty cycle while devices come and go.
+     */
+    synchronized void setFastDutyCycle(long windowMillis, long intervalMillis) {
+        mFastWindowMillis = windowMillis;
+        mFastIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Duty cycle once the set of devices in range settled.
+     */
+    synchronized void setSlowDutyCycle(long windowMillis, long intervalMillis) {
+        mSlowWindowMillis = windowMillis;
+        mSlowIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Let the controller hold results back for up to this long, see {@link LeScanEngine#start}.
+     */
+    synchronized void setReportDelay(long reportDelayMillis) {
+        mReportDelayMillis = reportDelayMillis;
+    }
+
+    synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mFast = true;
+        mStableWindows = 0;
+        mStartMillis = SystemClock.elapsedRealtime();
+        mRadioOnMillis = 0;
+        startWindowLocked();
+    }
+
+    synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mStopMillis = SystemClock.elapsedRealtime();
+        mHandler.removeCallbacks(mStartWindow);
+        mHandler.removeCallbacks(mEndWindow);
+        stopEngineLocked();
+        mInWindow = false;
+        mSightings.clear();
+        Log.i(TAG, "Stopped: " + this);
+    }
+
+    synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    synchronized boolean isFast() {
+        return mFast;
+    }
+
+    /**
+     * @return interval of the current duty cycle, the longest a device in range goes unheard
+     */
+    synchronized long getIntervalMillis() {
+        return mFast ? mFastIntervalMillis : mSlowIntervalMillis;
+    }
+
+    /**
+     * Go back to the fast duty cycle and scan right away.
+     */
+    synchronized void boost() {
+        if (!mRunning) {
+            return;
+        }
+        mStableWindows = 0;
+        if (mFast && mInWindow) {
+            return;
+        }
+        mFast = true;
+        mHandler.removeCallbacks(mStartWindow);
+        mHandler.removeCallbacks(mEndWindow);
+        if (mInWindow) {
+            // Restart in low latency mode.
+            stopEngineLocked();
+            mInWindow = false;
+        }
+        startWindowLocked();
+    }
+
+    /**
+     * Report a device found by the engine; called on the scan callback thread.
+     */
+    synchronized void onDeviceSeen(String address) {
+        if (!mRunning) {
+            return;
+        }
+        Sighting sighting = mSightings.get(address);
+        if (sighting == null) {
+            sighting = new Sighting();
+            mSightings.put(address, sighting);
+            mNewDevice = true;
+        }
+        sighting.window = mWindow;
+    }
+
+    /**
+     * Report a scan aborted by the stack; called on the scan callback thread, with the engine locked.
+     * The scan is started again at the end of the window.
+     */
+    void onScanFailed() {
+        mHandler.post(mScanFailed);
+    }
+
+    private void startWindowLocked() {
+        if (!mRunning) {
+            return;
+        }
+        if (mEngine.start(mFast ? LeScanEngine.MODE_LOW_LATENCY : LeScanEngine.MODE_LOW_POWER, mReportDelayMillis)) {
+            mScanStartMillis = SystemClock.elapsedRealtime();
+        }
+        mInWindow = true;
+        mHandler.postDelayed(mEndWindow, mFast ? mFastWindowMillis : mSlowWindowMillis);
+    }
+
+    private void endWindowLocked() {
+        if (!mRunning) {
+            return;
+        }
+        boolean wasFast = mFast;
+        boolean missed = false;
+        for (Iterator<Sighting> it = mSightings.values().iterator(); it.hasNext(); ) {
+            if (mWindow - it.next().window >= MISSED_WINDOWS) {
+                it.remove();
+                missed = true;
+            }
+        }
+        if (missed) {
+            mFast = true;
+            mStableWindows = 0;
+        } else if (mNewDevice) {
+            mStableWindows = 0;
+        } else if (++mStableWindows >= STABLE_WINDOWS) {
+            mFast = false;
+        }
+        mNewDevice = false;
+        mWindow++;
+        if (mFast != wasFast) {
+            Log.i(TAG, (mFast ? "Fast" : "Slow") + " duty cycle, " + mSightings.size() + " devices in range.");
+        }
+
+        long window = mFast ? mFastWindowMillis : mSlowWindowMillis;
+        long interval = mFast ? mFastIntervalMillis : mSlowIntervalMillis;
+        if (window >= interval && mFast == wasFast) {
+            if (mEngine.isScanning()) {
+                // Continuous scanning, the window only paces the evaluation.
+                mHandler.postDelayed(mEndWindow, window);
+                return;
+            }
+            Log.w(TAG, "Scan stopped by the stack, restarting.");
+        }
+        stopEngineLocked();
+        mInWindow = false;
+        if (window >= interval) {
+            startWindowLocked();
+        } else {
+            mHandler.postDelayed(mStartWindow, interval - window);
+        }
+    }
+
+    private void stopEngineLocked() {
+        if (mReportDelayMillis > 0) {
+            mEngine.flush();
+        }
+        mEngine.stop();
+        if (mScanStartMillis >= 0) {
+            mRadioOnMillis += SystemClock.elapsedRealtime() - mScanStartMillis;
+            mScanStartMillis = -1;
+        }
+    }
+
+    /**
+     * @return time spent scanning since {@link #start()}
+     */
+    synchronized long getRadioOnMillis() {
+        long radioOn = mRadioOnMillis;
+        if (mScanStartMillis >= 0) {
+            radioOn += SystemClock.elapsedRealtime() - mScanStartMillis;
+        }
+        return radioOn;
+    }
+
+    /**
+     * @return share of the time since {@link #start()}, until {@link #stop()}, spent scanning, between 0 and 1
+     */
+    synchronized double getEffectiveDutyCycle() {
+        long elapsed = (mRunning ? SystemClock.elapsedRealtime() : mStopMillis) - mStartMillis;
+        return elapsed <= 0 ? 0 : Math.min(1.0, (double) getRadioOnMillis() / elapsed);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "radioOn=" + getRadioOnMillis() + " ms dutyCycle=" + Math.round(getEffectiveDutyCycle() * 100)
+                + "% " + (mFast ? "fast" : "slow");
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.bluetoothlegatt;
+
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.bluetoothlegatt.pack.BluetoothRscp;
+import com.example.android.bluetoothlegatt.pack.CharacteristicDispatcher;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Service discovering RSC and Heart Rate devices, so discovery outlives the device list screen.
+ * <p/>
+ * <p>Scanning is paced by a {@link ScanScheduler}: fast while devices come and go or while the
+ * list is on screen, slow once the devices in range settled. Results are handed to every
+ * registered {@link LeScanEngine.Listener} on the scan callback thread.
+ */
+public class ScanService extends Service {
+
+    private static final String TAG = ScanService.class.getSimpleName();
+
+    private static final int HEART_RATE_SERVICE = 0x180D;
+    private static final int[] SCAN_SERVICES = {
+            CharacteristicDispatcher.shortUuid(BluetoothRscp.RSC_SERVICE), HEART_RATE_SERVICE
+    };
+
+    private BluetoothAdapter mBluetoothAdapter;
+    private LeScanEngine mLeScanEngine;
+    private ScanScheduler mScanScheduler;
+    private KnownDeviceCache mKnownDeviceCache;
+    private final ScanRecordParser mScanRecordParser = new ScanRecordParser();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<LeScanEngine.Listener> mListeners =
+            new CopyOnWriteArrayList<LeScanEngine.Listener>();
+
+    private final LeScanEngine.Listener mEngineListener = new LeScanEngine.Listener() {
+        @Override
+        public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mScanScheduler.onDeviceSeen(device.getAddress());
+            synchronized (mScanRecordParser) {
+                mScanRecordParser.parse(scanRecord);
+                mKnownDeviceCache.onScanResult(device.getAddress(), device.getName(), rssi, mScanRecordParser);
+            }
+            for (LeScanEngine.Listener listener : mListeners) {
+                listener.onScanResult(device, rssi, scanRecord);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            // The scheduler retries on its next window.
+            mScanScheduler.onScanFailed();
+            for (LeScanEngine.Listener listener : mListeners) {
+                listener.onScanFailed(errorCode);
+            }
+        }
+    };
+
+    public class LocalBinder extends Binder {
+        ScanService getService() {
+            return ScanService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        stopScanning();
+        return super.onUnbind(intent);
+    }
+
+    /**
+     * Initializes a reference to the local Bluetooth adapter.
+     *
+     * @return Return true if the initialization is successful.
+     */
+    public boolean initialize() {
+        if (mBluetoothAdapter == null) {
+            BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+            if (bluetoothManager == null || bluetoothManager.getAdapter() == null) {
+                Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
+                return false;
+            }
+            mBluetoothAdapter = bluetoothManager.getAdapter();
+            mKnownDeviceCache = KnownDeviceCache.getInstance(this);
+            mLeScanEngine = new LeScanEngine(mBluetoothAdapter, SCAN_SERVICES, mEngineListener);
+            mScanScheduler = new ScanScheduler(mHandler, mLeScanEngine);
+            // The device list is not refreshed faster than this anyway.
+            mScanScheduler.setReportDelay(ScanResultAggregator.PUBLISH_INTERVAL_MILLIS);
+        }
+        return true;
+    }
+
+    public void addScanListener(LeScanEngine.Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeScanListener(LeScanEngine.Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Start discovering at the fast duty cycle, until {@link #stopScanning()}.
+     */
+    public void startScanning() {
+        if (mScanScheduler == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        mScanScheduler.start();
+    }
+
+    public void stopScanning() {
+        if (mScanScheduler != null) {
+            mScanScheduler.stop();
+            mKnownDeviceCache.save();
+        }
+    }
+
+    public boolean isScanning() {
+        return mScanScheduler != null && mScanScheduler.isRunning();
+    }
+
+    /**
+     * Whether the device list is on screen. Coming back to it switches to the fast duty cycle.
+     */
+    public void setForeground(boolean foreground) {
+        if (foreground && mScanScheduler != null) {
+            mScanScheduler.boost();
+        }
+    }
+
+    /**
+     * Duty cycles and radio-on time of the discovery.
+     */
+    public ScanScheduler getScanScheduler() {
+        return mScanScheduler;
+    }
+}
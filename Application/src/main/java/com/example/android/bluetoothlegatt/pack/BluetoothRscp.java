@@ -2,21 +2,29 @@ package com.example.android.bluetoothlegatt.pack;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class provide the public APIs to control the Bluetooth RSCP(Running Speed and Cadence Profile).
  * <p/>
- * <p>BluetoothRscp is a wrap object based on {@link android.bluetooth.BluetoothGatt}
+ * <p>BluetoothRscp is a wrap object based on {@link android.bluetooth.BluetoothGatt}, it attaches to the device's
+ * shared {@link GattConnection} so other profiles can use the same link.
  */
 public final class BluetoothRscp implements BluetoothProfile {
 
@@ -31,9 +39,19 @@ public final class BluetoothRscp implements BluetoothProfile {
     public static final UUID RSC_CONTROL_POINT_CHARAC = UUID.fromString("00002a55-0000-1000-8000-00805f9b34fb");
     public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
-    private static final int INSTANTANEOUS_STRIDE_LENGTH_PRESENT_BITMASK = 0x01;
-    private static final int TOTAL_DISTANCE_PRESENT_BITMASK = 0x01 << 1;
-    private static final int WALKING_OR_RUNNING_STATUS_BITMASK = 0x01 << 2;
+    public static final UUID MANUFACTURER_NAME_CHARAC = UUID.fromString("00002a29-0000-1000-8000-00805f9b34fb");
+    public static final UUID MODEL_NUMBER_CHARAC = UUID.fromString("00002a24-0000-1000-8000-00805f9b34fb");
+    public static final UUID SERIAL_NUMBER_CHARAC = UUID.fromString("00002a25-0000-1000-8000-00805f9b34fb");
+    public static final UUID HARDWARE_REVISION_CHARAC = UUID.fromString("00002a27-0000-1000-8000-00805f9b34fb");
+    public static final UUID FIRMWARE_REVISION_CHARAC = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
+    public static final UUID SOFTWARE_REVISION_CHARAC = UUID.fromString("00002a28-0000-1000-8000-00805f9b34fb");
+
+    private static final UUID[] DEVICE_INFORMATION_CHARACS = {MANUFACTURER_NAME_CHARAC, MODEL_NUMBER_CHARAC,
+            SERIAL_NUMBER_CHARAC, HARDWARE_REVISION_CHARAC, FIRMWARE_REVISION_CHARAC, SOFTWARE_REVISION_CHARAC};
+
+    private static final int SHORT_UUID_RSC_FEATURE = CharacteristicDispatcher.shortUuid(RSC_FEATURE_CHARAC);
+    private static final int SHORT_UUID_SENSOR_LOCATION = CharacteristicDispatcher.shortUuid(RSC_SENSOR_LOCATION_CHARAC);
+
     private static final int INSTANTANEOUS_STRIDE_LENGTH_MEASUREMENT_SUPPORTED_BITMASK = 0x0001;
     private static final int TOTAL_DISTANCE_MEASUREMENT_SUPPORTED_BITMASK = 0x0001 << 1;
     private static final int WALKING_OR_RUNNING_STATUS_SUPPORTED_BITMASK = 0x0001 << 2;
@@ -53,23 +71,93 @@ public final class BluetoothRscp implements BluetoothProfile {
 
     private static final int RESPONSE_OP_CODE_OFFSET = 0;
     private static final int RESPONSE_VALUE_OFFSET = 1;
+    private static final int RESPONSE_RESULT_OFFSET = 2;
+
+    private static final long DEFAULT_CONTROL_POINT_TIMEOUT_MILLIS = 10000;
 
     public static final int NOTIFICATION_ENABLED = 1;
     public static final int INDICATION_ENABLED = 2;
 
-    private static final String WALKING = "Walking";
-    private static final String RUNNING = "Running";
-    private static final String STANDING_STILL = "Standing still";
-
     private Context mContext;
-    private BluetoothDevice mBluetoothDevice;
-    private BluetoothGatt mBluetoothGatt;
+    private volatile BluetoothDevice mBluetoothDevice;
+    private GattConnection mConnection;
+    private volatile BluetoothGatt mBluetoothGatt;
     private BluetoothRscpCallback mBluetoothRscpCallback;
-    private int mConnectionState = STATE_DISCONNECTED;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
 
     private BluetoothGattService mRSCService;
 
-    private List<BluetoothDevice> mConnectedDevicesList;
+    private final RscMeasurement mMeasurement = new RscMeasurement();
+    private long mReceivedNanos;
+    private final LinkTuner mLinkTuner;
+    private volatile RscFrameSink mFrameSink;
+    private volatile long mPackedAddress = -1;
+
+    private final CharacteristicDispatcher mDispatcher = new CharacteristicDispatcher();
+
+    private final ArrayDeque<RscControlPointRequest> mControlPointRequests = new ArrayDeque<RscControlPointRequest>();
+    private final Handler mTimeoutHandler = new Handler(Looper.getMainLooper());
+    private volatile long mControlPointTimeoutMillis = DEFAULT_CONTROL_POINT_TIMEOUT_MILLIS;
+    private volatile boolean mIndicationEnabled;
+    private volatile GattServiceCache mServiceCache;
+    // Values are only cached once discovery has matched the cache to the attribute table.
+    private volatile boolean mServiceCacheValidated;
+
+    private final CharacteristicDispatcher.Decoder mMeasurementDecoder = new CharacteristicDispatcher.RangeDecoder() {
+        @Override
+        public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+            parseRSCMeasurementCharac(value);
+        }
+
+        @Override
+        public void decode(BluetoothGattCharacteristic characteristic, byte[] value, int offset, int length) {
+            // Recorded frames are decoded in place, the hot path of a replay.
+            parseRSCMeasurementCharac(value, offset, length);
+        }
+    };
+
+    private final CharacteristicDispatcher.Decoder mFeatureDecoder = new CharacteristicDispatcher.Decoder() {
+        @Override
+        public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+            if (value == null || value.length < 2) {
+                Log.w(TAG, "Malformed RSC Feature, dropped.");
+                return;
+            }
+            cacheValue(SHORT_UUID_RSC_FEATURE, value);
+            parseRSCFeatureCharac(value[0] & 0xFF | (value[1] & 0xFF) << 8);
+        }
+    };
+
+    private final CharacteristicDispatcher.Decoder mSensorLocationDecoder = new CharacteristicDispatcher.Decoder() {
+        @Override
+        public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+            if (value == null || value.length < 1 || (value[0] & 0xFF) >= sLocations.length) {
+                Log.w(TAG, "Malformed Sensor Location, dropped.");
+                return;
+            }
+            cacheValue(SHORT_UUID_SENSOR_LOCATION, value);
+            if (mBluetoothRscpCallback != null) {
+                mBluetoothRscpCallback.onSensorLocationGet(sLocations[value[0] & 0xFF]);
+            }
+        }
+    };
+
+    private final CharacteristicDispatcher.Decoder mDeviceInformationDecoder = new CharacteristicDispatcher.Decoder() {
+        @Override
+        public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+            // Never notified, so never recorded; replayed values come without a characteristic.
+            if (characteristic != null) {
+                cacheValue(CharacteristicDispatcher.shortUuid(characteristic.getUuid()), value);
+            }
+        }
+    };
+
+    private final CharacteristicDispatcher.Decoder mControlPointDecoder = new CharacteristicDispatcher.Decoder() {
+        @Override
+        public void decode(BluetoothGattCharacteristic characteristic, byte[] value) {
+            parseRSCControlPointResponse(value);
+        }
+    };
 
     private static final String[] sLocations = {"other", "Top of shoe", "In shoe", "Hip", "Front Wheel", "Left Crank",
             "Right Crank", "Left Pedal", "Right Pedal", "Front Hub", "Rear Dropout", "Chainstay",
@@ -82,6 +170,15 @@ public final class BluetoothRscp implements BluetoothProfile {
     public BluetoothRscp(Context context, BluetoothRscpCallback callback) {
         mContext = context;
         mBluetoothRscpCallback = callback;
+        mLinkTuner = new LinkTuner(context);
+
+        mDispatcher.register(RSC_MEASUREMENT_CHARAC, mMeasurementDecoder);
+        mDispatcher.register(RSC_FEATURE_CHARAC, mFeatureDecoder);
+        mDispatcher.register(RSC_SENSOR_LOCATION_CHARAC, mSensorLocationDecoder);
+        mDispatcher.register(RSC_CONTROL_POINT_CHARAC, mControlPointDecoder);
+        for (UUID uuid : DEVICE_INFORMATION_CHARACS) {
+            mDispatcher.register(uuid, mDeviceInformationDecoder);
+        }
     }
 
     /**
@@ -107,10 +204,11 @@ public final class BluetoothRscp implements BluetoothProfile {
         return readCharacteristic(mRSCService.getCharacteristic(RSC_FEATURE_CHARAC));
     }
 
-    private BluetoothGattCallback mGattCallBack = new BluetoothGattCallback() {
+    private final GattProfileHandler mGattCallBack = new GattProfileHandler() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
 
+            mBluetoothGatt = gatt;
             if (mBluetoothRscpCallback != null) {
 
                 mBluetoothRscpCallback.onConnectionStateChange(status, newState);
@@ -119,14 +217,17 @@ public final class BluetoothRscp implements BluetoothProfile {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
 
                 mConnectionState = STATE_CONNECTED;
+                mLinkTuner.onConnected(gatt);
                 Log.i(TAG, "Connected to GATT server.");
-                Log.i(TAG, "Attempting to start service discovery:" + mBluetoothGatt.discoverServices());
-
-                mConnectedDevicesList = gatt.getConnectedDevices();
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
 
                 mConnectionState = STATE_DISCONNECTED;
+                mDispatcher.clear();
+                mServiceCacheValidated = false;
+                mIndicationEnabled = false;
+                failControlPointRequests(RscControlPointRequest.RESULT_DISCONNECTED);
+                mLinkTuner.onDisconnected();
                 Log.i(TAG, "Disconnected from GATT server.");
 
             } else if (newState == BluetoothProfile.STATE_CONNECTING) {
@@ -144,185 +245,283 @@ public final class BluetoothRscp implements BluetoothProfile {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                mDispatcher.bind(gatt.getServices());
                 if (mBluetoothRscpCallback != null) {
-                    mRSCService = mBluetoothGatt.getService(RSC_SERVICE);
+                    mRSCService = gatt.getService(RSC_SERVICE);
                     mBluetoothRscpCallback.onServicesDiscovered(status);
                 }
+                mLinkTuner.onServicesDiscovered();
+                refreshServiceCache(gatt);
                 return;
             }
             disconnect();
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value,
+                                         int status) {
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                UUID uuid = characteristic.getUuid();
-                if (uuid.equals(RSC_SENSOR_LOCATION_CHARAC)) {
-                    int mRSCSensorLocation = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                    if (mBluetoothRscpCallback != null) {
-                        mBluetoothRscpCallback.onSensorLocationGet(sLocations[mRSCSensorLocation]);
-                    }
-
-                } else if (uuid.equals(RSC_FEATURE_CHARAC)) {
-                    int mRSCFeature = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-                    parseRSCFeatureCharac(mRSCFeature);
-                }
-
+                mDispatcher.dispatch(characteristic, value);
             }
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                UUID uuid = characteristic.getUuid();
-                if (uuid.equals(RSC_CONTROL_POINT_CHARAC)) {
-                   // to do?
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value,
+                                            long timestampNanos) {
+
+            mReceivedNanos = timestampNanos;
+            mLinkTuner.onNotification(timestampNanos);
+            RscFrameSink sink = mFrameSink;
+            if (sink != null) {
+                sink.onFrame(timestampNanos, mPackedAddress, CharacteristicDispatcher.shortUuid(characteristic.getUuid()),
+                        value, 0, value.length);
+            }
+            mDispatcher.dispatch(characteristic, value);
+        }
 
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, byte[] value, int status) {
+            UUID uuid = descriptor.getUuid();
+            BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+            int configuration = value != null && value.length >= 2 ? byteArrayToInt(value) : 0;
+            if (uuid.equals(CLIENT_CHARACTERISTIC_CONFIG)) {
+                if (characteristic.getUuid().equals(RSC_MEASUREMENT_CHARAC)) {
+                    mBluetoothRscpCallback.onNotificationSet(configuration);
+                } else if (characteristic.getUuid().equals(RSC_CONTROL_POINT_CHARAC)) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        mIndicationEnabled = configuration == INDICATION_ENABLED;
+                    }
+                    mBluetoothRscpCallback.onIndicationSet(configuration);
                 }
             }
         }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+    };
 
-            if (characteristic.getUuid().equals(RSC_MEASUREMENT_CHARAC)) {
+    /**
+     *
+     * Parsing value RSC Measurement Characteristic by Bluetooth SIG RSCP specification.
+     * @param value RSC Measurement Characteristic value
+     *
+     */
+    private void parseRSCMeasurementCharac(byte[] value) {
+        if (value == null) {
+            Log.w(TAG, "Malformed RSC Measurement, dropped.");
+            return;
+        }
+        parseRSCMeasurementCharac(value, 0, value.length);
+    }
 
-                parseRSCMeasurementCharac(characteristic);
+    private void parseRSCMeasurementCharac(byte[] value, int offset, int length) {
 
-            } else if (characteristic.getUuid().equals(RSC_CONTROL_POINT_CHARAC)) {
+        if (!RscMeasurementDecoder.decode(value, offset, length, mMeasurement)) {
+            Log.w(TAG, "Malformed RSC Measurement, dropped.");
+            return;
+        }
 
+        if (mBluetoothRscpCallback != null) {
+            mBluetoothRscpCallback.onRSCMeasurement(mReceivedNanos, mMeasurement);
+        }
 
-                int responseValue = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, RESPONSE_VALUE_OFFSET);
+    }
 
-                switch (responseValue) {
-                    case OP_CODE_SET_CUMULATIVE_VALUE:
-                        if (VDBG) Log.d(TAG, "onCumulativeValueSet()");
-                        mBluetoothRscpCallback.onCumulativeValueSet();
-                        break;
+    private void parseRSCFeatureCharac(int feature) {
 
-                    case OP_CODE_START_CALIBRATION:
-                        if (VDBG) Log.d(TAG, "onStartCalibration()");
-                        mBluetoothRscpCallback.onStartCalibration();
-                        break;
+        boolean instantaneousStrideLengthMeasurementSupported = ((feature & INSTANTANEOUS_STRIDE_LENGTH_MEASUREMENT_SUPPORTED_BITMASK) != 0);
+        boolean totalDistanceMeasurementSupported = ((feature & TOTAL_DISTANCE_MEASUREMENT_SUPPORTED_BITMASK) != 0);
+        boolean  walkingOrRunningStatusSupported = ((feature & WALKING_OR_RUNNING_STATUS_SUPPORTED_BITMASK) != 0);
+        boolean  calibrationProcedureSupported = ((feature & CALIBRATION_PROCEDURE_SUPPORTED) != 0);
+        boolean  multipleSensorLocationSupported = ((feature & MULTIPLE_SENSOR_LOCATIONS_SUPPORTED) != 0);
 
-                    case OP_CODE_UPDATE_SENSOR_LOCATION:
-                        if (VDBG) Log.d(TAG, "onUpdateSensorLocation()");
-                        mBluetoothRscpCallback.onUpdateSensorLocation();
-                        break;
+        if (mBluetoothRscpCallback != null) {
+            mBluetoothRscpCallback.onRSCFeatureGet(instantaneousStrideLengthMeasurementSupported,
+                    totalDistanceMeasurementSupported, walkingOrRunningStatusSupported,
+                    calibrationProcedureSupported, multipleSensorLocationSupported);
+        }
+    }
 
-                    case OP_CODE_GET_SUPPORTED_SENSOR_LOCATION:
-                        if (VDBG) Log.d(TAG, "onRequestSupportedSensorLocation()");
-                        byte[] responseParameter = characteristic.getValue();
-                        mBluetoothRscpCallback.onSupportedSensorLocationGet(responseParameter);
-                        break;
-                }
-                byte[] responseParameter = characteristic.getValue();
-                StringBuilder aa = new StringBuilder();
-                for (byte i : responseParameter) {
-                    aa.append("(").append(i).append(") ");
-                }
-                Log.d("mylog", "responseParameter = " + aa);
+    private void parseRSCControlPointResponse(byte[] responseParameter) {
 
-            }
+        if (responseParameter == null || responseParameter.length <= RESPONSE_RESULT_OFFSET
+                || (responseParameter[RESPONSE_OP_CODE_OFFSET] & 0xFF) != RSC_SENSOR_CONTROL_POINT_OP_CODE) {
+            Log.w(TAG, "Malformed RSC Control Point response, dropped.");
+            return;
         }
+        int responseValue = responseParameter[RESPONSE_VALUE_OFFSET] & 0xFF;
+        int resultCode = responseParameter[RESPONSE_RESULT_OFFSET] & 0xFF;
 
-        /**
-         *
-         * Parsing value RSC Measurement Characteristic by Bluetooth SIG RSCP specification.
-         * @param characteristic RSC Measurement Characteristic
-         *
-         */
-        private void parseRSCMeasurementCharac(BluetoothGattCharacteristic characteristic) {
-
-            int offset = 0;
-            int flags = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-            int instantaneousSpeed;
-            int instantaneousCadence;
-            int instantaneousStrideLength = 0;
-            int totalDistance = 0;
-            boolean isInstantaneousStrideLengthPresent;
-            boolean isTotalDistancePresent;
-            String motion;
-
-            isInstantaneousStrideLengthPresent = ((flags & INSTANTANEOUS_STRIDE_LENGTH_PRESENT_BITMASK) != 0);
-            isTotalDistancePresent = ((flags & TOTAL_DISTANCE_PRESENT_BITMASK) != 0);
-
-            if ((flags & WALKING_OR_RUNNING_STATUS_BITMASK) != 0) {
-                motion = RUNNING;
-            } else
-                motion = WALKING;
-
-            offset += 1;
-            instantaneousSpeed = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-            offset += 2;
-            instantaneousCadence = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-            offset += 1;
-
-            if (isInstantaneousStrideLengthPresent) {
-                instantaneousStrideLength = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-                offset += 2;
+        RscControlPointRequest request;
+        synchronized (mControlPointRequests) {
+            request = mControlPointRequests.peek();
+        }
+        if (request != null && request.getOpCode() == responseValue) {
+            if (responseValue == OP_CODE_UPDATE_SENSOR_LOCATION && resultCode == RscControlPointRequest.RESULT_SUCCESS) {
+                // The sensor now reports the requested location; cache and report it like a read.
+                mSensorLocationDecoder.decode(null, new byte[]{request.getValue()[1]});
             }
+            finishControlPointRequest(request, resultCode, Arrays.copyOfRange(responseParameter,
+                    RESPONSE_RESULT_OFFSET + 1, responseParameter.length));
+        } else {
+            Log.w(TAG, "Unsolicited RSC Control Point response for op code " + responseValue);
+        }
 
-            if (isTotalDistancePresent) {
-                totalDistance = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-            }
+        switch (responseValue) {
+            case OP_CODE_SET_CUMULATIVE_VALUE:
+                if (VDBG) Log.d(TAG, "onCumulativeValueSet()");
+                mBluetoothRscpCallback.onCumulativeValueSet();
+                break;
+
+            case OP_CODE_START_CALIBRATION:
+                if (VDBG) Log.d(TAG, "onStartCalibration()");
+                mBluetoothRscpCallback.onStartCalibration();
+                break;
+
+            case OP_CODE_UPDATE_SENSOR_LOCATION:
+                if (VDBG) Log.d(TAG, "onUpdateSensorLocation()");
+                mBluetoothRscpCallback.onUpdateSensorLocation();
+                break;
+
+            case OP_CODE_GET_SUPPORTED_SENSOR_LOCATION:
+                if (VDBG) Log.d(TAG, "onRequestSupportedSensorLocation()");
+                mBluetoothRscpCallback.onSupportedSensorLocationGet(responseParameter);
+                break;
+        }
+        StringBuilder aa = new StringBuilder();
+        for (byte i : responseParameter) {
+            aa.append("(").append(i).append(") ");
+        }
+        Log.d("mylog", "responseParameter = " + aa);
+    }
 
-            if (instantaneousSpeed == 0 && instantaneousCadence == 0) {
-                motion = STANDING_STILL;
-            }
+    /**
+     * Decode a batch of raw RSC Measurement values, e.g. from a recorded session, into columns.
+     * Unlike live notifications, no callback is invoked.
+     *
+     * @param frames     Raw RSC Measurement characteristic values
+     * @param timestamps Arrival time of each frame
+     * @param count      Number of frames to decode
+     * @param out        Destination columns, rows are appended
+     * @return number of frames decoded, malformed frames are skipped
+     */
+    public static int parseRSCMeasurementBatch(byte[][] frames, long[] timestamps, int count,
+                                               RscMeasurementColumns out) {
+        return RscMeasurementDecoder.decodeBatch(frames, timestamps, count, out);
+    }
 
-            if (mBluetoothRscpCallback != null) {
-                mBluetoothRscpCallback.onRSCMeasurementCharacChange(instantaneousSpeed, instantaneousCadence, instantaneousStrideLength,
-                        totalDistance, isInstantaneousStrideLengthPresent, isTotalDistancePresent, motion);
-            }
+    private boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
 
+        if (VDBG) Log.d(TAG, "Read characteristic: " + characteristic.getUuid());
+        if (mConnection == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
         }
+        return mConnection.enqueue(GattOperation.readCharacteristic(characteristic));
+    }
 
-        private void parseRSCFeatureCharac(int feature) {
-
-            boolean instantaneousStrideLengthMeasurementSupported = ((feature & INSTANTANEOUS_STRIDE_LENGTH_MEASUREMENT_SUPPORTED_BITMASK) != 0);
-            boolean totalDistanceMeasurementSupported = ((feature & TOTAL_DISTANCE_MEASUREMENT_SUPPORTED_BITMASK) != 0);
-            boolean  walkingOrRunningStatusSupported = ((feature & WALKING_OR_RUNNING_STATUS_SUPPORTED_BITMASK) != 0);
-            boolean  calibrationProcedureSupported = ((feature & CALIBRATION_PROCEDURE_SUPPORTED) != 0);
-            boolean  multipleSensorLocationSupported = ((feature & MULTIPLE_SENSOR_LOCATIONS_SUPPORTED) != 0);
+    /**
+     * Confirm the cached values against the discovered table, and read those that are missing.
+     * They are cached as their reads complete. Waits for the cache file to be read.
+     */
+    private void refreshServiceCache(final BluetoothGatt gatt) {
+        final GattServiceCache cache = mServiceCache;
+        if (cache == null) {
+            return;
+        }
+        cache.whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                refreshServiceCache(gatt, cache);
+            }
+        });
+    }
 
-            if (mBluetoothRscpCallback != null) {
-                mBluetoothRscpCallback.onRSCFeatureGet(instantaneousStrideLengthMeasurementSupported,
-                        totalDistanceMeasurementSupported, walkingOrRunningStatusSupported,
-                        calibrationProcedureSupported, multipleSensorLocationSupported);
+    private void refreshServiceCache(BluetoothGatt gatt, GattServiceCache cache) {
+        GattConnection connection = GattConnectionManager.getInstance(mContext).getConnection(gatt.getDevice().getAddress());
+        // The profile may have been closed while the file was read.
+        if (cache != mServiceCache || connection == null) {
+            return;
+        }
+        List<BluetoothGattService> services = gatt.getServices();
+        if (!cache.validate(GattServiceCache.fingerprint(services))) {
+            Log.i(TAG, "Attribute table changed, cached values dropped.");
+            cache.save();
+        }
+        mServiceCacheValidated = true;
+        ArrayList<BluetoothGattCharacteristic> missing = new ArrayList<BluetoothGattCharacteristic>();
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                int shortUuid = CharacteristicDispatcher.shortUuid(characteristic.getUuid());
+                if (isCachedValue(shortUuid) && cache.get(shortUuid) == null) {
+                    missing.add(characteristic);
+                }
             }
         }
-
-        @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
+        if (missing.isEmpty()) {
+            return;
         }
-
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            UUID uuid = descriptor.getUuid();
-            BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
-            int value = byteArrayToInt(descriptor.getValue());
-            if (uuid.equals(CLIENT_CHARACTERISTIC_CONFIG)) {
-                if (characteristic.getUuid().equals(RSC_MEASUREMENT_CHARAC)) {
-                    mBluetoothRscpCallback.onNotificationSet(value);
-                } else if (characteristic.getUuid().equals(RSC_CONTROL_POINT_CHARAC)) {
-                    mBluetoothRscpCallback.onIndicationSet(value);
+        // The reads run as one burst, the link settles once the last one is answered.
+        final AtomicInteger remaining = new AtomicInteger(missing.size());
+        GattOperation.Listener listener = new GattOperation.Listener() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int status) {
+                if (remaining.decrementAndGet() == 0) {
+                    mLinkTuner.endBurst();
                 }
             }
+        };
+        mLinkTuner.beginBurst();
+        for (BluetoothGattCharacteristic characteristic : missing) {
+            if (!connection.enqueue(GattOperation.readCharacteristic(characteristic)
+                    .setPriority(GattOperation.PRIORITY_LOW).setListener(listener))) {
+                listener.onOperationComplete(null, GattOperation.STATUS_NOT_ISSUED);
+            }
         }
+    }
 
-    };
+    private static boolean isCachedValue(int shortUuid) {
+        if (shortUuid == SHORT_UUID_RSC_FEATURE || shortUuid == SHORT_UUID_SENSOR_LOCATION) {
+            return true;
+        }
+        for (UUID uuid : DEVICE_INFORMATION_CHARACS) {
+            if (shortUuid == CharacteristicDispatcher.shortUuid(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-    private boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    private void cacheValue(int shortUuid, byte[] value) {
+        GattServiceCache cache = mServiceCache;
+        if (cache != null && mServiceCacheValidated) {
+            cache.put(shortUuid, value);
+            cache.save();
+        }
+    }
 
-        if (VDBG) Log.d(TAG, "Read characteristic: " + characteristic.getUuid());
-        if (mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return false;
+    /**
+     * Hand the values cached for this device to the callback as soon as they are read, before
+     * discovery has confirmed them.
+     */
+    private void replayServiceCache(GattServiceCache cache) {
+        byte[] feature = cache.get(SHORT_UUID_RSC_FEATURE);
+        if (feature != null) {
+            mFeatureDecoder.decode(null, feature);
+        }
+        byte[] location = cache.get(SHORT_UUID_SENSOR_LOCATION);
+        if (location != null) {
+            mSensorLocationDecoder.decode(null, location);
         }
-        return mBluetoothGatt.readCharacteristic(characteristic);
+    }
+
+    /**
+     * @param characteristic One of the Device Information characteristics, e.g. {@link #MODEL_NUMBER_CHARAC}
+     * @return the cached string, or null if the sensor has not reported it yet
+     */
+    public String getDeviceInformation(UUID characteristic) {
+        GattServiceCache cache = mServiceCache;
+        byte[] value = cache == null ? null : cache.get(CharacteristicDispatcher.shortUuid(characteristic));
+        return value == null ? null : new String(value, Charset.forName("UTF-8"));
     }
 
     /**
@@ -338,13 +537,29 @@ public final class BluetoothRscp implements BluetoothProfile {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
-        if (mBluetoothDevice != null && device.equals(mBluetoothDevice) && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            return mBluetoothGatt.connect();
+        if (mConnection != null && !device.equals(mBluetoothDevice)) {
+            close();
         }
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothGatt = device.connectGatt(mContext, autoConnect, mGattCallBack);
         mBluetoothDevice = device;
+        mPackedAddress = RscFrameFormat.packAddress(device.getAddress());
+        mConnection = GattConnectionManager.getInstance(mContext).connect(device, autoConnect, mGattCallBack);
+        if (mConnection == null) {
+            mBluetoothDevice = null;
+            return false;
+        }
+        mBluetoothGatt = mConnection.getGatt();
+        if (mServiceCache == null) {
+            final GattServiceCache cache = GattServiceCache.load(mContext, device.getAddress());
+            mServiceCache = cache;
+            cache.whenLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    if (cache == mServiceCache) {
+                        replayServiceCache(cache);
+                    }
+                }
+            });
+        }
         return true;
 
     }
@@ -354,10 +569,13 @@ public final class BluetoothRscp implements BluetoothProfile {
      */
     public void disconnect() {
         if (VDBG) Log.d(TAG, "disconnect()");
-        if (mBluetoothGatt == null) {
+        if (mConnection == null) {
             return;
         }
-        mBluetoothGatt.disconnect();
+        // A link shared with other profiles stays up, this profile only leaves it.
+        if (GattConnectionManager.getInstance(mContext).disconnect(mConnection, mGattCallBack)) {
+            mConnection = null;
+        }
     }
 
     /**
@@ -369,7 +587,7 @@ public final class BluetoothRscp implements BluetoothProfile {
 
         if (VDBG) Log.d(TAG, "setCharacteristicNotification() " + enabled);
         BluetoothGattCharacteristic charac;
-        if (mBluetoothGatt == null) {
+        if (mBluetoothGatt == null || mConnection == null) {
             return;
         }
 
@@ -385,12 +603,13 @@ public final class BluetoothRscp implements BluetoothProfile {
 
         BluetoothGattDescriptor descriptor = charac.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
 
+        byte[] value;
         if (enabled) {
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
         } else
-            descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
 
-        mBluetoothGatt.writeDescriptor(descriptor);
+        mConnection.enqueue(GattOperation.writeDescriptor(descriptor, value));
 
     }
 
@@ -403,7 +622,7 @@ public final class BluetoothRscp implements BluetoothProfile {
 
         if (VDBG) Log.d(TAG, "setCharacteristicIndication() " + enabled);
         BluetoothGattCharacteristic charac;
-        if (mBluetoothGatt == null) {
+        if (mBluetoothGatt == null || mConnection == null) {
             return false;
         }
 
@@ -418,44 +637,92 @@ public final class BluetoothRscp implements BluetoothProfile {
 
         BluetoothGattDescriptor descriptor = charac.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
 
+        byte[] value;
         if (enabled) {
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
         } else
-            descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
 
-        return mBluetoothGatt.writeDescriptor(descriptor);
+        return mConnection.enqueue(GattOperation.writeDescriptor(descriptor, value));
 
     }
 
+    /**
+     * Release the link and drop the profile's state. A profile that was never connected, e.g. one
+     * fed by {@link #injectFrame}, is torn down the same way.
+     *
+     * @return false if the profile had no link to release
+     */
     public boolean close() {
-        if (mBluetoothGatt == null) {
-            return false;
+        boolean attached = mConnection != null;
+        if (attached) {
+            GattConnectionManager.getInstance(mContext).release(mConnection, mGattCallBack);
         }
-        mBluetoothGatt.close();
+        mConnection = null;
         mBluetoothGatt = null;
         mBluetoothDevice = null;
-        return true;
+        mRSCService = null;
+        mConnectionState = STATE_DISCONNECTED;
+        mDispatcher.clear();
+        mServiceCache = null;
+        mServiceCacheValidated = false;
+        mIndicationEnabled = false;
+        failControlPointRequests(RscControlPointRequest.RESULT_DISCONNECTED);
+        return attached;
+    }
+
+    /**
+     * Tell the profile whether its data is on screen; in the background the link settles to low power.
+     */
+    public void setForeground(boolean foreground) {
+        mLinkTuner.setForeground(foreground);
+    }
+
+    public LinkTuner getLinkTuner() {
+        return mLinkTuner;
+    }
+
+    /**
+     * Hand every notification and indication, as received and before it is decoded, to the sink as
+     * well; null stops it. The sink is called on the connection's processing thread.
+     */
+    public void setFrameSink(RscFrameSink sink) {
+        mFrameSink = sink;
+    }
+
+    /**
+     * Decode a recorded frame as if it had just been notified, e.g. one replayed by
+     * {@link RscSessionReplayer}: it goes to the same decoders as live values and reaches the callback
+     * stamped with the recorded time. Characteristics this profile does not decode are ignored.
+     * <p/>
+     * <p>Meant for a profile that is not connected; frames are decoded on the calling thread, which
+     * must be the same for every frame.
+     */
+    public void injectFrame(long timestampNanos, int shortUuid, byte[] value, int offset, int length) {
+        mReceivedNanos = timestampNanos;
+        mDispatcher.dispatchRecorded(shortUuid, value, offset, length);
     }
 
+    /**
+     * Set the sensor's total distance.
+     *
+     * @return false if the procedure already failed, see {@link #requestSetCumulativeValue(int)}
+     */
     public boolean setCumulativeValue(int cumulativeValue) {
+        RscControlPointRequest request = requestSetCumulativeValue(cumulativeValue);
+        return !request.isDone() || request.isSuccessful();
+    }
 
+    /**
+     * Start the Set Cumulative Value procedure.
+     *
+     * @param cumulativeValue New total distance, unit is 1/10 m
+     * @return handle completed by the sensor's response
+     */
+    public RscControlPointRequest requestSetCumulativeValue(int cumulativeValue) {
         if (VDBG) Log.d(TAG, "setCumulativeValue()");
-        if (mBluetoothGatt == null) {
-            return false;
-        }
         byte[] bytes = intToByteArray(cumulativeValue);
-
-        if (mRSCService == null) {
-            return false;
-        }
-        BluetoothGattCharacteristic rscControlPointCharac = mRSCService.getCharacteristic(RSC_CONTROL_POINT_CHARAC);
-        if (rscControlPointCharac == null) {
-            return false;
-        }
-        byte[] value = {OP_CODE_SET_CUMULATIVE_VALUE, bytes[0], bytes[1], bytes[2], bytes[3]};
-        rscControlPointCharac.setValue(value);
-        return mBluetoothGatt.writeCharacteristic(rscControlPointCharac);
-
+        return submitControlPointRequest(new byte[]{OP_CODE_SET_CUMULATIVE_VALUE, bytes[0], bytes[1], bytes[2], bytes[3]});
     }
 
     private static byte[] intToByteArray(int int32) {
@@ -472,62 +739,197 @@ public final class BluetoothRscp implements BluetoothProfile {
     }
 
     public void startCalibration() {
-        if (VDBG) Log.d(TAG, "startCalibration()");
+        requestStartCalibration();
+    }
 
-        if (mRSCService == null) {
-            return;
-        }
-        BluetoothGattCharacteristic rscControlPointCharac = mRSCService.getCharacteristic(RSC_CONTROL_POINT_CHARAC);
-        if (rscControlPointCharac == null) {
-            return;
-        }
-        byte[] value = {OP_CODE_START_CALIBRATION};
-        rscControlPointCharac.setValue(value);
-        mBluetoothGatt.writeCharacteristic(rscControlPointCharac);
+    /**
+     * Start the Start Sensor Calibration procedure.
+     *
+     * @return handle completed by the sensor's response
+     */
+    public RscControlPointRequest requestStartCalibration() {
+        if (VDBG) Log.d(TAG, "startCalibration()");
+        return submitControlPointRequest(new byte[]{OP_CODE_START_CALIBRATION});
     }
 
+    /**
+     * @return false if the procedure already failed, see {@link #requestUpdateSensorLocation(int)}
+     */
     public boolean updateSensorLocation(int location) {
+        RscControlPointRequest request = requestUpdateSensorLocation(location);
+        return !request.isDone() || request.isSuccessful();
+    }
+
+    /**
+     * Start the Update Sensor Location procedure.
+     *
+     * @param location Index of the new location, see Sensor Location characteristic
+     * @return handle completed by the sensor's response
+     */
+    public RscControlPointRequest requestUpdateSensorLocation(int location) {
         if (VDBG) Log.d(TAG, "updateSensorLocation()");
-        BluetoothGattService rscService = mBluetoothGatt.getService(RSC_SERVICE);
-        if (rscService == null) {
-            return false;
-        }
-        BluetoothGattCharacteristic rscControlPointCharac = rscService.getCharacteristic(RSC_CONTROL_POINT_CHARAC);
-        if (rscControlPointCharac == null) {
-            return false;
-        }
-        byte[] value = {OP_CODE_UPDATE_SENSOR_LOCATION, (byte) location};
-        rscControlPointCharac.setValue(value);
-        return mBluetoothGatt.writeCharacteristic(rscControlPointCharac);
+        return submitControlPointRequest(new byte[]{OP_CODE_UPDATE_SENSOR_LOCATION, (byte) location});
     }
 
     public void getSupportedSensorLocation() {
+        requestSupportedSensorLocations();
+    }
 
+    /**
+     * Start the Request Supported Sensor Locations procedure. On success the response parameter
+     * lists the supported location indexes.
+     *
+     * @return handle completed by the sensor's response
+     */
+    public RscControlPointRequest requestSupportedSensorLocations() {
         if (VDBG) Log.d(TAG, "getSupportedSensorLocation()");
-        if (mRSCService == null) {
-            return;
+        return submitControlPointRequest(new byte[]{OP_CODE_GET_SUPPORTED_SENSOR_LOCATION});
+    }
+
+    /**
+     * Set how long a control point procedure may wait for its response indication.
+     */
+    public void setControlPointTimeout(long timeoutMillis) {
+        mControlPointTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Only one procedure may be in progress at a time, so requests are started one after the other,
+     * each once the previous one has been answered or has failed.
+     */
+    private RscControlPointRequest submitControlPointRequest(byte[] value) {
+        RscControlPointRequest request = new RscControlPointRequest(value[0] & 0xFF, value);
+        if (mConnection == null || mRSCService == null
+                || mRSCService.getCharacteristic(RSC_CONTROL_POINT_CHARAC) == null) {
+            request.complete(RscControlPointRequest.RESULT_DISCONNECTED, null);
+            return request;
+        }
+        if (!mIndicationEnabled) {
+            request.complete(RscControlPointRequest.RESULT_INDICATION_DISABLED, null);
+            return request;
+        }
+        boolean idle;
+        synchronized (mControlPointRequests) {
+            mControlPointRequests.add(request);
+            idle = mControlPointRequests.size() == 1;
         }
-        BluetoothGattCharacteristic rscControlPointCharac = mRSCService.getCharacteristic(RSC_CONTROL_POINT_CHARAC);
-        if (rscControlPointCharac == null) {
+        if (idle) {
+            startControlPointRequest(request);
+        }
+        return request;
+    }
+
+    private void startControlPointRequest(final RscControlPointRequest request) {
+        mLinkTuner.beginBurst();
+        request.mDeadlineMillis = SystemClock.uptimeMillis() + mControlPointTimeoutMillis;
+        mTimeoutHandler.postAtTime(mControlPointTimeout, request.mDeadlineMillis);
+
+        GattConnection connection = mConnection;
+        BluetoothGattService rscService = mRSCService;
+        BluetoothGattCharacteristic rscControlPointCharac = rscService == null ? null
+                : rscService.getCharacteristic(RSC_CONTROL_POINT_CHARAC);
+        if (connection == null || rscControlPointCharac == null) {
+            finishControlPointRequest(request, RscControlPointRequest.RESULT_DISCONNECTED, null);
             return;
         }
-        byte[] value = {OP_CODE_GET_SUPPORTED_SENSOR_LOCATION};
-        rscControlPointCharac.setValue(value);
-        mBluetoothGatt.writeCharacteristic(rscControlPointCharac);
+        // Control point procedures are user initiated, so they overtake queued bulk requests.
+        GattOperation operation = GattOperation.writeCharacteristic(rscControlPointCharac, request.getValue())
+                .setPriority(GattOperation.PRIORITY_HIGH)
+                .setListener(new GattOperation.Listener() {
+                    @Override
+                    public void onOperationComplete(GattOperation operation, int status) {
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            Log.w(TAG, "RSC Control Point write failed: " + status);
+                            finishControlPointRequest(request, RscControlPointRequest.RESULT_WRITE_FAILED, null);
+                        }
+                    }
+                });
+        if (!connection.enqueue(operation)) {
+            finishControlPointRequest(request, RscControlPointRequest.RESULT_DISCONNECTED, null);
+        }
+    }
+
+    private void finishControlPointRequest(RscControlPointRequest request, int resultCode, byte[] responseParameter) {
+        RscControlPointRequest next;
+        synchronized (mControlPointRequests) {
+            if (mControlPointRequests.peek() != request) {
+                return;
+            }
+            mControlPointRequests.poll();
+            mTimeoutHandler.removeCallbacks(mControlPointTimeout);
+            next = mControlPointRequests.peek();
+        }
+        mLinkTuner.endBurst();
+        request.complete(resultCode, responseParameter);
+        if (next != null) {
+            startControlPointRequest(next);
+        }
+    }
+
+    private void failControlPointRequests(int resultCode) {
+        ArrayList<RscControlPointRequest> pending;
+        synchronized (mControlPointRequests) {
+            pending = new ArrayList<RscControlPointRequest>(mControlPointRequests);
+            mControlPointRequests.clear();
+            mTimeoutHandler.removeCallbacks(mControlPointTimeout);
+        }
+        if (!pending.isEmpty()) {
+            // Only the head had been started.
+            mLinkTuner.endBurst();
+        }
+        for (RscControlPointRequest request : pending) {
+            request.complete(resultCode, null);
+        }
+    }
+
+    private final Runnable mControlPointTimeout = new Runnable() {
+        @Override
+        public void run() {
+            RscControlPointRequest request;
+            synchronized (mControlPointRequests) {
+                request = mControlPointRequests.peek();
+            }
+            if (request != null && SystemClock.uptimeMillis() >= request.mDeadlineMillis) {
+                Log.w(TAG, "RSC Control Point procedure timed out: " + request);
+                finishControlPointRequest(request, RscControlPointRequest.RESULT_TIMEOUT, null);
+            }
+        }
+    };
+
+    /**
+     * @return the device this profile is connected or connecting to, null after {@link #close()}
+     */
+    public BluetoothDevice getDevice() {
+        return mBluetoothDevice;
     }
 
     @Override
     public List<BluetoothDevice> getConnectedDevices() {
-        return mConnectedDevicesList;
+        return getDevicesMatchingConnectionStates(new int[]{STATE_CONNECTED});
     }
 
     @Override
     public List<BluetoothDevice> getDevicesMatchingConnectionStates(int[] states) {
-        return null;
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>(1);
+        BluetoothDevice device = mBluetoothDevice;
+        if (device != null && states != null) {
+            int state = mConnectionState;
+            for (int s : states) {
+                if (s == state) {
+                    devices.add(device);
+                    break;
+                }
+            }
+        }
+        return devices;
     }
 
     @Override
     public int getConnectionState(BluetoothDevice device) {
+        BluetoothDevice current = mBluetoothDevice;
+        if (device == null || current == null || !device.equals(current)) {
+            return STATE_DISCONNECTED;
+        }
         return mConnectionState;
     }
 }
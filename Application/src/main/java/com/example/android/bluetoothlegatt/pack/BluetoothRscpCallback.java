@@ -9,6 +9,20 @@ public abstract class BluetoothRscpCallback {
 
     public void onServicesDiscovered(int state) {}
 
+    /**
+     * Called for every decoded RSC Measurement. The default implementation unpacks it into
+     * {@link #onRSCMeasurementCharacChange}.
+     *
+     * @param timestampNanos {@link android.os.SystemClock#elapsedRealtimeNanos()} when the notification was received
+     * @param measurement    Reused by {@link BluetoothRscp}, only valid during the call
+     */
+    public void onRSCMeasurement(long timestampNanos, RscMeasurement measurement) {
+        onRSCMeasurementCharacChange(measurement.getInstantaneousSpeed(), measurement.getInstantaneousCadence(),
+                measurement.getInstantaneousStrideLength(), (int) measurement.getTotalDistance(),
+                measurement.isInstantaneousStrideLengthPresent(), measurement.isTotalDistancePresent(),
+                measurement.getMotion());
+    }
+
     public void onRSCMeasurementCharacChange(int speed, int cadence, int strideLength, int totalDistance,
                               boolean isInstantaneousStrideLengthPresent,
                               boolean isTotalDistancePresent,
@@ -0,0 +1,149 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.util.SparseArray;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Routes characteristic values to their decoders by 16-bit short UUID.
+ * <p/>
+ * <p>Decoders are {@link #register registered} once. When services are discovered, {@link #bind} keeps
+ * only the decoders whose characteristic the remote device actually exposes, so every callback
+ * is a single table lookup instead of a chain of {@link UUID#equals} calls.
+ */
+public final class CharacteristicDispatcher {
+
+    private static final long BASE_UUID_MSB_MASK = 0xFFFF0000FFFFFFFFL;
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    /**
+     * Decodes the value of one kind of characteristic.
+     */
+    public interface Decoder {
+        void decode(BluetoothGattCharacteristic characteristic, byte[] value);
+    }
+
+    /**
+     * Decoder that also takes a value in place, inside a larger buffer; see {@link #dispatchRecorded}.
+     */
+    public interface RangeDecoder extends Decoder {
+        void decode(BluetoothGattCharacteristic characteristic, byte[] value, int offset, int length);
+    }
+
+    private final SparseArray<Decoder> mRegistered = new SparseArray<Decoder>();
+    private volatile SparseArray<Decoder> mBound = new SparseArray<Decoder>();
+
+    /**
+     * Register the decoder for a Bluetooth SIG characteristic.
+     *
+     * @throws IllegalArgumentException if the UUID is not derived from the Bluetooth base UUID
+     */
+    public void register(UUID uuid, Decoder decoder) {
+        int shortUuid = shortUuid(uuid);
+        if (shortUuid < 0) {
+            throw new IllegalArgumentException("Not a Bluetooth SIG UUID: " + uuid);
+        }
+        synchronized (mRegistered) {
+            mRegistered.put(shortUuid, decoder);
+        }
+    }
+
+    /**
+     * Build the dispatch table for a freshly discovered attribute table.
+     *
+     * @return number of characteristics bound to a decoder
+     */
+    public int bind(List<BluetoothGattService> services) {
+        SparseArray<Decoder> bound = new SparseArray<Decoder>();
+        if (services != null) {
+            synchronized (mRegistered) {
+                for (BluetoothGattService service : services) {
+                    for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                        int shortUuid = shortUuid(characteristic.getUuid());
+                        Decoder decoder = shortUuid < 0 ? null : mRegistered.get(shortUuid);
+                        if (decoder != null) {
+                            bound.put(shortUuid, decoder);
+                        }
+                    }
+                }
+            }
+        }
+        mBound = bound;
+        return bound.size();
+    }
+
+    /**
+     * Forget the current attribute table, e.g. after disconnection.
+     */
+    public void clear() {
+        mBound = new SparseArray<Decoder>();
+    }
+
+    /**
+     * Hand the characteristic's current value to its decoder.
+     *
+     * @return false if no decoder is bound to this characteristic
+     */
+    public boolean dispatch(BluetoothGattCharacteristic characteristic) {
+        return dispatch(characteristic, characteristic.getValue());
+    }
+
+    /**
+     * Hand a value received for the characteristic to its decoder.
+     *
+     * @return false if no decoder is bound to this characteristic
+     */
+    public boolean dispatch(BluetoothGattCharacteristic characteristic, byte[] value) {
+        int shortUuid = shortUuid(characteristic.getUuid());
+        if (shortUuid < 0) {
+            return false;
+        }
+        Decoder decoder = mBound.get(shortUuid);
+        if (decoder == null) {
+            return false;
+        }
+        decoder.decode(characteristic, value);
+        return true;
+    }
+
+    /**
+     * Hand a recorded value to the decoder registered for the characteristic, e.g. a frame replayed
+     * from a session. There is no attribute table then: every registered decoder applies, and the
+     * characteristic passed on is null. A {@link RangeDecoder} decodes the value in place, other
+     * decoders get a copy of the range.
+     *
+     * @return false if no decoder is registered for this characteristic
+     */
+    public boolean dispatchRecorded(int shortUuid, byte[] value, int offset, int length) {
+        Decoder decoder;
+        synchronized (mRegistered) {
+            decoder = mRegistered.get(shortUuid);
+        }
+        if (decoder == null) {
+            return false;
+        }
+        if (decoder instanceof RangeDecoder) {
+            ((RangeDecoder) decoder).decode(null, value, offset, length);
+        } else {
+            byte[] copy = new byte[length];
+            System.arraycopy(value, offset, copy, 0, length);
+            decoder.decode(null, copy);
+        }
+        return true;
+    }
+
+    /**
+     * @return the 16-bit short form of a UUID built on the Bluetooth base UUID, or -1 for any other UUID
+     */
+    public static int shortUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if ((msb & BASE_UUID_MSB_MASK) != BASE_UUID_MSB || uuid.getLeastSignificantBits() != BASE_UUID_LSB) {
+            return -1;
+        }
+        return (int) (msb >>> 32) & 0xFFFF;
+    }
+}
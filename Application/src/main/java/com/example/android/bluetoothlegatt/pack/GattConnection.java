@@ -0,0 +1,441 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One {@link BluetoothGatt} client for one remote device, shared by every {@link GattProfileHandler}
+ * attached to it.
+ * <p/>
+ * <p>Connections are created and released through {@link GattConnectionManager}. The connection
+ * starts service discovery once per link and fans every GATT callback out to all handlers.
+ * Requests go through the connection's {@link GattOperationQueue} so that handlers sharing the
+ * link never have two requests outstanding at once.
+ * <p/>
+ * <p>GATT callbacks arrive on Binder threads. By default the connection only copies the value and
+ * takes a timestamp there; decoding and fan-out run in order on a processing thread of its own, so
+ * a slow handler neither holds up the Bluetooth stack nor delays other devices.
+ */
+public final class GattConnection {
+
+    private static final String TAG = GattConnection.class.getSimpleName();
+
+    private static final int MSG_CONNECTION_STATE_CHANGE = 1;
+    private static final int MSG_SERVICES_DISCOVERED = 2;
+    private static final int MSG_CHARACTERISTIC_READ = 3;
+    private static final int MSG_CHARACTERISTIC_WRITE = 4;
+    private static final int MSG_CHARACTERISTIC_CHANGED = 5;
+    private static final int MSG_DESCRIPTOR_READ = 6;
+    private static final int MSG_DESCRIPTOR_WRITE = 7;
+    private static final int MSG_READ_REMOTE_RSSI = 8;
+    private static final int MSG_MTU_CHANGED = 9;
+    private static final int MSG_ATTACH = 10;
+    private static final int MSG_DETACH = 11;
+    // Detach, telling the handler it is disconnected.
+    private static final int MSG_LEAVE = 12;
+
+    /**
+     * ATT MTU until a larger one has been negotiated.
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * One GATT callback, captured on the Binder thread.
+     */
+    private static final class GattEvent {
+        final BluetoothGatt gatt;
+        final Object attribute;
+        final byte[] value;
+        final int status;
+        final int arg;
+        final long timestampNanos;
+
+        GattEvent(BluetoothGatt gatt, Object attribute, byte[] value, int status, int arg, long timestampNanos) {
+            this.gatt = gatt;
+            this.attribute = attribute;
+            this.value = value;
+            this.status = status;
+            this.arg = arg;
+            this.timestampNanos = timestampNanos;
+        }
+    }
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    /**
+     * Attached handlers, as seen by {@link #attach} and {@link #detach}.
+     */
+    private final CopyOnWriteArrayList<GattProfileHandler> mHandlers = new CopyOnWriteArrayList<GattProfileHandler>();
+    /**
+     * Handlers events are delivered to, only changed in event order on the processing thread.
+     */
+    private final CopyOnWriteArrayList<GattProfileHandler> mDeliveryHandlers = new CopyOnWriteArrayList<GattProfileHandler>();
+
+    private final GattOperationQueue mQueue = new GattOperationQueue();
+
+    private final HandlerThread mProcessingThread;
+    private final Handler mProcessingHandler;
+
+    private BluetoothGatt mBluetoothGatt;
+    private volatile int mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+    private volatile boolean mServicesDiscovered;
+    private volatile int mMtu = DEFAULT_MTU;
+
+    // State as already delivered to the handlers, used to bring late joiners up to date.
+    private BluetoothGatt mDeliveredGatt;
+    private int mDeliveredState = BluetoothProfile.STATE_DISCONNECTED;
+    private boolean mDeliveredServicesDiscovered;
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            mConnectionState = newState;
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.i(TAG, "Connected to GATT server.");
+                Log.i(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+                mQueue.setGatt(gatt);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.i(TAG, "Disconnected from GATT server.");
+                Log.d(TAG, "Queue wait " + mQueue.getQueueWait() + ", round trip " + mQueue.getRoundTrip()
+                        + ", timeouts " + mQueue.getTimeoutCount());
+                mServicesDiscovered = false;
+                mMtu = DEFAULT_MTU;
+                mQueue.setGatt(null);
+            }
+            post(MSG_CONNECTION_STATE_CHANGE, new GattEvent(gatt, null, null, status, newState, 0));
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mServicesDiscovered = status == BluetoothGatt.GATT_SUCCESS;
+            post(MSG_SERVICES_DISCOVERED, new GattEvent(gatt, null, null, status, 0, 0));
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            post(MSG_CHARACTERISTIC_READ, new GattEvent(gatt, characteristic, copy(characteristic.getValue()), status, 0, 0));
+            mQueue.onComplete(GattOperation.TYPE_READ_CHARACTERISTIC, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            post(MSG_CHARACTERISTIC_WRITE, new GattEvent(gatt, characteristic, null, status, 0, 0));
+            mQueue.onComplete(GattOperation.TYPE_WRITE_CHARACTERISTIC, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            long timestampNanos = SystemClock.elapsedRealtimeNanos();
+            post(MSG_CHARACTERISTIC_CHANGED, new GattEvent(gatt, characteristic, copy(characteristic.getValue()),
+                    BluetoothGatt.GATT_SUCCESS, 0, timestampNanos));
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            post(MSG_DESCRIPTOR_READ, new GattEvent(gatt, descriptor, copy(descriptor.getValue()), status, 0, 0));
+            mQueue.onComplete(GattOperation.TYPE_READ_DESCRIPTOR, descriptor, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            post(MSG_DESCRIPTOR_WRITE, new GattEvent(gatt, descriptor, copy(descriptor.getValue()), status, 0, 0));
+            mQueue.onComplete(GattOperation.TYPE_WRITE_DESCRIPTOR, descriptor, status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            post(MSG_READ_REMOTE_RSSI, new GattEvent(gatt, null, null, status, rssi, 0));
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
+            post(MSG_MTU_CHANGED, new GattEvent(gatt, null, null, status, mtu, 0));
+            mQueue.onComplete(GattOperation.TYPE_REQUEST_MTU, null, status);
+        }
+    };
+
+    private final Handler.Callback mProcessingCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            process(msg.what, msg.obj);
+            return true;
+        }
+    };
+
+    GattConnection(Context context, BluetoothDevice device, boolean processingThread) {
+        mContext = context;
+        mDevice = device;
+        if (processingThread) {
+            mProcessingThread = new HandlerThread(TAG + " " + device.getAddress());
+            mProcessingThread.start();
+            mProcessingHandler = new Handler(mProcessingThread.getLooper(), mProcessingCallback);
+        } else {
+            mProcessingThread = null;
+            mProcessingHandler = null;
+        }
+    }
+
+    private static byte[] copy(byte[] value) {
+        return value == null ? null : value.clone();
+    }
+
+    /**
+     * Hand an event to the processing thread, or process it right away if there is none.
+     */
+    private void post(int what, Object event) {
+        if (mProcessingHandler != null) {
+            mProcessingHandler.obtainMessage(what, event).sendToTarget();
+        } else {
+            process(what, event);
+        }
+    }
+
+    private void process(int what, Object obj) {
+        if (what == MSG_ATTACH) {
+            GattProfileHandler handler = (GattProfileHandler) obj;
+            if (mHandlers.contains(handler) && mDeliveryHandlers.addIfAbsent(handler)
+                    && mDeliveredState == BluetoothProfile.STATE_CONNECTED && mDeliveredGatt != null) {
+                handler.onConnectionStateChange(mDeliveredGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+                if (mDeliveredServicesDiscovered) {
+                    handler.onServicesDiscovered(mDeliveredGatt, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+            return;
+        } else if (what == MSG_DETACH) {
+            mDeliveryHandlers.remove(obj);
+            return;
+        } else if (what == MSG_LEAVE) {
+            GattProfileHandler handler = (GattProfileHandler) obj;
+            if (mDeliveryHandlers.remove(handler) && mDeliveredState != BluetoothProfile.STATE_DISCONNECTED) {
+                handler.onConnectionStateChange(mDeliveredGatt, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_DISCONNECTED);
+            }
+            return;
+        }
+
+        GattEvent event = (GattEvent) obj;
+        switch (what) {
+            case MSG_CONNECTION_STATE_CHANGE:
+                mDeliveredGatt = event.gatt;
+                mDeliveredState = event.arg;
+                if (event.arg == BluetoothProfile.STATE_DISCONNECTED) {
+                    mDeliveredServicesDiscovered = false;
+                }
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onConnectionStateChange(event.gatt, event.status, event.arg);
+                }
+                break;
+            case MSG_SERVICES_DISCOVERED:
+                mDeliveredServicesDiscovered = event.status == BluetoothGatt.GATT_SUCCESS;
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onServicesDiscovered(event.gatt, event.status);
+                }
+                break;
+            case MSG_CHARACTERISTIC_READ:
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onCharacteristicRead(event.gatt, (BluetoothGattCharacteristic) event.attribute,
+                            event.value, event.status);
+                }
+                break;
+            case MSG_CHARACTERISTIC_WRITE:
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onCharacteristicWrite(event.gatt, (BluetoothGattCharacteristic) event.attribute, event.status);
+                }
+                break;
+            case MSG_CHARACTERISTIC_CHANGED:
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onCharacteristicChanged(event.gatt, (BluetoothGattCharacteristic) event.attribute,
+                            event.value, event.timestampNanos);
+                }
+                break;
+            case MSG_DESCRIPTOR_READ:
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onDescriptorRead(event.gatt, (BluetoothGattDescriptor) event.attribute,
+                            event.value, event.status);
+                }
+                break;
+            case MSG_DESCRIPTOR_WRITE:
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onDescriptorWrite(event.gatt, (BluetoothGattDescriptor) event.attribute,
+                            event.value, event.status);
+                }
+                break;
+            case MSG_READ_REMOTE_RSSI:
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onReadRemoteRssi(event.gatt, event.arg, event.status);
+                }
+                break;
+            case MSG_MTU_CHANGED:
+                for (GattProfileHandler handler : mDeliveryHandlers) {
+                    handler.onMtuChanged(event.gatt, event.arg, event.status);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Attach a handler and bring the link up if needed. A handler joining an already established
+     * link is replayed the connected state and, if available, the discovered services.
+     */
+    synchronized boolean attach(GattProfileHandler handler, boolean autoConnect) {
+        if (mHandlers.addIfAbsent(handler)) {
+            post(MSG_ATTACH, handler);
+        }
+        return connect(autoConnect);
+    }
+
+    /**
+     * Detach a handler.
+     *
+     * @param notify Whether the handler is to be told it is disconnected, after the events already queued for it
+     * @return true if it was the last handler, the link is closed then
+     */
+    synchronized boolean detach(GattProfileHandler handler, boolean notify) {
+        if (mHandlers.remove(handler)) {
+            post(notify ? MSG_LEAVE : MSG_DETACH, handler);
+        }
+        if (!mHandlers.isEmpty()) {
+            return false;
+        }
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        mQueue.setGatt(null);
+        mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+        mServicesDiscovered = false;
+        if (mProcessingThread != null) {
+            mProcessingThread.quitSafely();
+        }
+        return true;
+    }
+
+    private boolean connect(boolean autoConnect) {
+        if (mConnectionState == BluetoothProfile.STATE_CONNECTED
+                || mConnectionState == BluetoothProfile.STATE_CONNECTING) {
+            return true;
+        }
+        if (mBluetoothGatt != null && !autoConnect) {
+            // BluetoothGatt.connect() always reconnects in the background; a direct attempt needs a new client.
+            Log.d(TAG, "Closing the existing mBluetoothGatt for a direct connection.");
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+            mQueue.setGatt(null);
+        }
+        if (mBluetoothGatt != null) {
+            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            if (!mBluetoothGatt.connect()) {
+                return false;
+            }
+        } else {
+            Log.d(TAG, "Trying to create a new connection.");
+            mBluetoothGatt = mDevice.connectGatt(mContext, autoConnect, mGattCallback);
+            if (mBluetoothGatt == null) {
+                return false;
+            }
+        }
+        mConnectionState = BluetoothProfile.STATE_CONNECTING;
+        return true;
+    }
+
+    /**
+     * Close the client without detaching the handlers, e.g. when a connection attempt is stuck.
+     * No callback is sent; the next connection attempt creates a new client.
+     */
+    public synchronized void reset() {
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        mQueue.setGatt(null);
+        mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+        mServicesDiscovered = false;
+        mMtu = DEFAULT_MTU;
+    }
+
+    /**
+     * Disconnect the link if the handler is the only one attached; it stays attached and is notified
+     * through {@link GattProfileHandler#onConnectionStateChange}. Links shared with other handlers are
+     * left alone, see {@link GattConnectionManager#disconnect}.
+     *
+     * @return false if other handlers use the link
+     */
+    synchronized boolean disconnect(GattProfileHandler handler) {
+        if (mHandlers.size() > 1 || !mHandlers.contains(handler)) {
+            return false;
+        }
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.disconnect();
+        }
+        return true;
+    }
+
+    /**
+     * Queue a request on this link, see {@link GattOperationQueue}.
+     *
+     * @return false if the link is not connected
+     */
+    public boolean enqueue(GattOperation operation) {
+        return mQueue.enqueue(operation);
+    }
+
+    public GattOperationQueue getOperationQueue() {
+        return mQueue;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * @return the shared client, or null once the last handler has been detached
+     */
+    public synchronized BluetoothGatt getGatt() {
+        return mBluetoothGatt;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * Ask the controller for another connection interval, one of the
+     * {@code BluetoothGatt.CONNECTION_PRIORITY_*} constants. Not queued, the request has no callback.
+     *
+     * @return false before Lollipop or without a link
+     */
+    public synchronized boolean requestConnectionPriority(int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mBluetoothGatt == null
+                || mConnectionState != BluetoothProfile.STATE_CONNECTED) {
+            return false;
+        }
+        return mBluetoothGatt.requestConnectionPriority(priority);
+    }
+
+    /**
+     * @return the negotiated ATT MTU, {@link #DEFAULT_MTU} until a larger one was agreed
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public boolean isServicesDiscovered() {
+        return mServicesDiscovered;
+    }
+}
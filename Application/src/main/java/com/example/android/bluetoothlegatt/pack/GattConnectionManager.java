@@ -0,0 +1,119 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Owns at most one {@link GattConnection} per remote device for the whole process.
+ * <p/>
+ * <p>Profiles such as {@link BluetoothRscp} or the generic GATT explorer attach a
+ * {@link GattProfileHandler} instead of opening their own client, so a device used by several
+ * profiles costs a single link-layer connection and a single service discovery.
+ */
+public final class GattConnectionManager {
+
+    private static final String TAG = GattConnectionManager.class.getSimpleName();
+
+    private static GattConnectionManager sInstance;
+
+    private final Context mContext;
+    private final HashMap<String, GattConnection> mConnections = new HashMap<String, GattConnection>();
+    private volatile boolean mProcessingThreadEnabled = true;
+
+    private GattConnectionManager(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized GattConnectionManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GattConnectionManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Choose where connections created from now on run their {@link GattProfileHandler}s: on a
+     * processing thread of their own (the default), or directly on the Binder thread delivering the
+     * GATT callback.
+     */
+    public void setProcessingThreadEnabled(boolean enabled) {
+        mProcessingThreadEnabled = enabled;
+    }
+
+    /**
+     * Attach a handler to the device's connection, creating and connecting it if needed.
+     *
+     * @param device      Remote Bluetooth Device
+     * @param autoConnect Auto Connect, only used when a new client has to be created
+     * @param handler     Profile handler receiving the connection's callbacks
+     * @return the shared connection, or null if the connection could not be initiated
+     */
+    public GattConnection connect(BluetoothDevice device, boolean autoConnect, GattProfileHandler handler) {
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return null;
+        }
+        synchronized (mConnections) {
+            GattConnection connection = mConnections.get(device.getAddress());
+            if (connection == null) {
+                connection = new GattConnection(mContext, device, mProcessingThreadEnabled);
+                mConnections.put(device.getAddress(), connection);
+            }
+            // Under the lock, so a concurrent release of the last handler cannot close the
+            // connection between the lookup and the attach.
+            if (!connection.attach(handler, autoConnect)) {
+                release(connection, handler);
+                return null;
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * Disconnect a handler from its device. The link itself is only taken down if no other handler
+     * uses it. Otherwise the handler is detached, like {@link #release}, and is told it is
+     * disconnected, while the other handlers stay connected.
+     *
+     * @return true if the handler was detached and has to {@link #connect} again to use the device
+     */
+    public boolean disconnect(GattConnection connection, GattProfileHandler handler) {
+        if (connection == null) {
+            return false;
+        }
+        synchronized (mConnections) {
+            if (connection.disconnect(handler)) {
+                return false;
+            }
+            if (connection.detach(handler, true)) {
+                mConnections.remove(connection.getDevice().getAddress());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Detach a handler. The underlying client is closed once no handler is left.
+     */
+    public void release(GattConnection connection, GattProfileHandler handler) {
+        if (connection == null) {
+            return;
+        }
+        synchronized (mConnections) {
+            if (connection.detach(handler, false)) {
+                mConnections.remove(connection.getDevice().getAddress());
+            }
+        }
+    }
+
+    /**
+     * @return the connection of a device, or null if no profile uses it
+     */
+    public GattConnection getConnection(String address) {
+        synchronized (mConnections) {
+            return mConnections.get(address);
+        }
+    }
+}
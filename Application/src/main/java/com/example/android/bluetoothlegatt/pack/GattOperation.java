@@ -0,0 +1,190 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+
+/**
+ * One GATT request waiting in a {@link GattOperationQueue}.
+ * <p/>
+ * <p>Values to write are captured when the operation is created and applied to the attribute only
+ * when the operation is issued, so queued writes to the same attribute do not overwrite each other.
+ */
+public final class GattOperation {
+
+    public static final int TYPE_READ_CHARACTERISTIC = 1;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 2;
+    public static final int TYPE_READ_DESCRIPTOR = 3;
+    public static final int TYPE_WRITE_DESCRIPTOR = 4;
+    public static final int TYPE_REQUEST_MTU = 5;
+
+    /**
+     * Control point procedures and other user initiated requests.
+     */
+    public static final int PRIORITY_HIGH = 0;
+    /**
+     * Default priority, e.g. notification and indication setup.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * Bulk reads that nobody is waiting for.
+     */
+    public static final int PRIORITY_LOW = 2;
+
+    /**
+     * Status reported when the operation did not complete before its deadline.
+     */
+    public static final int STATUS_TIMEOUT = -1;
+    /**
+     * Status reported when the operation could not be issued or was dropped on disconnection.
+     */
+    public static final int STATUS_NOT_ISSUED = -2;
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Notified once per operation, on the thread that retired it.
+     */
+    public interface Listener {
+        void onOperationComplete(GattOperation operation, int status);
+    }
+
+    private final int mType;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final BluetoothGattDescriptor mDescriptor;
+    private final byte[] mValue;
+    private final int mMtu;
+    private int mPriority = PRIORITY_NORMAL;
+    private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private Listener mListener;
+
+    long mSequence;
+    long mEnqueueNanos;
+    long mStartNanos;
+    long mDeadlineNanos;
+    // After a timeout: until when a late callback is attributed to this operation.
+    long mLateUntilNanos;
+
+    private GattOperation(int type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value) {
+        this(type, characteristic, descriptor, value, 0);
+    }
+
+    private GattOperation(int type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value, int mtu) {
+        mType = type;
+        mCharacteristic = characteristic;
+        mDescriptor = descriptor;
+        mValue = value;
+        mMtu = mtu;
+    }
+
+    public static GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return new GattOperation(TYPE_READ_CHARACTERISTIC, characteristic, null, null);
+    }
+
+    public static GattOperation writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return new GattOperation(TYPE_WRITE_CHARACTERISTIC, characteristic, null, value);
+    }
+
+    public static GattOperation readDescriptor(BluetoothGattDescriptor descriptor) {
+        return new GattOperation(TYPE_READ_DESCRIPTOR, null, descriptor, null);
+    }
+
+    public static GattOperation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        return new GattOperation(TYPE_WRITE_DESCRIPTOR, null, descriptor, value);
+    }
+
+    /**
+     * Ask for a larger ATT MTU, completed by {@link android.bluetooth.BluetoothGattCallback#onMtuChanged}.
+     * Not issued before Lollipop.
+     */
+    public static GattOperation requestMtu(int mtu) {
+        return new GattOperation(TYPE_REQUEST_MTU, null, null, null, mtu);
+    }
+
+    public GattOperation setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    public GattOperation setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public GattOperation setListener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public long getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    public BluetoothGattDescriptor getDescriptor() {
+        return mDescriptor;
+    }
+
+    boolean execute(BluetoothGatt gatt) {
+        switch (mType) {
+            case TYPE_READ_CHARACTERISTIC:
+                return gatt.readCharacteristic(mCharacteristic);
+            case TYPE_WRITE_CHARACTERISTIC:
+                mCharacteristic.setValue(mValue);
+                return gatt.writeCharacteristic(mCharacteristic);
+            case TYPE_READ_DESCRIPTOR:
+                return gatt.readDescriptor(mDescriptor);
+            case TYPE_WRITE_DESCRIPTOR:
+                mDescriptor.setValue(mValue);
+                return gatt.writeDescriptor(mDescriptor);
+            case TYPE_REQUEST_MTU:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(mMtu);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a callback of the given type for the given attribute retires this operation
+     */
+    boolean matches(int type, Object attribute) {
+        if (type != mType) {
+            return false;
+        }
+        if (mType == TYPE_REQUEST_MTU) {
+            return true;
+        }
+        if (mType == TYPE_READ_CHARACTERISTIC || mType == TYPE_WRITE_CHARACTERISTIC) {
+            return attribute == mCharacteristic || (attribute instanceof BluetoothGattCharacteristic
+                    && ((BluetoothGattCharacteristic) attribute).getUuid().equals(mCharacteristic.getUuid()));
+        }
+        return attribute == mDescriptor || (attribute instanceof BluetoothGattDescriptor
+                && ((BluetoothGattDescriptor) attribute).getUuid().equals(mDescriptor.getUuid()));
+    }
+
+    void complete(int status) {
+        if (mListener != null) {
+            mListener.onOperationComplete(this, status);
+        }
+    }
+
+    @Override
+    public String toString() {
+        Object attribute = mCharacteristic != null ? mCharacteristic.getUuid()
+                : mDescriptor != null ? mDescriptor.getUuid() : "mtu " + mMtu;
+        return "GattOperation{type=" + mType + ", attribute=" + attribute + ", priority=" + mPriority + "}";
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Serializes the GATT requests of one connection.
+ * <p/>
+ * <p>Android only allows a single outstanding request per {@link BluetoothGatt}; a second one is
+ * rejected silently. Operations are issued one at a time in priority order, FIFO within a priority,
+ * and retired by their matching callback or by their timeout. The next operation is issued straight
+ * from the completion callback, so back-to-back requests do not wait for a looper round trip.
+ * <p/>
+ * <p>Callbacks only name a type and an attribute. An operation that timed out is remembered for
+ * another timeout period, and the first matching callback in that time is taken as its late answer,
+ * since the remote answers in order; it does not retire a newer operation on the same attribute.
+ */
+public final class GattOperationQueue {
+
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+
+    private static final Comparator<GattOperation> ORDER = new Comparator<GattOperation>() {
+        @Override
+        public int compare(GattOperation lhs, GattOperation rhs) {
+            if (lhs.getPriority() != rhs.getPriority()) {
+                return lhs.getPriority() < rhs.getPriority() ? -1 : 1;
+            }
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    };
+
+    private final PriorityQueue<GattOperation> mPending = new PriorityQueue<GattOperation>(16, ORDER);
+    private final Handler mTimeoutHandler = new Handler(Looper.getMainLooper());
+    private final LatencyHistogram mQueueWait = new LatencyHistogram();
+    private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+
+    private BluetoothGatt mGatt;
+    private GattOperation mInFlight;
+    // Timed out operations whose callback may still arrive, oldest first.
+    private final ArrayDeque<GattOperation> mTimedOut = new ArrayDeque<GattOperation>();
+    private long mSequence;
+    private long mTimeouts;
+
+    private final Runnable mTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            GattOperation expired;
+            synchronized (GattOperationQueue.this) {
+                expired = mInFlight;
+                if (expired == null) {
+                    return;
+                }
+                long remaining = expired.mDeadlineNanos - System.nanoTime();
+                if (remaining > 0) {
+                    mTimeoutHandler.postDelayed(this, remaining / 1000000L + 1);
+                    return;
+                }
+                Log.w(TAG, "Timed out: " + expired);
+                mTimeouts++;
+                mInFlight = null;
+                expired.mLateUntilNanos = System.nanoTime() + expired.getTimeoutMillis() * 1000000L;
+                mTimedOut.add(expired);
+            }
+            expired.complete(GattOperation.STATUS_TIMEOUT);
+            issueNext();
+        }
+    };
+
+    /**
+     * Attach the client the operations are issued on, null once the link is gone.
+     * Detaching drops every pending operation.
+     */
+    void setGatt(BluetoothGatt gatt) {
+        ArrayList<GattOperation> dropped = null;
+        synchronized (this) {
+            mGatt = gatt;
+            if (gatt == null) {
+                dropped = new ArrayList<GattOperation>(mPending);
+                if (mInFlight != null) {
+                    dropped.add(mInFlight);
+                    mInFlight = null;
+                }
+                mPending.clear();
+                mTimedOut.clear();
+                mTimeoutHandler.removeCallbacks(mTimeoutCheck);
+            }
+        }
+        if (dropped != null) {
+            for (GattOperation operation : dropped) {
+                operation.complete(GattOperation.STATUS_NOT_ISSUED);
+            }
+        } else {
+            issueNext();
+        }
+    }
+
+    /**
+     * Queue an operation, it is issued immediately if the connection is idle.
+     *
+     * @return false if there is no link to issue it on
+     */
+    public boolean enqueue(GattOperation operation) {
+        synchronized (this) {
+            if (mGatt == null) {
+                return false;
+            }
+            operation.mSequence = mSequence++;
+            operation.mEnqueueNanos = System.nanoTime();
+            mPending.add(operation);
+        }
+        issueNext();
+        return true;
+    }
+
+    /**
+     * Retire the in-flight operation if the callback belongs to it.
+     *
+     * @param type      One of the {@code GattOperation.TYPE_*} constants
+     * @param attribute Characteristic or descriptor the callback is about
+     * @param status    GATT status of the callback
+     */
+    void onComplete(int type, Object attribute, int status) {
+        GattOperation done;
+        synchronized (this) {
+            if (isLateLocked(type, attribute)) {
+                return;
+            }
+            done = mInFlight;
+            if (done == null || !done.matches(type, attribute)) {
+                return;
+            }
+            mInFlight = null;
+            mTimeoutHandler.removeCallbacks(mTimeoutCheck);
+            mRoundTrip.record(System.nanoTime() - done.mStartNanos);
+        }
+        done.complete(status);
+        issueNext();
+    }
+
+    // Consumes the callback if it is the late answer of a timed out operation.
+    private boolean isLateLocked(int type, Object attribute) {
+        long now = System.nanoTime();
+        for (Iterator<GattOperation> it = mTimedOut.iterator(); it.hasNext(); ) {
+            GattOperation operation = it.next();
+            if (operation.mLateUntilNanos - now < 0) {
+                it.remove();
+            } else if (operation.matches(type, attribute)) {
+                it.remove();
+                Log.w(TAG, "Late callback ignored: " + operation);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void issueNext() {
+        while (true) {
+            GattOperation operation;
+            synchronized (this) {
+                if (mInFlight != null || mGatt == null) {
+                    return;
+                }
+                operation = mPending.poll();
+                if (operation == null) {
+                    return;
+                }
+                operation.mStartNanos = System.nanoTime();
+                operation.mDeadlineNanos = operation.mStartNanos + operation.getTimeoutMillis() * 1000000L;
+                mQueueWait.record(operation.mStartNanos - operation.mEnqueueNanos);
+                if (operation.execute(mGatt)) {
+                    mInFlight = operation;
+                    mTimeoutHandler.postDelayed(mTimeoutCheck, operation.getTimeoutMillis());
+                    return;
+                }
+            }
+            Log.w(TAG, "Unable to issue " + operation);
+            operation.complete(GattOperation.STATUS_NOT_ISSUED);
+        }
+    }
+
+    /**
+     * Time from {@link #enqueue} until the operation is issued.
+     */
+    public LatencyHistogram getQueueWait() {
+        return mQueueWait;
+    }
+
+    /**
+     * Time from issuing an operation until its callback.
+     */
+    public LatencyHistogram getRoundTrip() {
+        return mRoundTrip;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size() + (mInFlight != null ? 1 : 0);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * This abstract class is used to implement a profile on top of a shared {@link GattConnection}.
+ * <p/>
+ * <p>Every handler attached to a connection receives every GATT callback of that connection;
+ * handlers ignore the attributes that do not belong to their profile.
+ * <p/>
+ * <p>Callbacks arrive on the connection's processing thread, see
+ * {@link GattConnectionManager#setProcessingThreadEnabled}. Attribute values are copied when the
+ * GATT callback is received and handed over as {@code value}; by the time a handler runs, the
+ * attribute itself may already hold a newer value.
+ */
+public abstract class GattProfileHandler {
+
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {}
+
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {}
+
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value,
+                                     int status) {}
+
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {}
+
+    /**
+     * @param timestampNanos {@link android.os.SystemClock#elapsedRealtimeNanos()} when the notification was received
+     */
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value,
+                                        long timestampNanos) {}
+
+    public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, byte[] value, int status) {}
+
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, byte[] value, int status) {}
+
+    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {}
+
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {}
+
+}
@@ -0,0 +1,304 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Per-device cache of the attribute table layout and of the static characteristic values read from it.
+ * <p/>
+ * <p>The layout is kept as a 64-bit fingerprint of every service, characteristic (with its
+ * properties) and descriptor UUID, in discovery order. Values are kept by 16-bit characteristic
+ * UUID, e.g. RSC Feature, Sensor Location or Device Information strings. Cached values can be shown
+ * as soon as the link is up; once discovery completes, {@link #validate} drops them if the layout
+ * changed.
+ * <p/>
+ * <p>Files are read and written on a thread shared by every device's cache, never on the caller's:
+ * {@link #load} returns an empty cache whose file is read in the background, see
+ * {@link #whenLoaded}, and {@link #save} writes in the background, once for a burst of changes.
+ * <p/>
+ * <p>File format, big endian: magic, version, fingerprint, value count, then per value the short
+ * UUID, the length and the bytes. Unreadable files are treated as an empty cache.
+ */
+public final class GattServiceCache {
+
+    private static final String TAG = GattServiceCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x47534331; // "GSC1"
+    private static final int VERSION = 1;
+    private static final String DIRECTORY = "gatt";
+    private static final int MAX_VALUE_LENGTH = 512;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Reads and writes every cache file, in the order they were asked for.
+    private static Handler sIoHandler;
+
+    private final File mFile;
+    private final SparseArray<byte[]> mValues = new SparseArray<byte[]>();
+    private long mFingerprint;
+    private boolean mDirty;
+    private boolean mLoaded;
+    private boolean mSavePosted;
+    private final ArrayList<Runnable> mLoadedCallbacks = new ArrayList<Runnable>();
+
+    private final Runnable mRead = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private GattServiceCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Load the cache of a device, empty if there is none yet. The cache is returned right away and
+     * filled once its file has been read, see {@link #whenLoaded}.
+     */
+    public static GattServiceCache load(Context context, String address) {
+        File directory = new File(context.getCacheDir(), DIRECTORY);
+        GattServiceCache cache = new GattServiceCache(new File(directory, address.replace(":", "") + ".bin"));
+        getIoHandler().post(cache.mRead);
+        return cache;
+    }
+
+    private static synchronized Handler getIoHandler() {
+        if (sIoHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sIoHandler = new Handler(thread.getLooper());
+        }
+        return sIoHandler;
+    }
+
+    /**
+     * Run the callback once the file has been read: right away on the calling thread if it already
+     * was, otherwise on the cache's I/O thread.
+     */
+    public void whenLoaded(Runnable callback) {
+        synchronized (this) {
+            if (!mLoaded) {
+                mLoadedCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * @return fingerprint of an attribute table, never 0
+     */
+    public static long fingerprint(List<BluetoothGattService> services) {
+        long hash = FNV_OFFSET_BASIS;
+        for (BluetoothGattService service : services) {
+            hash = hash(hash, service.getUuid());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = hash(hash, characteristic.getUuid());
+                hash = hash(hash, characteristic.getProperties());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    hash = hash(hash, descriptor.getUuid());
+                }
+            }
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long hash(long hash, UUID uuid) {
+        return hash(hash(hash, uuid.getMostSignificantBits()), uuid.getLeastSignificantBits());
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Check the cache against a freshly discovered table. On mismatch every cached value is dropped
+     * and the new fingerprint is kept.
+     *
+     * @return true if the cached values belong to this table
+     */
+    public synchronized boolean validate(long fingerprint) {
+        if (fingerprint == mFingerprint) {
+            return true;
+        }
+        mFingerprint = fingerprint;
+        mValues.clear();
+        mDirty = true;
+        return false;
+    }
+
+    /**
+     * @return the cached value of a characteristic, or null
+     */
+    public synchronized byte[] get(int shortUuid) {
+        return mValues.get(shortUuid);
+    }
+
+    public synchronized void put(int shortUuid, byte[] value) {
+        if (value == null || value.length > MAX_VALUE_LENGTH || Arrays.equals(value, mValues.get(shortUuid))) {
+            return;
+        }
+        mValues.put(shortUuid, value.clone());
+        mDirty = true;
+    }
+
+    public synchronized long getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * Write the cache in the background if it changed. Changes made before the write starts are
+     * written along, so a burst of changes costs one write. The file is replaced atomically.
+     */
+    public synchronized void save() {
+        if (!mDirty || mSavePosted) {
+            return;
+        }
+        mSavePosted = true;
+        getIoHandler().post(mWrite);
+    }
+
+    private void write() {
+        // Encoded under the lock, written without it.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        synchronized (this) {
+            mSavePosted = false;
+            if (!mDirty) {
+                return;
+            }
+            DataOutputStream data = new DataOutputStream(bytes);
+            try {
+                data.writeInt(MAGIC);
+                data.writeShort(VERSION);
+                data.writeLong(mFingerprint);
+                data.writeShort(mValues.size());
+                for (int i = 0; i < mValues.size(); i++) {
+                    byte[] value = mValues.valueAt(i);
+                    data.writeShort(mValues.keyAt(i));
+                    data.writeShort(value.length);
+                    data.write(value);
+                }
+                data.flush();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            mDirty = false;
+        }
+        File directory = mFile.getParentFile();
+        File temp = new File(directory, mFile.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("unable to create " + directory);
+            }
+            out = new FileOutputStream(temp);
+            bytes.writeTo(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile + ": " + e);
+            temp.delete();
+            synchronized (this) {
+                mDirty = true;
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void load() {
+        SparseArray<byte[]> values = new SparseArray<byte[]>();
+        long fingerprint = 0;
+        if (mFile.exists()) {
+            try {
+                fingerprint = read(values);
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping unreadable cache " + mFile + ": " + e);
+                values.clear();
+                fingerprint = 0;
+            }
+        }
+        ArrayList<Runnable> callbacks;
+        synchronized (this) {
+            // Nothing is cached before the file is read, see BluetoothRscp.
+            mValues.clear();
+            for (int i = 0; i < values.size(); i++) {
+                mValues.put(values.keyAt(i), values.valueAt(i));
+            }
+            mFingerprint = fingerprint;
+            mLoaded = true;
+            callbacks = new ArrayList<Runnable>(mLoadedCallbacks);
+            mLoadedCallbacks.clear();
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * @return the fingerprint
+     */
+    private long read(SparseArray<byte[]> values) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            long fingerprint = in.readLong();
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                int shortUuid = in.readUnsignedShort();
+                int length = in.readUnsignedShort();
+                if (length > MAX_VALUE_LENGTH) {
+                    throw new IOException("value too long: " + length);
+                }
+                byte[] value = new byte[length];
+                in.readFully(value);
+                values.put(shortUuid, value);
+            }
+            return fingerprint;
+        } finally {
+            in.close();
+        }
+    }
+}
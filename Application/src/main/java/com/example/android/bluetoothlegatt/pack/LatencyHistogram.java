@@ -0,0 +1,90 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two millisecond buckets.
+ * <p/>
+ * <p>Bucket {@code 0} counts samples below 1 ms, bucket {@code i} counts samples in
+ * {@code [2^(i-1), 2^i)} ms and the last bucket collects everything slower.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 18;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * Record one sample.
+     *
+     * @param nanos Latency in nanoseconds, negative values are clamped to zero
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long millis = nanos / 1000000L;
+        int bucket = millis == 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+        mBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanMillis() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalNanos.get() / count / 1000000L;
+    }
+
+    public long getMaxMillis() {
+        return mMaxNanos.get() / 1000000L;
+    }
+
+    /**
+     * @param percentile Value in (0, 100]
+     * @return upper bound, in milliseconds, of the bucket holding the given percentile
+     */
+    public long getPercentileMillis(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return i == BUCKET_COUNT - 1 ? getMaxMillis() : 1L << i;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + getMeanMillis() + "ms p50=" + getPercentileMillis(50)
+                + "ms p99=" + getPercentileMillis(99) + "ms max=" + getMaxMillis() + "ms";
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Adapts connection priority and ATT MTU of one RSC link to what the link is doing.
+ * <p/>
+ * <p>The link runs at {@code CONNECTION_PRIORITY_HIGH} while anything is in a burst: service
+ * discovery, a control point procedure or a batch of reads, see {@link #beginBurst()}. Once the last
+ * burst has ended and {@link #SETTLE_MILLIS} passed without another one, it drops to
+ * {@code BALANCED} while the UI is in the foreground and to {@code LOW_POWER} otherwise. A larger
+ * MTU is requested once per link right after discovery, ahead of the bulk reads that profit from it.
+ * <p/>
+ * <p>Notifications can only go out on connection events, so the shortest spacing seen between two
+ * of them is an upper bound for the connection interval; see {@link #getIntervalEstimateMillis()}.
+ * Priorities and MTU need Lollipop; on older releases only the estimate is maintained.
+ */
+public final class LinkTuner {
+
+    private static final String TAG = LinkTuner.class.getSimpleName();
+    private static final boolean DBG = true;
+
+    public static final long SETTLE_MILLIS = 2000;
+    public static final int PREFERRED_MTU = 247;
+
+    // Spacings shorter than this are notifications delivered from the same connection event.
+    private static final long MIN_SPACING_NANOS = 5000000L;
+    private static final int SPACING_WINDOW = 32;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private String mAddress;
+    private int mBursts;
+    private boolean mForeground = true;
+    private int mPriority = -1;
+    private boolean mMtuRequested;
+
+    // Interval estimate, only touched on the connection's processing thread.
+    private long mLastNotificationNanos;
+    private long mWindowMinSpacingNanos = Long.MAX_VALUE;
+    private int mWindowCount;
+    private volatile long mIntervalEstimateNanos;
+
+    private final Runnable mSettle = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LinkTuner.this) {
+                if (mBursts == 0) {
+                    applyLocked(mForeground ? BluetoothGatt.CONNECTION_PRIORITY_BALANCED
+                            : BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+                }
+            }
+        }
+    };
+
+    public LinkTuner(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * The link is up, service discovery is starting.
+     */
+    public synchronized void onConnected(BluetoothGatt gatt) {
+        mAddress = gatt.getDevice().getAddress();
+        mPriority = -1;
+        mMtuRequested = false;
+        mBursts = 0;
+        mLastNotificationNanos = 0;
+        beginBurst();
+    }
+
+    /**
+     * Discovery is over: negotiate the MTU, then let the priority settle.
+     */
+    public synchronized void onServicesDiscovered() {
+        GattConnection connection = getConnection();
+        if (!mMtuRequested && connection != null) {
+            mMtuRequested = true;
+            connection.enqueue(GattOperation.requestMtu(PREFERRED_MTU).setListener(new GattOperation.Listener() {
+                @Override
+                public void onOperationComplete(GattOperation operation, int status) {
+                    GattConnection connection = getConnection();
+                    Log.i(TAG, "MTU " + (connection != null ? connection.getMtu() : GattConnection.DEFAULT_MTU)
+                            + ", status " + status);
+                }
+            }));
+        }
+        endBurst();
+    }
+
+    public synchronized void onDisconnected() {
+        mHandler.removeCallbacks(mSettle);
+        mBursts = 0;
+        mPriority = -1;
+    }
+
+    /**
+     * Raise the link to high priority until the matching {@link #endBurst()}. Bursts nest.
+     */
+    public synchronized void beginBurst() {
+        mHandler.removeCallbacks(mSettle);
+        if (mBursts++ == 0) {
+            applyLocked(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+    }
+
+    public synchronized void endBurst() {
+        if (mBursts == 0) {
+            return;
+        }
+        if (--mBursts == 0) {
+            mHandler.postDelayed(mSettle, SETTLE_MILLIS);
+        }
+    }
+
+    /**
+     * Whether anybody is looking at the data; a background link settles to low power.
+     */
+    public synchronized void setForeground(boolean foreground) {
+        if (mForeground == foreground) {
+            return;
+        }
+        mForeground = foreground;
+        if (mBursts == 0) {
+            mHandler.removeCallbacks(mSettle);
+            mHandler.post(mSettle);
+        }
+    }
+
+    /**
+     * Feed the reception time of a notification, on the connection's processing thread.
+     */
+    public void onNotification(long timestampNanos) {
+        long last = mLastNotificationNanos;
+        mLastNotificationNanos = timestampNanos;
+        if (last == 0) {
+            return;
+        }
+        long spacing = timestampNanos - last;
+        if (spacing < MIN_SPACING_NANOS) {
+            return;
+        }
+        if (spacing < mWindowMinSpacingNanos) {
+            mWindowMinSpacingNanos = spacing;
+        }
+        if (++mWindowCount == SPACING_WINDOW) {
+            mIntervalEstimateNanos = mWindowMinSpacingNanos;
+            if (DBG) Log.d(TAG, "Connection interval <= " + mWindowMinSpacingNanos / 1000000L + " ms");
+            mWindowMinSpacingNanos = Long.MAX_VALUE;
+            mWindowCount = 0;
+        }
+    }
+
+    /**
+     * @return upper bound of the connection interval inferred from the last window of notifications, 0 if unknown
+     */
+    public long getIntervalEstimateMillis() {
+        return mIntervalEstimateNanos / 1000000L;
+    }
+
+    /**
+     * @return the priority last asked for, one of the {@code BluetoothGatt.CONNECTION_PRIORITY_*} constants, or -1
+     */
+    public synchronized int getPriority() {
+        return mPriority;
+    }
+
+    private void applyLocked(int priority) {
+        if (priority == mPriority) {
+            return;
+        }
+        GattConnection connection = getConnection();
+        if (connection != null && connection.requestConnectionPriority(priority)) {
+            if (DBG) Log.d(TAG, "Connection priority " + mPriority + " -> " + priority);
+            mPriority = priority;
+        }
+    }
+
+    private GattConnection getConnection() {
+        String address = mAddress;
+        return address == null ? null : GattConnectionManager.getInstance(mContext).getConnection(address);
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Brings one device's link back after it dropped.
+ * <p/>
+ * <p>Attempts are spaced by an exponential backoff with jitter, from {@link #BASE_DELAY_MILLIS} up
+ * to {@link #MAX_DELAY_MILLIS}. A watchdog gives every direct attempt, the first one included,
+ * {@link #CONNECT_DEADLINE_MILLIS} to succeed; a stuck attempt has its client closed so the next one
+ * starts from a fresh {@link android.bluetooth.BluetoothGatt}. After {@link #FAST_FAILURE_THRESHOLD} attempts in a row
+ * that fail within {@link #FAST_FAILURE_MILLIS}, the device is most likely out of range and the
+ * scheduler falls back to a single background (autoConnect) attempt, which the stack keeps pending
+ * until the device shows up again.
+ */
+public final class ReconnectScheduler {
+
+    private static final String TAG = ReconnectScheduler.class.getSimpleName();
+
+    public static final long BASE_DELAY_MILLIS = 500;
+    public static final long MAX_DELAY_MILLIS = 30000;
+    public static final long CONNECT_DEADLINE_MILLIS = 15000;
+    public static final long FAST_FAILURE_MILLIS = 2000;
+    public static final int FAST_FAILURE_THRESHOLD = 3;
+
+    /**
+     * The link being looked after.
+     */
+    public interface Target {
+        /**
+         * @return false if the attempt could not be started
+         */
+        boolean connect(boolean autoConnect);
+
+        /**
+         * Close the client of a stuck attempt, the next attempt creates a new one.
+         */
+        void reset();
+
+        /**
+         * @return true if the link is up
+         */
+        boolean isConnected();
+    }
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAITING = 1;
+    private static final int STATE_CONNECTING = 2;
+    private static final int STATE_BACKGROUND = 3;
+
+    private final Handler mHandler;
+    private final Target mTarget;
+    private final Random mRandom = new Random();
+    private final LatencyHistogram mTimeToRecover = new LatencyHistogram();
+
+    private boolean mEnabled;
+    private int mState = STATE_IDLE;
+    private long mRecoveryStartMillis = -1;
+    private long mAttemptStartMillis;
+    private int mAttempts;
+    private int mFastFailures;
+
+    private long mRecoveries;
+    private long mRecoveryAttempts;
+
+    private final Runnable mAttempt = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    private final Runnable mWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectScheduler.this) {
+                if (mState != STATE_CONNECTING) {
+                    return;
+                }
+                if (mTarget.isConnected()) {
+                    // Connected before start() was called, no callback left to wait for.
+                    mState = STATE_IDLE;
+                    return;
+                }
+                Log.w(TAG, "Connection attempt " + mAttempts + " stuck, recreating the client.");
+                mTarget.reset();
+                mFastFailures = 0;
+                scheduleLocked();
+            }
+        }
+    };
+
+    /**
+     * @param handler Handler the attempts and the watchdog run on
+     * @param target  Link to reconnect
+     */
+    public ReconnectScheduler(Handler handler, Target target) {
+        mHandler = handler;
+        mTarget = target;
+    }
+
+    /**
+     * Reconnect whenever the link drops, until {@link #stop()}. Call right after starting the first
+     * connection attempt, which gets the same deadline as the later ones.
+     */
+    public synchronized void start() {
+        mEnabled = true;
+        if (mState == STATE_IDLE) {
+            mState = STATE_CONNECTING;
+            mAttemptStartMillis = SystemClock.elapsedRealtime();
+            mHandler.postDelayed(mWatchdog, CONNECT_DEADLINE_MILLIS);
+        }
+    }
+
+    /**
+     * Stop reconnecting, e.g. on a disconnection asked for by the user.
+     */
+    public synchronized void stop() {
+        mEnabled = false;
+        cancelLocked();
+        mRecoveryStartMillis = -1;
+    }
+
+    public synchronized void onConnected() {
+        cancelLocked();
+        if (mRecoveryStartMillis >= 0) {
+            long recoveryMillis = SystemClock.elapsedRealtime() - mRecoveryStartMillis;
+            mTimeToRecover.record(recoveryMillis * 1000000L);
+            mRecoveries++;
+            mRecoveryAttempts += mAttempts;
+            Log.i(TAG, "Recovered after " + recoveryMillis + " ms, " + mAttempts + " attempts.");
+            mRecoveryStartMillis = -1;
+        }
+    }
+
+    public synchronized void onDisconnected() {
+        if (!mEnabled) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mRecoveryStartMillis < 0) {
+            mHandler.removeCallbacks(mWatchdog);
+            mRecoveryStartMillis = now;
+            mAttempts = 0;
+            mFastFailures = 0;
+        } else if (mState == STATE_CONNECTING) {
+            mHandler.removeCallbacks(mWatchdog);
+            if (now - mAttemptStartMillis < FAST_FAILURE_MILLIS) {
+                mFastFailures++;
+            } else {
+                mFastFailures = 0;
+            }
+        } else if (mState == STATE_BACKGROUND) {
+            // The background attempt was given up by the stack, try again later.
+            mState = STATE_WAITING;
+            mHandler.postDelayed(mAttempt, MAX_DELAY_MILLIS);
+            return;
+        } else if (mState == STATE_WAITING) {
+            return;
+        }
+        scheduleLocked();
+    }
+
+    private void scheduleLocked() {
+        if (mFastFailures >= FAST_FAILURE_THRESHOLD) {
+            Log.i(TAG, mFastFailures + " fast failures, waiting for the device in the background.");
+            mState = STATE_WAITING;
+            mHandler.post(mAttempt);
+            return;
+        }
+        long delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(mAttempts, 16));
+        // Equal jitter: half fixed, half random, so devices dropped together do not retry in lockstep.
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        mState = STATE_WAITING;
+        mHandler.postDelayed(mAttempt, delay);
+    }
+
+    private synchronized void attempt() {
+        if (!mEnabled || mState != STATE_WAITING) {
+            return;
+        }
+        mAttempts++;
+        mAttemptStartMillis = SystemClock.elapsedRealtime();
+        if (mFastFailures >= FAST_FAILURE_THRESHOLD) {
+            // A background connection only completes once the device advertises again; no deadline.
+            mState = STATE_BACKGROUND;
+            mTarget.reset();
+            if (!mTarget.connect(true)) {
+                mState = STATE_WAITING;
+                mHandler.postDelayed(mAttempt, MAX_DELAY_MILLIS);
+            }
+            return;
+        }
+        mState = STATE_CONNECTING;
+        if (!mTarget.connect(false)) {
+            mFastFailures++;
+            scheduleLocked();
+            return;
+        }
+        mHandler.postDelayed(mWatchdog, CONNECT_DEADLINE_MILLIS);
+    }
+
+    private void cancelLocked() {
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.removeCallbacks(mWatchdog);
+        mState = STATE_IDLE;
+    }
+
+    /**
+     * Time from the link dropping until it is back.
+     */
+    public LatencyHistogram getTimeToRecover() {
+        return mTimeToRecover;
+    }
+
+    public synchronized long getRecoveryCount() {
+        return mRecoveries;
+    }
+
+    /**
+     * @return mean number of attempts a recovery took, 0 before the first recovery
+     */
+    public synchronized double getMeanAttemptsPerRecovery() {
+        return mRecoveries == 0 ? 0 : (double) mRecoveryAttempts / mRecoveries;
+    }
+
+    public synchronized boolean isRecovering() {
+        return mRecoveryStartMillis >= 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "recoveries=" + mRecoveries + " attempts/recovery=" + getMeanAttemptsPerRecovery()
+                + " timeToRecover[" + mTimeToRecover + "]";
+    }
+}
@@ -0,0 +1,420 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.IOException;
+
+/**
+ * Compact columnar encoding of decoded RSC Measurements, one chunk of rows at a time.
+ * <p/>
+ * <p>Speed, cadence, stride length and total distance change slowly from one frame to the next, so
+ * each column is stored as the zig-zag varint of the difference to the previous row, mostly a
+ * single byte. Frames arrive at a steady rate, so timestamps are stored as the difference between
+ * consecutive deltas instead. Flags hardly ever change and are run-length encoded. A chunk is laid
+ * out as
+ * <pre>
+ *   u32 length   bytes after this field
+ *   timestamps   first value, first delta, then delta of deltas
+ *   speed, cadence, stride length, total distance   first value, then deltas
+ *   flags        (varint run length, u8 flags) pairs
+ *   footer       {@link #FOOTER_SIZE} bytes, see {@link Summary}
+ * </pre>
+ * Numbers of the length field and the footer are big endian. The footer sits at a fixed distance
+ * from the end, so a reader can look at a chunk's row count and value ranges and skip it without
+ * decoding anything.
+ * <p/>
+ * <p>A codec keeps the position of the chunk it works on; use one per thread.
+ */
+public final class RscChunkCodec {
+
+    public static final int LENGTH_SIZE = 4;
+    // Count, then min and max of timestamp, speed, cadence, stride length and total distance, then flags seen.
+    public static final int FOOTER_SIZE = 4 + 8 * 2 + 4 * 2 + 2 * 2 + 4 * 2 + 8 * 2 + 1;
+    // Longest varints of every column, and a run of one for the flags.
+    private static final int MAX_ROW_SIZE = 10 + 5 + 3 + 5 + 10 + 2;
+
+    /**
+     * Row count, value ranges and flags of a chunk, read from its footer.
+     */
+    public static final class Summary {
+        private int mCount;
+        private long mMinTimestamp;
+        private long mMaxTimestamp;
+        private int mMinSpeed;
+        private int mMaxSpeed;
+        private int mMinCadence;
+        private int mMaxCadence;
+        private int mMinStrideLength;
+        private int mMaxStrideLength;
+        private long mMinTotalDistance;
+        private long mMaxTotalDistance;
+        private int mFlags;
+        private int mChunkSize;
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getMinTimestamp() {
+            return mMinTimestamp;
+        }
+
+        public long getMaxTimestamp() {
+            return mMaxTimestamp;
+        }
+
+        public int getMinSpeed() {
+            return mMinSpeed;
+        }
+
+        public int getMaxSpeed() {
+            return mMaxSpeed;
+        }
+
+        public int getMinCadence() {
+            return mMinCadence;
+        }
+
+        public int getMaxCadence() {
+            return mMaxCadence;
+        }
+
+        public int getMinStrideLength() {
+            return mMinStrideLength;
+        }
+
+        public int getMaxStrideLength() {
+            return mMaxStrideLength;
+        }
+
+        public long getMinTotalDistance() {
+            return mMinTotalDistance;
+        }
+
+        public long getMaxTotalDistance() {
+            return mMaxTotalDistance;
+        }
+
+        /**
+         * @return every flag set in at least one row
+         */
+        public int getFlags() {
+            return mFlags;
+        }
+
+        /**
+         * @return bytes of the whole chunk, length field included
+         */
+        public int getChunkSize() {
+            return mChunkSize;
+        }
+    }
+
+    private byte[] mBuffer;
+    private int mPos;
+
+    /**
+     * @return bytes an encoded chunk of {@code rows} rows takes at most
+     */
+    public static int maxChunkSize(int rows) {
+        return LENGTH_SIZE + rows * MAX_ROW_SIZE + FOOTER_SIZE;
+    }
+
+    /**
+     * Encode rows {@code [from, from + count)} as one chunk.
+     *
+     * @param out    Destination, at least {@link #maxChunkSize(int)} bytes from {@code offset}
+     * @return offset just past the chunk
+     */
+    public int encode(RscMeasurementColumns in, int from, int count, byte[] out, int offset) {
+        if (count <= 0 || from < 0 || from + count > in.size()) {
+            throw new IllegalArgumentException("Invalid rows: " + from + "+" + count + " of " + in.size());
+        }
+        mBuffer = out;
+        mPos = offset + LENGTH_SIZE;
+        int end = from + count;
+
+        long[] timestamp = in.getTimestamp();
+        long previous = 0;
+        long previousDelta = 0;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        for (int i = from; i < end; i++) {
+            long value = timestamp[i];
+            long delta = value - previous;
+            writeSigned(delta - previousDelta);
+            // The first delta is taken from the first value, not from the previous delta.
+            previousDelta = i == from ? 0 : delta;
+            previous = value;
+            minTimestamp = Math.min(minTimestamp, value);
+            maxTimestamp = Math.max(maxTimestamp, value);
+        }
+
+        int[] speed = in.getSpeed();
+        int minSpeed = Integer.MAX_VALUE;
+        int maxSpeed = Integer.MIN_VALUE;
+        previous = 0;
+        for (int i = from; i < end; i++) {
+            int value = speed[i];
+            writeSigned(value - previous);
+            previous = value;
+            minSpeed = Math.min(minSpeed, value);
+            maxSpeed = Math.max(maxSpeed, value);
+        }
+
+        short[] cadence = in.getCadence();
+        int minCadence = Integer.MAX_VALUE;
+        int maxCadence = Integer.MIN_VALUE;
+        previous = 0;
+        for (int i = from; i < end; i++) {
+            int value = cadence[i];
+            writeSigned(value - previous);
+            previous = value;
+            minCadence = Math.min(minCadence, value);
+            maxCadence = Math.max(maxCadence, value);
+        }
+
+        int[] strideLength = in.getStrideLength();
+        int minStrideLength = Integer.MAX_VALUE;
+        int maxStrideLength = Integer.MIN_VALUE;
+        previous = 0;
+        for (int i = from; i < end; i++) {
+            int value = strideLength[i];
+            writeSigned(value - previous);
+            previous = value;
+            minStrideLength = Math.min(minStrideLength, value);
+            maxStrideLength = Math.max(maxStrideLength, value);
+        }
+
+        long[] totalDistance = in.getTotalDistance();
+        long minTotalDistance = Long.MAX_VALUE;
+        long maxTotalDistance = Long.MIN_VALUE;
+        previous = 0;
+        for (int i = from; i < end; i++) {
+            long value = totalDistance[i];
+            writeSigned(value - previous);
+            previous = value;
+            minTotalDistance = Math.min(minTotalDistance, value);
+            maxTotalDistance = Math.max(maxTotalDistance, value);
+        }
+
+        byte[] flags = in.getFlags();
+        int allFlags = 0;
+        for (int i = from; i < end; ) {
+            byte value = flags[i];
+            int run = i + 1;
+            while (run < end && flags[run] == value) {
+                run++;
+            }
+            writeUnsigned(run - i);
+            out[mPos++] = value;
+            allFlags |= value & 0xFF;
+            i = run;
+        }
+
+        writeInt(count);
+        writeLong(minTimestamp);
+        writeLong(maxTimestamp);
+        writeInt(minSpeed);
+        writeInt(maxSpeed);
+        writeShort(minCadence);
+        writeShort(maxCadence);
+        writeInt(minStrideLength);
+        writeInt(maxStrideLength);
+        writeLong(minTotalDistance);
+        writeLong(maxTotalDistance);
+        out[mPos++] = (byte) allFlags;
+
+        int chunkEnd = mPos;
+        mPos = offset;
+        writeInt(chunkEnd - offset - LENGTH_SIZE);
+        mBuffer = null;
+        return chunkEnd;
+    }
+
+    /**
+     * Read the footer of the chunk starting at {@code offset}, without decoding it.
+     *
+     * @throws IOException if the chunk is malformed or does not fit within {@code limit}
+     */
+    public void readSummary(byte[] in, int offset, int limit, Summary out) throws IOException {
+        mBuffer = in;
+        try {
+            mPos = offset;
+            int chunkEnd = chunkEnd(limit);
+            mPos = chunkEnd - FOOTER_SIZE;
+            out.mCount = readInt();
+            out.mMinTimestamp = readLong();
+            out.mMaxTimestamp = readLong();
+            out.mMinSpeed = readInt();
+            out.mMaxSpeed = readInt();
+            out.mMinCadence = readShort();
+            out.mMaxCadence = readShort();
+            out.mMinStrideLength = readInt();
+            out.mMaxStrideLength = readInt();
+            out.mMinTotalDistance = readLong();
+            out.mMaxTotalDistance = readLong();
+            out.mFlags = in[mPos] & 0xFF;
+            out.mChunkSize = chunkEnd - offset;
+            if (out.mCount <= 0) {
+                throw new IOException("Malformed chunk at " + offset);
+            }
+        } finally {
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * Decode the chunk starting at {@code offset}, appending its rows.
+     *
+     * @return offset just past the chunk
+     * @throws IOException if the chunk is malformed or does not fit within {@code limit}; some rows
+     *                     may have been appended then
+     */
+    public int decode(byte[] in, int offset, int limit, RscMeasurementColumns out) throws IOException {
+        mBuffer = in;
+        try {
+            mPos = offset;
+            int chunkEnd = chunkEnd(limit);
+            int bodyEnd = chunkEnd - FOOTER_SIZE;
+            mPos = bodyEnd;
+            int count = readInt();
+            if (count <= 0 || count > bodyEnd - offset) {
+                throw new IOException("Malformed chunk at " + offset);
+            }
+            mPos = offset + LENGTH_SIZE;
+            int from = out.extend(count);
+            int end = from + count;
+
+            long[] timestamp = out.getTimestamp();
+            long previous = 0;
+            long previousDelta = 0;
+            for (int i = from; i < end; i++) {
+                long delta = previousDelta + readSigned();
+                previous += delta;
+                timestamp[i] = previous;
+                previousDelta = i == from ? 0 : delta;
+            }
+
+            int[] speed = out.getSpeed();
+            previous = 0;
+            for (int i = from; i < end; i++) {
+                previous += readSigned();
+                speed[i] = (int) previous;
+            }
+
+            short[] cadence = out.getCadence();
+            previous = 0;
+            for (int i = from; i < end; i++) {
+                previous += readSigned();
+                cadence[i] = (short) previous;
+            }
+
+            int[] strideLength = out.getStrideLength();
+            previous = 0;
+            for (int i = from; i < end; i++) {
+                previous += readSigned();
+                strideLength[i] = (int) previous;
+            }
+
+            long[] totalDistance = out.getTotalDistance();
+            previous = 0;
+            for (int i = from; i < end; i++) {
+                previous += readSigned();
+                totalDistance[i] = previous;
+            }
+
+            byte[] flags = out.getFlags();
+            for (int i = from; i < end; ) {
+                long run = readUnsigned();
+                if (run <= 0 || run > end - i) {
+                    throw new IOException("Malformed flags at " + mPos);
+                }
+                byte value = in[mPos++];
+                for (int stop = i + (int) run; i < stop; i++) {
+                    flags[i] = value;
+                }
+            }
+            if (mPos > bodyEnd) {
+                throw new IOException("Malformed chunk at " + offset);
+            }
+            return chunkEnd;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated chunk at " + offset);
+        } finally {
+            mBuffer = null;
+        }
+    }
+
+    // Reads the length field at mPos.
+    private int chunkEnd(int limit) throws IOException {
+        int offset = mPos;
+        if (limit - offset < LENGTH_SIZE + FOOTER_SIZE) {
+            throw new IOException("Truncated chunk at " + offset);
+        }
+        int length = readInt();
+        if (length < FOOTER_SIZE || length > limit - offset - LENGTH_SIZE) {
+            throw new IOException("Malformed chunk at " + offset + ", length " + length);
+        }
+        return offset + LENGTH_SIZE + length;
+    }
+
+    private void writeSigned(long value) {
+        writeUnsigned(value << 1 ^ value >> 63);
+    }
+
+    private void writeUnsigned(long value) {
+        byte[] out = mBuffer;
+        int pos = mPos;
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        mPos = pos;
+    }
+
+    private long readSigned() {
+        long value = readUnsigned();
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    private long readUnsigned() {
+        byte[] in = mBuffer;
+        int pos = mPos;
+        byte b = in[pos++];
+        long value = b & 0x7F;
+        // Mostly one byte, see the class comment.
+        for (int shift = 7; b < 0; shift += 7) {
+            b = in[pos++];
+            value |= (long) (b & 0x7F) << shift;
+        }
+        mPos = pos;
+        return value;
+    }
+
+    private void writeShort(int value) {
+        mBuffer[mPos++] = (byte) (value >>> 8);
+        mBuffer[mPos++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        writeShort(value >>> 16);
+        writeShort(value);
+    }
+
+    private void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    private int readShort() {
+        return (short) ((mBuffer[mPos++] & 0xFF) << 8 | mBuffer[mPos++] & 0xFF);
+    }
+
+    private int readInt() {
+        return (readShort() & 0xFFFF) << 16 | readShort() & 0xFFFF;
+    }
+
+    private long readLong() {
+        return (long) readInt() << 32 | readInt() & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.File;
+
+/**
+ * Layout of the measurement files written by {@link RscChunkWriter}: a {@link #HEADER_SIZE}-byte
+ * header of magic, version and rows per chunk, then chunks back to back, see {@link RscChunkCodec}.
+ * The header is big endian. One file holds the measurements of one device.
+ * <p/>
+ * <p>Each measurement file has a sparse index next to it, named after it plus {@link #INDEX_SUFFIX}:
+ * a {@link #INDEX_HEADER_SIZE}-byte header of magic and version, then one {@link #INDEX_ENTRY_SIZE}-byte
+ * entry per chunk, the chunk's first timestamp and its byte offset in the measurement file, both
+ * i64 big endian. See {@link RscChunkIndex}.
+ */
+public final class RscChunkFormat {
+
+    public static final int MAGIC = 0x52434331; // "RCC1"
+    public static final int VERSION = 1;
+    public static final String FILE_SUFFIX = ".rcc";
+
+    public static final int HEADER_SIZE = 8;
+    public static final int HEADER_MAGIC = 0;
+    public static final int HEADER_VERSION = 4;
+    public static final int HEADER_CHUNK_ROWS = 6;
+
+    public static final int INDEX_MAGIC = 0x52434931; // "RCI1"
+    public static final int INDEX_VERSION = 1;
+    public static final String INDEX_SUFFIX = ".idx";
+
+    public static final int INDEX_HEADER_SIZE = 8;
+    public static final int INDEX_ENTRY_SIZE = 16;
+
+    private RscChunkFormat() {
+    }
+
+    /**
+     * @param address device address packed by {@link RscFrameFormat#packAddress(String)}
+     * @return name of the device's measurement file, e.g. {@code 001122AABBCC.rcc}
+     */
+    public static String fileName(long address) {
+        StringBuilder name = new StringBuilder(16);
+        String digits = Long.toHexString(address).toUpperCase();
+        for (int i = digits.length(); i < 12; i++) {
+            name.append('0');
+        }
+        return name.append(digits).append(FILE_SUFFIX).toString();
+    }
+
+    /**
+     * @return the index of a measurement file
+     */
+    public static File indexFile(File file) {
+        return new File(file.getPath() + INDEX_SUFFIX);
+    }
+}
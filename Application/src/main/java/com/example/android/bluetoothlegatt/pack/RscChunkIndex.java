@@ -0,0 +1,86 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sparse time index of a measurement file: the first timestamp and the offset of every chunk, see
+ * {@link RscChunkFormat}.
+ * <p/>
+ * <p>The index is mapped read-only and searched in place, so opening a recording of any length is
+ * instant and finding the chunk of a point in time takes a binary search over a few hundred entries
+ * per day of recording. Timestamps are expected not to decrease within a file, which holds for the
+ * elapsed realtime measurements are stamped with. An entry cut short by a crash is ignored.
+ */
+public final class RscChunkIndex {
+
+    private final MappedByteBuffer mBuffer;
+    private final int mSize;
+
+    private RscChunkIndex(MappedByteBuffer buffer) {
+        mBuffer = buffer;
+        mSize = (buffer.limit() - RscChunkFormat.INDEX_HEADER_SIZE) / RscChunkFormat.INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * @throws IOException if the file cannot be mapped or is not an index
+     */
+    public static RscChunkIndex load(File file) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < RscChunkFormat.INDEX_HEADER_SIZE
+                || buffer.getInt(0) != RscChunkFormat.INDEX_MAGIC
+                || buffer.getShort(4) != RscChunkFormat.INDEX_VERSION) {
+            throw new IOException("Not an index: " + file);
+        }
+        return new RscChunkIndex(buffer);
+    }
+
+    /**
+     * @return number of chunks indexed
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return first timestamp of chunk {@code index}
+     */
+    public long getTimestamp(int index) {
+        return mBuffer.getLong(RscChunkFormat.INDEX_HEADER_SIZE + index * RscChunkFormat.INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * @return offset of chunk {@code index} in the measurement file
+     */
+    public long getOffset(int index) {
+        return mBuffer.getLong(RscChunkFormat.INDEX_HEADER_SIZE + index * RscChunkFormat.INDEX_ENTRY_SIZE + 8);
+    }
+
+    /**
+     * @return the last chunk starting at or before {@code timestampNanos}, so the chunk holding it if
+     * any; 0 if every chunk starts later, -1 if the index is empty
+     */
+    public int floor(long timestampNanos) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getTimestamp(mid) <= timestampNanos) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return mSize == 0 ? -1 : Math.max(high, 0);
+    }
+}
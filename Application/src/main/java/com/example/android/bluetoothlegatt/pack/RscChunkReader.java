@@ -0,0 +1,226 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a measurement file written by {@link RscChunkWriter} chunk by chunk.
+ * <p/>
+ * <p>The file is mapped read-only. {@link #readSummary} looks at the footer of the next chunk, so
+ * chunks outside the range of interest can be {@link #skip() skipped} without decoding. A chunk cut
+ * short, e.g. by a crash while recording, ends the file. Only plain Java is used.
+ * <p/>
+ * <p>{@link #read(long, long, RscMeasurementColumns)} answers time range queries: it finds the first
+ * chunk of the range in the file's {@link RscChunkIndex} and decodes only the chunks overlapping the
+ * range. Without a readable index it falls back to walking the chunk footers from the start.
+ */
+public final class RscChunkReader implements Closeable {
+
+    private final File mFile;
+    private final int mChunkRows;
+    private final RscChunkCodec mCodec = new RscChunkCodec();
+    private final RscChunkCodec.Summary mSummary = new RscChunkCodec.Summary();
+    private MappedByteBuffer mBuffer;
+    private byte[] mChunk;
+    private final RscChunkIndex mIndex;
+
+    /**
+     * @throws IOException if the file cannot be mapped or is not a measurement file
+     */
+    public RscChunkReader(File file) throws IOException {
+        mFile = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping outlives the channel.
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (mBuffer.limit() < RscChunkFormat.HEADER_SIZE
+                || mBuffer.getInt(RscChunkFormat.HEADER_MAGIC) != RscChunkFormat.MAGIC
+                || mBuffer.getShort(RscChunkFormat.HEADER_VERSION) != RscChunkFormat.VERSION) {
+            throw new IOException("Not a measurement file: " + file);
+        }
+        mChunkRows = mBuffer.getShort(RscChunkFormat.HEADER_CHUNK_ROWS) & 0xFFFF;
+        mChunk = new byte[RscChunkCodec.maxChunkSize(mChunkRows)];
+        mBuffer.position(RscChunkFormat.HEADER_SIZE);
+
+        RscChunkIndex index = null;
+        File indexFile = RscChunkFormat.indexFile(file);
+        if (indexFile.isFile()) {
+            try {
+                index = RscChunkIndex.load(indexFile);
+            } catch (IOException e) {
+                // Range queries walk the footers instead.
+            }
+        }
+        mIndex = index;
+    }
+
+    /**
+     * Decode the rows stamped within {@code [fromNanos, toNanos)}, appending them. Reading goes on
+     * after the last chunk looked at.
+     *
+     * @return number of rows appended
+     */
+    public int read(long fromNanos, long toNanos, RscMeasurementColumns out) throws IOException {
+        int first = mIndex == null ? -1 : mIndex.floor(fromNanos);
+        seek(first < 0 ? RscChunkFormat.HEADER_SIZE : mIndex.getOffset(first));
+        int start = out.size();
+        while (readSummary(mSummary)) {
+            if (mSummary.getMinTimestamp() >= toNanos) {
+                break;
+            }
+            if (mSummary.getMaxTimestamp() < fromNanos) {
+                skip();
+                continue;
+            }
+            int chunkStart = out.size();
+            next(out);
+            if (mSummary.getMinTimestamp() < fromNanos || mSummary.getMaxTimestamp() >= toNanos) {
+                out.truncate(chunkStart + retain(out, chunkStart, fromNanos, toNanos));
+            }
+        }
+        return out.size() - start;
+    }
+
+    // Moves the rows of [from, size()) within the range to the front, returns their count.
+    private static int retain(RscMeasurementColumns columns, int from, long fromNanos, long toNanos) {
+        long[] timestamp = columns.getTimestamp();
+        int[] speed = columns.getSpeed();
+        short[] cadence = columns.getCadence();
+        int[] strideLength = columns.getStrideLength();
+        long[] totalDistance = columns.getTotalDistance();
+        byte[] flags = columns.getFlags();
+        int kept = from;
+        for (int i = from, size = columns.size(); i < size; i++) {
+            if (timestamp[i] < fromNanos || timestamp[i] >= toNanos) {
+                continue;
+            }
+            timestamp[kept] = timestamp[i];
+            speed[kept] = speed[i];
+            cadence[kept] = cadence[i];
+            strideLength[kept] = strideLength[i];
+            totalDistance[kept] = totalDistance[i];
+            flags[kept] = flags[i];
+            kept++;
+        }
+        return kept - from;
+    }
+
+    /**
+     * Read the footer of the next chunk, without moving past it.
+     *
+     * @return false at the end of the file
+     */
+    public boolean readSummary(RscChunkCodec.Summary out) throws IOException {
+        return load() && summarize(out);
+    }
+
+    private boolean summarize(RscChunkCodec.Summary out) {
+        try {
+            mCodec.readSummary(mChunk, 0, mChunk.length, out);
+            return true;
+        } catch (IOException e) {
+            // Torn, see the class comment.
+            mBuffer.position(mBuffer.limit());
+            return false;
+        }
+    }
+
+    /**
+     * Decode the next chunk, appending its rows.
+     *
+     * @return false at the end of the file
+     */
+    public boolean next(RscMeasurementColumns out) throws IOException {
+        if (!load() || !summarize(mSummary)) {
+            return false;
+        }
+        mCodec.decode(mChunk, 0, mSummary.getChunkSize(), out);
+        mBuffer.position(mBuffer.position() + mSummary.getChunkSize());
+        return true;
+    }
+
+    /**
+     * Move past the next chunk without decoding it.
+     *
+     * @return false at the end of the file
+     */
+    public boolean skip() throws IOException {
+        if (!load() || !summarize(mSummary)) {
+            return false;
+        }
+        mBuffer.position(mBuffer.position() + mSummary.getChunkSize());
+        return true;
+    }
+
+    // Copies the next chunk, as far as the file goes, to the start of mChunk.
+    private boolean load() throws IOException {
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            throw new IOException("Closed");
+        }
+        int position = buffer.position();
+        if (buffer.remaining() < RscChunkCodec.LENGTH_SIZE) {
+            return false;
+        }
+        int size = RscChunkCodec.LENGTH_SIZE + buffer.getInt(position);
+        if (size <= RscChunkCodec.LENGTH_SIZE || size > buffer.remaining()) {
+            buffer.position(buffer.limit());
+            return false;
+        }
+        if (size > mChunk.length) {
+            // Only for files written with other chunk sizes.
+            mChunk = new byte[size];
+        }
+        buffer.get(mChunk, 0, size);
+        buffer.position(position);
+        return true;
+    }
+
+    /**
+     * @return byte offset of the next chunk in the file
+     */
+    public long getPosition() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Continue at the chunk starting at {@code offset}, e.g. one found in an index.
+     */
+    public void seek(long offset) {
+        if (offset < RscChunkFormat.HEADER_SIZE || offset > mBuffer.limit()) {
+            throw new IllegalArgumentException("Invalid offset: " + offset);
+        }
+        mBuffer.position((int) offset);
+    }
+
+    /**
+     * Rows per chunk the file was written with; the last chunk may hold fewer.
+     */
+    public int getChunkRows() {
+        return mChunkRows;
+    }
+
+    /**
+     * @return the file's index, null if it has none or it is unreadable
+     */
+    public RscChunkIndex getIndex() {
+        return mIndex;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public void close() {
+        mBuffer = null;
+    }
+}
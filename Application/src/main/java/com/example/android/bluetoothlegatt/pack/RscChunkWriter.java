@@ -0,0 +1,192 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends the measurements of one device to a file of {@link RscChunkCodec} chunks, see
+ * {@link RscChunkFormat}. Every chunk is indexed once it is written, see {@link RscChunkIndex}.
+ * <p/>
+ * <p>Rows are collected in columns and encoded a chunk of {@link #DEFAULT_CHUNK_ROWS} at a time into
+ * one reusable buffer, so appending does not allocate and the file is written in large blocks.
+ * Can subscribe to a {@link RscMeasurementBus} directly; errors of such appends are kept for
+ * {@link #getError()} and stop the writer.
+ */
+public final class RscChunkWriter implements RscMeasurementBus.Listener {
+
+    public static final int DEFAULT_CHUNK_ROWS = 1024;
+
+    private final File mFile;
+    private final int mChunkRows;
+    private final RscChunkCodec mCodec = new RscChunkCodec();
+    private final RscMeasurementColumns mColumns;
+    private final byte[] mChunk;
+    private FileOutputStream mOut;
+    private FileChannel mChannel;
+    private FileOutputStream mIndexOut;
+    private final ByteBuffer mIndexEntry = ByteBuffer.allocate(RscChunkFormat.INDEX_ENTRY_SIZE);
+
+    private long mRows;
+    private long mBytes;
+    private IOException mError;
+
+    public RscChunkWriter(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_ROWS);
+    }
+
+    /**
+     * @param chunkRows Rows per chunk, up to 65535. Larger chunks compress a little better, smaller
+     *                  ones make seeking finer.
+     */
+    public RscChunkWriter(File file, int chunkRows) throws IOException {
+        if (chunkRows <= 0 || chunkRows > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid chunk rows: " + chunkRows);
+        }
+        mFile = file;
+        mChunkRows = chunkRows;
+        mColumns = new RscMeasurementColumns(chunkRows);
+        mChunk = new byte[Math.max(RscChunkFormat.HEADER_SIZE, RscChunkCodec.maxChunkSize(chunkRows))];
+        mOut = new FileOutputStream(file);
+        mChannel = mOut.getChannel();
+        try {
+            mIndexOut = new FileOutputStream(RscChunkFormat.indexFile(file));
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(mChunk, 0, RscChunkFormat.HEADER_SIZE);
+        header.putInt(RscChunkFormat.MAGIC);
+        header.putShort((short) RscChunkFormat.VERSION);
+        header.putShort((short) chunkRows);
+        write(RscChunkFormat.HEADER_SIZE);
+
+        mIndexEntry.putInt(RscChunkFormat.INDEX_MAGIC);
+        mIndexEntry.putShort((short) RscChunkFormat.INDEX_VERSION);
+        mIndexEntry.putShort((short) 0);
+        mIndexEntry.limit(RscChunkFormat.INDEX_HEADER_SIZE);
+        writeIndex();
+    }
+
+    /**
+     * Append one row; the chunk is written once full.
+     */
+    public synchronized void append(long timestampNanos, RscMeasurement measurement) throws IOException {
+        if (mChannel == null) {
+            throw new IOException("Closed");
+        }
+        mColumns.add(timestampNanos, measurement.getFlags(), measurement.getInstantaneousSpeed(),
+                measurement.getInstantaneousCadence(), measurement.getInstantaneousStrideLength(),
+                measurement.getTotalDistance());
+        mRows++;
+        if (mColumns.size() == mChunkRows) {
+            writeChunk();
+        }
+    }
+
+    @Override
+    public synchronized void onMeasurement(long timestampNanos, RscMeasurement measurement) {
+        if (mError != null) {
+            return;
+        }
+        try {
+            append(timestampNanos, measurement);
+        } catch (IOException e) {
+            mError = e;
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Write the rows collected so far as a chunk of their own.
+     */
+    public synchronized void flush() throws IOException {
+        if (mChannel != null && mColumns.size() > 0) {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    public synchronized void close() throws IOException {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        long timestamp = mColumns.getTimestamp()[0];
+        long offset = mBytes;
+        int length = mCodec.encode(mColumns, 0, mColumns.size(), mChunk, 0);
+        mColumns.clear();
+        write(length);
+        // Only once the chunk is in the file, so the index never points past its end.
+        mIndexEntry.putLong(timestamp);
+        mIndexEntry.putLong(offset);
+        writeIndex();
+    }
+
+    private void writeIndex() throws IOException {
+        mIndexEntry.flip();
+        FileChannel channel = mIndexOut.getChannel();
+        while (mIndexEntry.hasRemaining()) {
+            channel.write(mIndexEntry);
+        }
+        mIndexEntry.clear();
+    }
+
+    private void write(int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(mChunk, 0, length);
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+        mBytes += length;
+    }
+
+    private void closeQuietly() {
+        try {
+            mOut.close();
+        } catch (IOException ignored) {
+        }
+        if (mIndexOut != null) {
+            try {
+                mIndexOut.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mChannel = null;
+        mOut = null;
+        mIndexOut = null;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized long getRowCount() {
+        return mRows;
+    }
+
+    /**
+     * @return bytes written to the file so far, rows not yet flushed excluded
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * @return the error that stopped {@link #onMeasurement}, or null
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manages one {@link BluetoothRscp} per remote device, for hubs following several foot pods at once.
+ * <p/>
+ * <p>Each device has its own profile state, its own {@link GattConnection} and therefore its own
+ * processing thread; the pool only maps addresses to profiles. Lookups never lock, and devices
+ * never wait on each other.
+ */
+public final class RscConnectionPool implements BluetoothProfile {
+
+    private static final String TAG = RscConnectionPool.class.getSimpleName();
+
+    /**
+     * Creates the callback of a newly pooled device.
+     */
+    public interface CallbackFactory {
+        BluetoothRscpCallback create(BluetoothDevice device);
+    }
+
+    private final Context mContext;
+    private final CallbackFactory mCallbackFactory;
+    private final ConcurrentHashMap<String, BluetoothRscp> mProfiles = new ConcurrentHashMap<String, BluetoothRscp>();
+
+    public RscConnectionPool(Context context, CallbackFactory callbackFactory) {
+        mContext = context;
+        mCallbackFactory = callbackFactory;
+    }
+
+    /**
+     * Connect to a device, adding it to the pool if needed.
+     *
+     * @return the device's profile, or null if the connection could not be initiated
+     */
+    public BluetoothRscp connect(BluetoothDevice device, boolean autoConnect) {
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return null;
+        }
+        String address = device.getAddress();
+        BluetoothRscp rscp = mProfiles.get(address);
+        if (rscp == null) {
+            BluetoothRscp created = new BluetoothRscp(mContext, mCallbackFactory.create(device));
+            rscp = mProfiles.putIfAbsent(address, created);
+            if (rscp == null) {
+                rscp = created;
+            }
+        }
+        return rscp.connect(device, autoConnect) ? rscp : null;
+    }
+
+    public void disconnect(BluetoothDevice device) {
+        BluetoothRscp rscp = mProfiles.get(device.getAddress());
+        if (rscp != null) {
+            rscp.disconnect();
+        }
+    }
+
+    /**
+     * Close a device's profile and remove it from the pool.
+     */
+    public void close(BluetoothDevice device) {
+        BluetoothRscp rscp = mProfiles.remove(device.getAddress());
+        if (rscp != null) {
+            rscp.close();
+        }
+    }
+
+    public void closeAll() {
+        for (String address : mProfiles.keySet()) {
+            BluetoothRscp rscp = mProfiles.remove(address);
+            if (rscp != null) {
+                rscp.close();
+            }
+        }
+    }
+
+    /**
+     * @return the profile of a pooled device, or null
+     */
+    public BluetoothRscp get(String address) {
+        return mProfiles.get(address);
+    }
+
+    public Collection<BluetoothRscp> getProfiles() {
+        return mProfiles.values();
+    }
+
+    public int size() {
+        return mProfiles.size();
+    }
+
+    @Override
+    public List<BluetoothDevice> getConnectedDevices() {
+        return getDevicesMatchingConnectionStates(new int[]{STATE_CONNECTED});
+    }
+
+    @Override
+    public List<BluetoothDevice> getDevicesMatchingConnectionStates(int[] states) {
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+        for (BluetoothRscp rscp : mProfiles.values()) {
+            devices.addAll(rscp.getDevicesMatchingConnectionStates(states));
+        }
+        return devices;
+    }
+
+    @Override
+    public int getConnectionState(BluetoothDevice device) {
+        if (device == null) {
+            return STATE_DISCONNECTED;
+        }
+        BluetoothRscp rscp = mProfiles.get(device.getAddress());
+        return rscp == null ? STATE_DISCONNECTED : rscp.getConnectionState(device);
+    }
+}
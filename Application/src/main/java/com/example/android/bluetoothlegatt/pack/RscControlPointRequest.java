@@ -0,0 +1,141 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle on one SC Control Point procedure started through {@link BluetoothRscp}.
+ * <p/>
+ * <p>The request completes when the matching response indication arrives
+ * ({@code 0x10 | request op code | result code | response parameter}), when writing the request
+ * fails, or when the procedure times out. Listeners are notified exactly once, on the thread that
+ * completed the request.
+ */
+public final class RscControlPointRequest {
+
+    public static final int RESULT_SUCCESS = 0x01;
+    public static final int RESULT_OP_CODE_NOT_SUPPORTED = 0x02;
+    public static final int RESULT_INVALID_PARAMETER = 0x03;
+    public static final int RESULT_OPERATION_FAILED = 0x04;
+
+    /**
+     * No response indication arrived before the deadline.
+     */
+    public static final int RESULT_TIMEOUT = -1;
+    /**
+     * The request could not be written to the sensor.
+     */
+    public static final int RESULT_WRITE_FAILED = -2;
+    /**
+     * The link went down or the profile was closed before the response.
+     */
+    public static final int RESULT_DISCONNECTED = -3;
+    /**
+     * Indications on the control point are not enabled, so no response could ever arrive.
+     */
+    public static final int RESULT_INDICATION_DISABLED = -4;
+
+    private static final int RESULT_PENDING = 0;
+
+    public interface Listener {
+        void onComplete(RscControlPointRequest request);
+    }
+
+    private final int mOpCode;
+    private final byte[] mValue;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private int mResultCode = RESULT_PENDING;
+    private byte[] mResponseParameter = new byte[0];
+
+    long mDeadlineMillis;
+
+    RscControlPointRequest(int opCode, byte[] value) {
+        mOpCode = opCode;
+        mValue = value;
+    }
+
+    int getOpCode() {
+        return mOpCode;
+    }
+
+    byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * Complete the request.
+     *
+     * @return false if it was already complete
+     */
+    boolean complete(int resultCode, byte[] responseParameter) {
+        ArrayList<Listener> listeners;
+        synchronized (this) {
+            if (mResultCode != RESULT_PENDING) {
+                return false;
+            }
+            mResultCode = resultCode;
+            if (responseParameter != null) {
+                mResponseParameter = responseParameter;
+            }
+            listeners = new ArrayList<Listener>(mListeners);
+            mListeners.clear();
+        }
+        mDone.countDown();
+        for (Listener listener : listeners) {
+            listener.onComplete(this);
+        }
+        return true;
+    }
+
+    /**
+     * Register a listener, it is called immediately if the request is already complete.
+     */
+    public RscControlPointRequest addListener(Listener listener) {
+        synchronized (this) {
+            if (mResultCode == RESULT_PENDING) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        listener.onComplete(this);
+        return this;
+    }
+
+    /**
+     * Block until the request completes.
+     *
+     * @return false if it is still pending after {@code timeoutMillis}
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        return mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isDone() {
+        return mResultCode != RESULT_PENDING;
+    }
+
+    public synchronized boolean isSuccessful() {
+        return mResultCode == RESULT_SUCCESS;
+    }
+
+    /**
+     * @return the response value sent by the sensor, one of the {@code RESULT_*} failure codes, or 0 while pending
+     */
+    public synchronized int getResultCode() {
+        return mResultCode;
+    }
+
+    /**
+     * Response parameter following the result code, e.g. the supported sensor locations. Empty if none.
+     */
+    public synchronized byte[] getResponseParameter() {
+        return mResponseParameter;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RscControlPointRequest{opCode=" + mOpCode + ", result=" + mResultCode + "}";
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Exports recorded measurements as a FIT activity file.
+ * <p/>
+ * <p>The file holds a file_id message, one record message per row with timestamp, distance, speed,
+ * cadence, step length and activity type, then a lap, a session and an activity message. Every
+ * message has a fixed size, so the data size the header needs is known from the row count alone
+ * and the file is written in one pass. Bytes go through one {@link #BUFFER_SIZE} buffer, and the
+ * CRC is updated each time it is drained to the channel.
+ * <p/>
+ * <p>Cadence is exported the FIT way, strides per minute with the odd step as fractional
+ * cadence. Fields a row does not carry are written as invalid.
+ * <p/>
+ * <p>FIT timestamps are whole seconds. Every row is kept, so a sensor notifying at 2 to 4 Hz
+ * yields as many records sharing each timestamp, in the order they were measured; readers that want
+ * one record per second have to pick or average them.
+ */
+public final class RscFitExporter extends RscSessionExporter {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    // Seconds from the Unix epoch to the FIT epoch, 1989-12-31T00:00:00Z.
+    private static final long FIT_EPOCH_OFFSET = 631065600L;
+
+    private static final int HEADER_SIZE = 14;
+    private static final int PROTOCOL_VERSION = 0x10;
+    private static final int PROFILE_VERSION = 2093;
+    private static final int CRC_SIZE = 2;
+
+    private static final int MESG_FILE_ID = 0;
+    private static final int MESG_SESSION = 18;
+    private static final int MESG_LAP = 19;
+    private static final int MESG_RECORD = 20;
+    private static final int MESG_ACTIVITY = 34;
+
+    private static final int LOCAL_FILE_ID = 0;
+    private static final int LOCAL_RECORD = 1;
+    private static final int LOCAL_LAP = 2;
+    private static final int LOCAL_SESSION = 3;
+    private static final int LOCAL_ACTIVITY = 4;
+
+    private static final int DEFINITION = 0x40;
+
+    private static final int ENUM = 0x00;
+    private static final int UINT8 = 0x02;
+    private static final int UINT16 = 0x84;
+    private static final int UINT32 = 0x86;
+
+    private static final int FIELD_TIMESTAMP = 253;
+
+    private static final int FILE_ACTIVITY = 4;
+    private static final int MANUFACTURER_DEVELOPMENT = 255;
+    private static final int SPORT_RUNNING = 1;
+    private static final int SPORT_WALKING = 11;
+    private static final int ACTIVITY_TYPE_RUNNING = 1;
+    private static final int ACTIVITY_TYPE_WALKING = 6;
+    private static final int EVENT_SESSION = 8;
+    private static final int EVENT_LAP = 9;
+    private static final int EVENT_ACTIVITY = 26;
+    private static final int EVENT_TYPE_STOP = 1;
+
+    // Field number, size and base type of each message.
+    private static final int[] FILE_ID_FIELDS = {
+            0, 1, ENUM,      // type
+            1, 2, UINT16,    // manufacturer
+            2, 2, UINT16,    // product
+            4, 4, UINT32,    // time_created
+    };
+    private static final int[] RECORD_FIELDS = {
+            FIELD_TIMESTAMP, 4, UINT32,
+            5, 4, UINT32,    // distance, 1/100 m
+            6, 2, UINT16,    // speed, 1/1000 m/s
+            4, 1, UINT8,     // cadence, strides/min
+            53, 1, UINT8,    // fractional_cadence, 1/128 strides/min
+            85, 2, UINT16,   // step_length, 1/10 mm
+            42, 1, ENUM,     // activity_type
+    };
+    // Lap and session carry the same fields, only the number of the sport field differs.
+    private static final int[] LAP_FIELDS = {
+            FIELD_TIMESTAMP, 4, UINT32,
+            0, 1, ENUM,      // event
+            1, 1, ENUM,      // event_type
+            2, 4, UINT32,    // start_time
+            7, 4, UINT32,    // total_elapsed_time, ms
+            8, 4, UINT32,    // total_timer_time, ms
+            9, 4, UINT32,    // total_distance, 1/100 m
+            25, 1, ENUM,     // sport
+    };
+    private static final int[] SESSION_FIELDS = {
+            FIELD_TIMESTAMP, 4, UINT32,
+            0, 1, ENUM,      // event
+            1, 1, ENUM,      // event_type
+            2, 4, UINT32,    // start_time
+            7, 4, UINT32,    // total_elapsed_time, ms
+            8, 4, UINT32,    // total_timer_time, ms
+            9, 4, UINT32,    // total_distance, 1/100 m
+            5, 1, ENUM,      // sport
+    };
+    private static final int[] ACTIVITY_FIELDS = {
+            FIELD_TIMESTAMP, 4, UINT32,
+            0, 4, UINT32,    // total_timer_time, ms
+            1, 2, UINT16,    // num_sessions
+            2, 1, ENUM,      // type, manual
+            3, 1, ENUM,      // event
+            4, 1, ENUM,      // event_type
+    };
+
+    private static final int[] CRC_TABLE = {
+            0x0000, 0xCC01, 0xD801, 0x1400, 0xF001, 0x3C00, 0x2800, 0xE401,
+            0xA001, 0x6C00, 0x7800, 0xB401, 0x5000, 0x9C01, 0x8801, 0x4400
+    };
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel mOut;
+    private Totals mTotals;
+    private int mCrc;
+
+    /**
+     * @see RscSessionExporter#RscSessionExporter(long, long)
+     */
+    public RscFitExporter(long startWallMillis, long startElapsedNanos) {
+        super(startWallMillis, startElapsedNanos);
+    }
+
+    @Override
+    protected void begin(FileChannel out, Totals totals) throws IOException {
+        mOut = out;
+        mTotals = totals;
+        mCrc = 0;
+        mBuffer.clear();
+
+        long dataSize = definitionSize(FILE_ID_FIELDS) + messageSize(FILE_ID_FIELDS)
+                + definitionSize(RECORD_FIELDS) + totals.getRows() * messageSize(RECORD_FIELDS)
+                + definitionSize(LAP_FIELDS) + messageSize(LAP_FIELDS)
+                + definitionSize(SESSION_FIELDS) + messageSize(SESSION_FIELDS)
+                + definitionSize(ACTIVITY_FIELDS) + messageSize(ACTIVITY_FIELDS);
+        if (dataSize > 0xFFFFFFFFL) {
+            throw new IOException("Too many rows for a FIT file: " + totals.getRows());
+        }
+        mBuffer.put((byte) HEADER_SIZE);
+        mBuffer.put((byte) PROTOCOL_VERSION);
+        mBuffer.putShort((short) PROFILE_VERSION);
+        mBuffer.putInt((int) dataSize);
+        mBuffer.put((byte) '.').put((byte) 'F').put((byte) 'I').put((byte) 'T');
+        mBuffer.putShort((short) crc(0, mBuffer.array(), 0, HEADER_SIZE - CRC_SIZE));
+
+        int created = fitTime(totals.getFirstTimestamp());
+        define(LOCAL_FILE_ID, MESG_FILE_ID, FILE_ID_FIELDS);
+        mBuffer.put((byte) LOCAL_FILE_ID);
+        mBuffer.put((byte) FILE_ACTIVITY);
+        mBuffer.putShort((short) MANUFACTURER_DEVELOPMENT);
+        mBuffer.putShort((short) 0);
+        mBuffer.putInt(created);
+
+        define(LOCAL_RECORD, MESG_RECORD, RECORD_FIELDS);
+    }
+
+    @Override
+    protected void write(RscMeasurementColumns rows, int index) throws IOException {
+        reserve(messageSize(RECORD_FIELDS));
+        int flags = rows.getFlags()[index];
+        long totalDistance = rows.getTotalDistance()[index] - mTotals.getFirstTotalDistance();
+        int cadence = rows.getCadence()[index] & 0xFFFF;
+
+        mBuffer.put((byte) LOCAL_RECORD);
+        mBuffer.putInt(fitTime(rows.getTimestamp()[index]));
+        if ((flags & RscMeasurement.FLAG_TOTAL_DISTANCE_PRESENT) != 0 && totalDistance >= 0) {
+            mBuffer.putInt((int) Math.min(totalDistance * 10, 0xFFFFFFFEL));
+        } else {
+            mBuffer.putInt(-1);
+        }
+        mBuffer.putShort((short) Math.min(((rows.getSpeed()[index] & 0xFFFF) * 1000L + 128) / 256, 0xFFFE));
+        mBuffer.put((byte) (cadence >> 1));
+        mBuffer.put((byte) ((cadence & 1) * 64));
+        if ((flags & RscMeasurement.FLAG_INSTANTANEOUS_STRIDE_LENGTH_PRESENT) != 0) {
+            mBuffer.putShort((short) Math.min((rows.getStrideLength()[index] & 0xFFFF) * 100, 0xFFFE));
+        } else {
+            mBuffer.putShort((short) -1);
+        }
+        mBuffer.put((byte) ((flags & RscMeasurement.FLAG_WALKING_OR_RUNNING_STATUS) != 0
+                ? ACTIVITY_TYPE_RUNNING : ACTIVITY_TYPE_WALKING));
+    }
+
+    @Override
+    protected void end() throws IOException {
+        writeSummary(LOCAL_LAP, MESG_LAP, LAP_FIELDS, EVENT_LAP);
+        writeSummary(LOCAL_SESSION, MESG_SESSION, SESSION_FIELDS, EVENT_SESSION);
+
+        reserve(definitionSize(ACTIVITY_FIELDS) + messageSize(ACTIVITY_FIELDS));
+        define(LOCAL_ACTIVITY, MESG_ACTIVITY, ACTIVITY_FIELDS);
+        mBuffer.put((byte) LOCAL_ACTIVITY);
+        mBuffer.putInt(fitTime(mTotals.getLastTimestamp()));
+        mBuffer.putInt((int) elapsedMillis());
+        mBuffer.putShort((short) 1);
+        mBuffer.put((byte) 0);
+        mBuffer.put((byte) EVENT_ACTIVITY);
+        mBuffer.put((byte) EVENT_TYPE_STOP);
+
+        drain();
+        mBuffer.putShort((short) mCrc);
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mOut.write(mBuffer);
+        }
+        mBuffer.clear();
+        mOut = null;
+        mTotals = null;
+    }
+
+    private void writeSummary(int local, int global, int[] fields, int event) throws IOException {
+        reserve(definitionSize(fields) + messageSize(fields));
+        define(local, global, fields);
+        long elapsed = elapsedMillis();
+        mBuffer.put((byte) local);
+        mBuffer.putInt(fitTime(mTotals.getLastTimestamp()));
+        mBuffer.put((byte) event);
+        mBuffer.put((byte) EVENT_TYPE_STOP);
+        mBuffer.putInt(fitTime(mTotals.getFirstTimestamp()));
+        mBuffer.putInt((int) elapsed);
+        mBuffer.putInt((int) elapsed);
+        mBuffer.putInt((int) Math.min(mTotals.getDistance() * 10, 0xFFFFFFFEL));
+        mBuffer.put((byte) (mTotals.isRunning() ? SPORT_RUNNING : SPORT_WALKING));
+    }
+
+    private long elapsedMillis() {
+        return Math.min((mTotals.getLastTimestamp() - mTotals.getFirstTimestamp()) / 1000000L, 0xFFFFFFFEL);
+    }
+
+    // Truncated to the second, see the class comment.
+    private int fitTime(long timestampNanos) {
+        return (int) (toWallMillis(timestampNanos) / 1000 - FIT_EPOCH_OFFSET);
+    }
+
+    private void define(int local, int global, int[] fields) throws IOException {
+        reserve(definitionSize(fields));
+        mBuffer.put((byte) (DEFINITION | local));
+        mBuffer.put((byte) 0);
+        // Little endian, like every message of this file.
+        mBuffer.put((byte) 0);
+        mBuffer.putShort((short) global);
+        mBuffer.put((byte) (fields.length / 3));
+        for (int i = 0; i < fields.length; i++) {
+            mBuffer.put((byte) fields[i]);
+        }
+    }
+
+    private static int definitionSize(int[] fields) {
+        return 6 + fields.length;
+    }
+
+    private static int messageSize(int[] fields) {
+        int size = 1;
+        for (int i = 1; i < fields.length; i += 3) {
+            size += fields[i];
+        }
+        return size;
+    }
+
+    // Make room for that many bytes, draining the buffer if needed.
+    private void reserve(int bytes) throws IOException {
+        if (mBuffer.remaining() < bytes) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        mCrc = crc(mCrc, mBuffer.array(), 0, mBuffer.limit());
+        while (mBuffer.hasRemaining()) {
+            mOut.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    private static int crc(int crc, byte[] data, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = data[i];
+            int tmp = CRC_TABLE[crc & 0xF];
+            crc = (crc >> 4) & 0x0FFF;
+            crc = crc ^ tmp ^ CRC_TABLE[b & 0xF];
+            tmp = CRC_TABLE[crc & 0xF];
+            crc = (crc >> 4) & 0x0FFF;
+            crc = crc ^ tmp ^ CRC_TABLE[(b >> 4) & 0xF];
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.android.bluetoothlegatt.pack;
+
+/**
+ * Layout of the raw-frame session logs written by {@link RscSessionRecorder}.
+ * <p/>
+ * <p>A session is a directory of segment files named {@code 00000.rsf}, {@code 00001.rsf}, ... Every
+ * segment starts with a {@link #HEADER_SIZE}-byte header: magic, version, segment index, and the
+ * wall clock and {@link android.os.SystemClock#elapsedRealtimeNanos() elapsed realtime} at which the
+ * session started, so frame timestamps can be put on a calendar. Records follow back to back:
+ * <pre>
+ *   u16 length     bytes after this field, {@link #RECORD_FIXED_SIZE} + value length
+ *   i64 timestamp  elapsed realtime nanoseconds at reception, never below the previous record's
+ *   u48 address    Bluetooth device address, most significant byte first
+ *   u16 shortUuid  characteristic, 0xFFFF if not a 16-bit UUID
+ *   ... value
+ * </pre>
+ * All numbers are big endian. Segments are preallocated and zero filled, a length of 0 marks the
+ * end of the records. Devices are stamped on threads of their own, so the recorder raises a
+ * timestamp older than the record before it to that record's; records are in timestamp order.
+ */
+public final class RscFrameFormat {
+
+    public static final int MAGIC = 0x52534631; // "RSF1"
+    public static final int VERSION = 1;
+    public static final String SEGMENT_SUFFIX = ".rsf";
+
+    public static final int HEADER_SIZE = 32;
+    public static final int HEADER_MAGIC = 0;
+    public static final int HEADER_VERSION = 4;
+    public static final int HEADER_SEGMENT = 8;
+    public static final int HEADER_START_WALL_MILLIS = 16;
+    public static final int HEADER_START_ELAPSED_NANOS = 24;
+
+    public static final int LENGTH_SIZE = 2;
+    // Timestamp, address and short UUID.
+    public static final int RECORD_FIXED_SIZE = 8 + 6 + 2;
+    public static final int MAX_VALUE_LENGTH = 512;
+
+    private RscFrameFormat() {
+    }
+
+    /**
+     * @return name of the segment file with the given index
+     */
+    public static String segmentName(int index) {
+        StringBuilder name = new StringBuilder(10);
+        String digits = Integer.toString(index);
+        for (int i = digits.length(); i < 5; i++) {
+            name.append('0');
+        }
+        return name.append(digits).append(SEGMENT_SUFFIX).toString();
+    }
+
+    /**
+     * @param address "00:11:22:AA:BB:CC"
+     * @return the address as a 48-bit number, -1 if it is malformed
+     */
+    public static long packAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = 0; i < 6; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0 || (i < 5 && address.charAt(i * 3 + 2) != ':')) {
+                return -1;
+            }
+            packed = packed << 8 | high << 4 | low;
+        }
+        return packed;
+    }
+
+    /**
+     * Inverse of {@link #packAddress(String)}.
+     */
+    public static String formatAddress(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (address >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(octet >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0x0F, 16));
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
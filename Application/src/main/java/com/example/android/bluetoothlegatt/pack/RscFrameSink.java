@@ -0,0 +1,21 @@
+package com.example.android.bluetoothlegatt.pack;
+
+/**
+ * Receives raw characteristic values as they come off the link, before any decoding.
+ * <p/>
+ * <p>Called on the connection's processing thread for every notification and indication, see
+ * {@link BluetoothRscp#setFrameSink}. The value array is only valid during the call; sinks copy what
+ * they keep and must not block.
+ */
+public interface RscFrameSink {
+
+    /**
+     * @param timestampNanos {@link android.os.SystemClock#elapsedRealtimeNanos()} at reception
+     * @param address        device address packed by {@link RscFrameFormat#packAddress(String)}
+     * @param shortUuid      16-bit UUID of the characteristic, -1 if it has none
+     * @param value          buffer holding the raw value
+     * @param offset         start of the value in {@code value}
+     * @param length         length of the value
+     */
+    void onFrame(long timestampNanos, long address, int shortUuid, byte[] value, int offset, int length);
+}
@@ -0,0 +1,105 @@
+package com.example.android.bluetoothlegatt.pack;
+
+/**
+ * Mutable holder for one decoded RSC Measurement characteristic value.
+ * <p/>
+ * <p>Instances are meant to be reused: {@link RscMeasurementDecoder} overwrites every field on each
+ * successful decode, so a single instance per connection is enough on the notification path.
+ * Callers that need to keep a value past the current callback must {@link #set(RscMeasurement) copy} it.
+ */
+public final class RscMeasurement {
+
+    public static final int FLAG_INSTANTANEOUS_STRIDE_LENGTH_PRESENT = 0x01;
+    public static final int FLAG_TOTAL_DISTANCE_PRESENT = 0x01 << 1;
+    public static final int FLAG_WALKING_OR_RUNNING_STATUS = 0x01 << 2;
+
+    public static final String WALKING = "Walking";
+    public static final String RUNNING = "Running";
+    public static final String STANDING_STILL = "Standing still";
+
+    private int mFlags;
+    private int mInstantaneousSpeed;
+    private int mInstantaneousCadence;
+    private int mInstantaneousStrideLength;
+    private long mTotalDistance;
+
+    void set(int flags, int speed, int cadence, int strideLength, long totalDistance) {
+        mFlags = flags;
+        mInstantaneousSpeed = speed;
+        mInstantaneousCadence = cadence;
+        mInstantaneousStrideLength = strideLength;
+        mTotalDistance = totalDistance;
+    }
+
+    /**
+     * Copy all fields of another measurement into this one.
+     */
+    public void set(RscMeasurement other) {
+        set(other.mFlags, other.mInstantaneousSpeed, other.mInstantaneousCadence,
+                other.mInstantaneousStrideLength, other.mTotalDistance);
+    }
+
+    /**
+     * Raw flags field of the characteristic value.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * Instantaneous speed, unit is 1/256 m/s.
+     */
+    public int getInstantaneousSpeed() {
+        return mInstantaneousSpeed;
+    }
+
+    /**
+     * Instantaneous cadence, unit is 1/minute.
+     */
+    public int getInstantaneousCadence() {
+        return mInstantaneousCadence;
+    }
+
+    /**
+     * Instantaneous stride length, unit is 1/100 m. Zero if not present.
+     */
+    public int getInstantaneousStrideLength() {
+        return mInstantaneousStrideLength;
+    }
+
+    /**
+     * Total distance, unit is 1/10 m. Zero if not present.
+     */
+    public long getTotalDistance() {
+        return mTotalDistance;
+    }
+
+    public boolean isInstantaneousStrideLengthPresent() {
+        return (mFlags & FLAG_INSTANTANEOUS_STRIDE_LENGTH_PRESENT) != 0;
+    }
+
+    public boolean isTotalDistancePresent() {
+        return (mFlags & FLAG_TOTAL_DISTANCE_PRESENT) != 0;
+    }
+
+    public boolean isRunning() {
+        return (mFlags & FLAG_WALKING_OR_RUNNING_STATUS) != 0;
+    }
+
+    /**
+     * @return one of {@link #WALKING}, {@link #RUNNING} or {@link #STANDING_STILL}
+     */
+    public String getMotion() {
+        if (mInstantaneousSpeed == 0 && mInstantaneousCadence == 0) {
+            return STANDING_STILL;
+        }
+        return isRunning() ? RUNNING : WALKING;
+    }
+
+    @Override
+    public String toString() {
+        return "RscMeasurement{flags=" + mFlags + ", speed=" + mInstantaneousSpeed
+                + ", cadence=" + mInstantaneousCadence + ", strideLength=" + mInstantaneousStrideLength
+                + ", totalDistance=" + mTotalDistance + "}";
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process publish/subscribe bus for RSC Measurement samples.
+ * <p/>
+ * <p>Samples are copied into a preallocated ring of fixed size, so publishing allocates nothing.
+ * There is a single producer, the GATT callback thread, and any number of subscribers. Each
+ * subscriber drains the ring on its own {@link Handler} with its own cursor; a drain is posted only
+ * when the subscriber is not already scheduled, so a burst of samples costs one message.
+ * <p/>
+ * <p>A subscriber that falls more than a ring behind skips the overwritten samples, see
+ * {@link Subscription#getDroppedCount()}. Every slot carries the sequence number of the sample it
+ * holds; a reader checks it before and after copying so a slot overwritten mid-read is detected.
+ */
+public final class RscMeasurementBus {
+
+    private static final String TAG = RscMeasurementBus.class.getSimpleName();
+
+    private static final int SLOT_WORDS = 3;
+    private static final int WORD_TIMESTAMP = 0;
+    private static final int WORD_PACKED = 1;
+    private static final int WORD_TOTAL_DISTANCE = 2;
+
+    /**
+     * Receives samples on the subscriber's handler thread.
+     */
+    public interface Listener {
+        /**
+         * @param timestampNanos {@link android.os.SystemClock#elapsedRealtimeNanos()} at reception
+         * @param measurement    Owned by the subscription and reused, only valid during the call
+         */
+        void onMeasurement(long timestampNanos, RscMeasurement measurement);
+    }
+
+    private final int mMask;
+    private final AtomicLongArray mSlotSequence;
+    private final AtomicLongArray mSlots;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    private volatile long mPublished;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     */
+    public RscMeasurementBus(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSlotSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSlotSequence.set(i, -1);
+        }
+        mSlots = new AtomicLongArray(size * SLOT_WORDS);
+    }
+
+    /**
+     * Publish a sample. Must only be called from one thread at a time.
+     */
+    public void publish(long timestampNanos, RscMeasurement measurement) {
+        long sequence = mPublished;
+        int slot = (int) (sequence & mMask);
+        int base = slot * SLOT_WORDS;
+
+        mSlotSequence.set(slot, -1);
+        mSlots.set(base + WORD_TIMESTAMP, timestampNanos);
+        mSlots.set(base + WORD_PACKED, pack(measurement));
+        mSlots.set(base + WORD_TOTAL_DISTANCE, measurement.getTotalDistance());
+        mSlotSequence.set(slot, sequence);
+        mPublished = sequence + 1;
+
+        for (Subscription subscription : mSubscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * Subscribe to samples published from now on.
+     *
+     * @param handler  Handler the listener is called on
+     * @param listener Listener to call
+     */
+    public Subscription subscribe(Handler handler, Listener listener) {
+        Subscription subscription = new Subscription(handler, listener, mPublished);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+        subscription.mHandler.removeCallbacks(subscription.mDrain);
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    public long getPublishedCount() {
+        return mPublished;
+    }
+
+    private static long pack(RscMeasurement measurement) {
+        return (long) (measurement.getFlags() & 0xFF) << 40
+                | (long) (measurement.getInstantaneousSpeed() & 0xFFFF) << 24
+                | (long) (measurement.getInstantaneousStrideLength() & 0xFFFF) << 8
+                | (long) (measurement.getInstantaneousCadence() & 0xFF);
+    }
+
+    /**
+     * Copy the sample with the given sequence number into {@code out}.
+     *
+     * @return the sample's timestamp, or -1 if the slot no longer holds that sample
+     */
+    private long read(long sequence, RscMeasurement out) {
+        int slot = (int) (sequence & mMask);
+        int base = slot * SLOT_WORDS;
+        if (mSlotSequence.get(slot) != sequence) {
+            return -1;
+        }
+        long timestamp = mSlots.get(base + WORD_TIMESTAMP);
+        long packed = mSlots.get(base + WORD_PACKED);
+        long totalDistance = mSlots.get(base + WORD_TOTAL_DISTANCE);
+        if (mSlotSequence.get(slot) != sequence) {
+            return -1;
+        }
+        out.set((int) (packed >>> 40) & 0xFF, (int) (packed >>> 24) & 0xFFFF, (int) packed & 0xFF,
+                (int) (packed >>> 8) & 0xFFFF, totalDistance);
+        return timestamp;
+    }
+
+    /**
+     * One subscriber's position in the ring.
+     */
+    public final class Subscription {
+
+        private final Handler mHandler;
+        private final Listener mListener;
+        private final RscMeasurement mMeasurement = new RscMeasurement();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+        private long mCursor;
+        private volatile long mDropped;
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                mScheduled.set(false);
+                drain();
+            }
+        };
+
+        private Subscription(Handler handler, Listener listener, long cursor) {
+            mHandler = handler;
+            mListener = listener;
+            mCursor = cursor;
+        }
+
+        private void schedule() {
+            if (mScheduled.compareAndSet(false, true)) {
+                mHandler.post(mDrain);
+            }
+        }
+
+        private void drain() {
+            long published = mPublished;
+            while (mCursor < published) {
+                long oldest = published - (mMask + 1);
+                if (mCursor < oldest) {
+                    mDropped += oldest - mCursor;
+                    mCursor = oldest;
+                }
+                long timestamp = read(mCursor, mMeasurement);
+                if (timestamp < 0) {
+                    // Overwritten while reading, the producer lapped us.
+                    published = mPublished;
+                    if (mCursor >= published - (mMask + 1)) {
+                        Log.w(TAG, "Slot " + mCursor + " changed while being read");
+                        mDropped++;
+                        mCursor++;
+                    }
+                    continue;
+                }
+                mCursor++;
+                mListener.onMeasurement(timestamp, mMeasurement);
+            }
+        }
+
+        /**
+         * @return number of samples skipped because this subscriber fell a ring behind
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+    }
+}
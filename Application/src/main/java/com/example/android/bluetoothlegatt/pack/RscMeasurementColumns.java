@@ -0,0 +1,160 @@
+package com.example.android.bluetoothlegatt.pack;
+
+/**
+ * Structure-of-arrays storage for a batch of decoded RSC Measurements.
+ * <p/>
+ * <p>Row {@code i} of every column belongs to the same frame, rows {@code [0, size())} are valid.
+ * The arrays are exposed directly so analysis code can run tight loops over them; they may be
+ * replaced when the batch grows, so fetch them again after appending.
+ */
+public final class RscMeasurementColumns {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private long[] mTimestamp;
+    private int[] mSpeed;
+    private short[] mCadence;
+    private int[] mStrideLength;
+    private long[] mTotalDistance;
+    private byte[] mFlags;
+    private int mSize;
+
+    public RscMeasurementColumns() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RscMeasurementColumns(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate(int capacity) {
+        mTimestamp = new long[capacity];
+        mSpeed = new int[capacity];
+        mCadence = new short[capacity];
+        mStrideLength = new int[capacity];
+        mTotalDistance = new long[capacity];
+        mFlags = new byte[capacity];
+    }
+
+    /**
+     * Make room for at least {@code capacity} rows, keeping the rows already stored.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= mSpeed.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mSpeed.length * 2);
+        long[] timestamp = mTimestamp;
+        int[] speed = mSpeed;
+        short[] cadence = mCadence;
+        int[] strideLength = mStrideLength;
+        long[] totalDistance = mTotalDistance;
+        byte[] flags = mFlags;
+        allocate(newCapacity);
+        System.arraycopy(timestamp, 0, mTimestamp, 0, mSize);
+        System.arraycopy(speed, 0, mSpeed, 0, mSize);
+        System.arraycopy(cadence, 0, mCadence, 0, mSize);
+        System.arraycopy(strideLength, 0, mStrideLength, 0, mSize);
+        System.arraycopy(totalDistance, 0, mTotalDistance, 0, mSize);
+        System.arraycopy(flags, 0, mFlags, 0, mSize);
+    }
+
+    /**
+     * Append one row.
+     */
+    public void add(long timestamp, int flags, int speed, int cadence, int strideLength, long totalDistance) {
+        if (mSize == mSpeed.length) {
+            ensureCapacity(mSize + 1);
+        }
+        int i = mSize++;
+        mTimestamp[i] = timestamp;
+        mFlags[i] = (byte) flags;
+        mSpeed[i] = speed;
+        mCadence[i] = (short) cadence;
+        mStrideLength[i] = strideLength;
+        mTotalDistance[i] = totalDistance;
+    }
+
+    /**
+     * Append {@code count} rows, to be filled in through the column arrays, e.g. by a bulk decoder.
+     *
+     * @return index of the first appended row
+     */
+    public int extend(int count) {
+        ensureCapacity(mSize + count);
+        int first = mSize;
+        mSize += count;
+        return first;
+    }
+
+    /**
+     * Copy row {@code index} into a measurement holder.
+     */
+    public void get(int index, RscMeasurement out) {
+        out.set(mFlags[index] & 0xFF, mSpeed[index], mCadence[index], mStrideLength[index], mTotalDistance[index]);
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Drop every row from {@code size} on.
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > mSize) {
+            throw new IndexOutOfBoundsException("size " + size + " of " + mSize);
+        }
+        mSize = size;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mSpeed.length;
+    }
+
+    /**
+     * Arrival time of each frame, in the caller's time base.
+     */
+    public long[] getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Instantaneous speed, unit is 1/256 m/s.
+     */
+    public int[] getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Instantaneous cadence, unit is 1/minute.
+     */
+    public short[] getCadence() {
+        return mCadence;
+    }
+
+    /**
+     * Instantaneous stride length, unit is 1/100 m. Zero where not present.
+     */
+    public int[] getStrideLength() {
+        return mStrideLength;
+    }
+
+    /**
+     * Total distance, unit is 1/10 m. Zero where not present.
+     */
+    public long[] getTotalDistance() {
+        return mTotalDistance;
+    }
+
+    /**
+     * Raw flags field, see {@link RscMeasurement#FLAG_INSTANTANEOUS_STRIDE_LENGTH_PRESENT} and friends.
+     */
+    public byte[] getFlags() {
+        return mFlags;
+    }
+}
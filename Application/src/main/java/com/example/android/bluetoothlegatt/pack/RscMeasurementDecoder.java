@@ -0,0 +1,152 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder for the RSC Measurement characteristic value, as defined by the Bluetooth SIG RSCP specification.
+ * <p/>
+ * <p>Frames are decoded in a single pass over the raw bytes with one length check per frame and the
+ * result is written into a caller supplied {@link RscMeasurement}, so decoding does not allocate.
+ * <p/>
+ * <pre>
+ * flags(uint8) | speed(uint16) | cadence(uint8) | [stride length(uint16)] | [total distance(uint32)]
+ * </pre>
+ */
+public final class RscMeasurementDecoder {
+
+    /**
+     * Size of a frame carrying only the mandatory fields.
+     */
+    public static final int MIN_FRAME_LENGTH = 4;
+
+    private static final int STRIDE_LENGTH_SIZE = 2;
+    private static final int TOTAL_DISTANCE_SIZE = 4;
+
+    private RscMeasurementDecoder() {
+    }
+
+    /**
+     * Number of bytes a frame with the given flags must hold.
+     */
+    public static int frameLength(int flags) {
+        int length = MIN_FRAME_LENGTH;
+        if ((flags & RscMeasurement.FLAG_INSTANTANEOUS_STRIDE_LENGTH_PRESENT) != 0) {
+            length += STRIDE_LENGTH_SIZE;
+        }
+        if ((flags & RscMeasurement.FLAG_TOTAL_DISTANCE_PRESENT) != 0) {
+            length += TOTAL_DISTANCE_SIZE;
+        }
+        return length;
+    }
+
+    /**
+     * Decode a whole characteristic value.
+     *
+     * @return false if the value is null or too short for its flags, {@code out} is left untouched then.
+     */
+    public static boolean decode(byte[] value, RscMeasurement out) {
+        return value != null && decode(value, 0, value.length, out);
+    }
+
+    /**
+     * Decode the frame stored at {@code value[offset, offset + length)}.
+     *
+     * @return false if the frame is too short for its flags, {@code out} is left untouched then.
+     */
+    public static boolean decode(byte[] value, int offset, int length, RscMeasurement out) {
+        if (length < MIN_FRAME_LENGTH) {
+            return false;
+        }
+        int flags = value[offset] & 0xFF;
+        if (length < frameLength(flags)) {
+            return false;
+        }
+
+        int pos = offset + 1;
+        int speed = (value[pos] & 0xFF) | (value[pos + 1] & 0xFF) << 8;
+        int cadence = value[pos + 2] & 0xFF;
+        pos += 3;
+
+        int strideLength = 0;
+        if ((flags & RscMeasurement.FLAG_INSTANTANEOUS_STRIDE_LENGTH_PRESENT) != 0) {
+            strideLength = (value[pos] & 0xFF) | (value[pos + 1] & 0xFF) << 8;
+            pos += STRIDE_LENGTH_SIZE;
+        }
+
+        long totalDistance = 0;
+        if ((flags & RscMeasurement.FLAG_TOTAL_DISTANCE_PRESENT) != 0) {
+            totalDistance = ((value[pos] & 0xFF) | (value[pos + 1] & 0xFF) << 8
+                    | (value[pos + 2] & 0xFF) << 16 | (value[pos + 3] & 0xFF) << 24) & 0xFFFFFFFFL;
+        }
+
+        out.set(flags, speed, cadence, strideLength, totalDistance);
+        return true;
+    }
+
+    /**
+     * Decode {@code count} frames into columns, appending one row per well-formed frame.
+     * Malformed frames are skipped, so the row count may be lower than {@code count}.
+     *
+     * @param frames     Raw RSC Measurement values
+     * @param timestamps Arrival time of each frame, stored as is
+     * @param count      Number of frames to decode, starting at index 0
+     * @param out        Destination, grown once up front if needed
+     * @return number of rows appended
+     */
+    public static int decodeBatch(byte[][] frames, long[] timestamps, int count, RscMeasurementColumns out) {
+        int start = out.size();
+        out.ensureCapacity(start + count);
+        // One holder per batch, parsing itself is left to decode().
+        RscMeasurement measurement = new RscMeasurement();
+        for (int i = 0; i < count; i++) {
+            if (!decode(frames[i], measurement)) {
+                continue;
+            }
+            out.add(timestamps[i], measurement.getFlags(), measurement.getInstantaneousSpeed(),
+                    measurement.getInstantaneousCadence(), measurement.getInstantaneousStrideLength(),
+                    measurement.getTotalDistance());
+        }
+        return out.size() - start;
+    }
+
+    /**
+     * Decode the frame between the buffer's position and limit using absolute reads, so neither the
+     * position nor the byte order of {@code frame} is changed.
+     *
+     * @return false if the frame is too short for its flags, {@code out} is left untouched then.
+     */
+    public static boolean decode(ByteBuffer frame, RscMeasurement out) {
+        int offset = frame.position();
+        int length = frame.remaining();
+        if (frame.hasArray()) {
+            return decode(frame.array(), frame.arrayOffset() + offset, length, out);
+        }
+        if (length < MIN_FRAME_LENGTH) {
+            return false;
+        }
+        int flags = frame.get(offset) & 0xFF;
+        if (length < frameLength(flags)) {
+            return false;
+        }
+
+        int pos = offset + 1;
+        int speed = (frame.get(pos) & 0xFF) | (frame.get(pos + 1) & 0xFF) << 8;
+        int cadence = frame.get(pos + 2) & 0xFF;
+        pos += 3;
+
+        int strideLength = 0;
+        if ((flags & RscMeasurement.FLAG_INSTANTANEOUS_STRIDE_LENGTH_PRESENT) != 0) {
+            strideLength = (frame.get(pos) & 0xFF) | (frame.get(pos + 1) & 0xFF) << 8;
+            pos += STRIDE_LENGTH_SIZE;
+        }
+
+        long totalDistance = 0;
+        if ((flags & RscMeasurement.FLAG_TOTAL_DISTANCE_PRESENT) != 0) {
+            totalDistance = ((frame.get(pos) & 0xFF) | (frame.get(pos + 1) & 0xFF) << 8
+                    | (frame.get(pos + 2) & 0xFF) << 16 | (frame.get(pos + 3) & 0xFF) << 24) & 0xFFFFFFFFL;
+        }
+
+        out.set(flags, speed, cadence, strideLength, totalDistance);
+        return true;
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.os.Handler;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publisher of RSC measurements with demand-driven delivery, in the style of Reactive Streams.
+ * <p/>
+ * <p>A {@link Subscriber} is sent nothing until it calls {@link Subscription#request(long)}, and then
+ * at most the requested number of measurements. Measurements arriving while a subscriber has no
+ * demand wait in a preallocated buffer of its own; what happens when that buffer is full is set per
+ * subscription:
+ * <ul>
+ * <li>{@link #OVERFLOW_DROP_OLDEST}: the oldest buffered measurement is discarded.</li>
+ * <li>{@link #OVERFLOW_LATEST}: only the most recent measurement is kept, the buffer size is 1.</li>
+ * <li>{@link #OVERFLOW_BUFFER}: the subscription fails with {@link BufferOverflowException}.</li>
+ * </ul>
+ * All signals are delivered on the subscriber's {@link Handler}, one at a time.
+ */
+public final class RscMeasurementPublisher {
+
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    public static final int OVERFLOW_LATEST = 2;
+    public static final int OVERFLOW_BUFFER = 3;
+
+    public interface Subscriber {
+        /**
+         * First signal of every subscription; nothing else is sent until demand is requested.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * @param measurement Reused, only valid during the call
+         */
+        void onNext(long timestampNanos, RscMeasurement measurement);
+
+        /**
+         * Terminal signal, e.g. a {@link BufferOverflowException}.
+         */
+        void onError(Throwable error);
+
+        /**
+         * Terminal signal sent once the publisher is done and the buffer has been drained.
+         */
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Add to the number of measurements the subscriber is ready to receive.
+         */
+        void request(long n);
+
+        /**
+         * Stop delivery. Signals already being processed may still arrive.
+         */
+        void cancel();
+
+        /**
+         * @return number of measurements discarded by the overflow strategy so far
+         */
+        long getDroppedCount();
+    }
+
+    /**
+     * Signalled to {@link #OVERFLOW_BUFFER} subscribers whose buffer overflowed.
+     */
+    public static final class BufferOverflowException extends RuntimeException {
+        BufferOverflowException(int capacity) {
+            super("Subscriber fell more than " + capacity + " measurements behind");
+        }
+    }
+
+    private final CopyOnWriteArrayList<BufferedSubscription> mSubscriptions =
+            new CopyOnWriteArrayList<BufferedSubscription>();
+
+    /**
+     * Subscribe with the given overflow strategy.
+     *
+     * @param subscriber Subscriber to signal
+     * @param handler    Handler the subscriber is signalled on
+     * @param overflow   One of the {@code OVERFLOW_*} constants
+     * @param bufferSize Number of measurements buffered while there is no demand, ignored for {@link #OVERFLOW_LATEST}
+     */
+    public void subscribe(Subscriber subscriber, Handler handler, int overflow, int bufferSize) {
+        if (overflow != OVERFLOW_DROP_OLDEST && overflow != OVERFLOW_LATEST && overflow != OVERFLOW_BUFFER) {
+            throw new IllegalArgumentException("Unknown overflow strategy: " + overflow);
+        }
+        if (overflow == OVERFLOW_LATEST) {
+            bufferSize = 1;
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        final BufferedSubscription subscription = new BufferedSubscription(subscriber, handler, overflow, bufferSize);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSubscriptions.add(subscription);
+                subscription.mSubscriber.onSubscribe(subscription);
+            }
+        });
+    }
+
+    /**
+     * Offer a measurement to every subscriber. The measurement is copied.
+     */
+    public void publish(long timestampNanos, RscMeasurement measurement) {
+        for (BufferedSubscription subscription : mSubscriptions) {
+            subscription.offer(timestampNanos, measurement);
+        }
+    }
+
+    /**
+     * Complete every current subscription once its buffer has drained. Later subscribers are
+     * served normally.
+     */
+    public void complete() {
+        for (BufferedSubscription subscription : mSubscriptions) {
+            mSubscriptions.remove(subscription);
+            subscription.complete();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    private final class BufferedSubscription implements Subscription {
+
+        private final Subscriber mSubscriber;
+        private final Handler mHandler;
+        private final int mOverflow;
+
+        // Ring of buffered measurements, guarded by this.
+        private final RscMeasurement[] mBuffer;
+        private final long[] mTimestamps;
+        private int mHead;
+        private int mCount;
+
+        private long mDemand;
+        private long mDropped;
+        private boolean mDrainPosted;
+        private boolean mTerminated;
+        private Throwable mError;
+        private boolean mCancelled;
+
+        private final RscMeasurement mDelivered = new RscMeasurement();
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        BufferedSubscription(Subscriber subscriber, Handler handler, int overflow, int bufferSize) {
+            mSubscriber = subscriber;
+            mHandler = handler;
+            mOverflow = overflow;
+            mBuffer = new RscMeasurement[bufferSize];
+            for (int i = 0; i < bufferSize; i++) {
+                mBuffer[i] = new RscMeasurement();
+            }
+            mTimestamps = new long[bufferSize];
+        }
+
+        void offer(long timestampNanos, RscMeasurement measurement) {
+            synchronized (this) {
+                if (mCancelled || mTerminated) {
+                    return;
+                }
+                if (mCount == mBuffer.length) {
+                    if (mOverflow == OVERFLOW_BUFFER) {
+                        mSubscriptions.remove(this);
+                        mTerminated = true;
+                        mError = new BufferOverflowException(mBuffer.length);
+                        mCount = 0;
+                        scheduleLocked();
+                        return;
+                    }
+                    // OVERFLOW_DROP_OLDEST and OVERFLOW_LATEST: make room by discarding the head.
+                    mHead = (mHead + 1) % mBuffer.length;
+                    mCount--;
+                    mDropped++;
+                }
+                int tail = (mHead + mCount) % mBuffer.length;
+                mBuffer[tail].set(measurement);
+                mTimestamps[tail] = timestampNanos;
+                mCount++;
+                if (mDemand > 0) {
+                    scheduleLocked();
+                }
+            }
+        }
+
+        void complete() {
+            synchronized (this) {
+                if (mTerminated) {
+                    return;
+                }
+                mTerminated = true;
+                scheduleLocked();
+            }
+        }
+
+        private void scheduleLocked() {
+            if (!mDrainPosted) {
+                mDrainPosted = true;
+                mHandler.post(mDrain);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mSubscriptions.remove(this);
+                synchronized (this) {
+                    if (!mTerminated || mError == null) {
+                        mTerminated = true;
+                        mError = new IllegalArgumentException("request must be positive: " + n);
+                        mCount = 0;
+                        scheduleLocked();
+                    }
+                }
+                return;
+            }
+            synchronized (this) {
+                mDemand += n;
+                if (mDemand < 0) {
+                    mDemand = Long.MAX_VALUE;
+                }
+                if (mCount > 0) {
+                    scheduleLocked();
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mSubscriptions.remove(this);
+            synchronized (this) {
+                mCancelled = true;
+                mCount = 0;
+            }
+        }
+
+        @Override
+        public synchronized long getDroppedCount() {
+            return mDropped;
+        }
+
+        private void drain() {
+            while (true) {
+                long timestamp;
+                boolean terminal = false;
+                Throwable error = null;
+                synchronized (this) {
+                    if (mCancelled) {
+                        mDrainPosted = false;
+                        return;
+                    }
+                    if (mCount > 0 && mDemand > 0) {
+                        mDelivered.set(mBuffer[mHead]);
+                        timestamp = mTimestamps[mHead];
+                        mHead = (mHead + 1) % mBuffer.length;
+                        mCount--;
+                        if (mDemand != Long.MAX_VALUE) {
+                            mDemand--;
+                        }
+                    } else if (mTerminated && mCount == 0) {
+                        // Errors discard the buffer, completion waits until it is drained.
+                        mCancelled = true;
+                        mDrainPosted = false;
+                        terminal = true;
+                        error = mError;
+                        timestamp = 0;
+                    } else {
+                        mDrainPosted = false;
+                        return;
+                    }
+                }
+                if (terminal) {
+                    if (error != null) {
+                        mSubscriber.onError(error);
+                    } else {
+                        mSubscriber.onComplete();
+                    }
+                    return;
+                }
+                mSubscriber.onNext(timestamp, mDelivered);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * This abstract class is used to implement exporters of recorded measurements, see
+ * {@link RscFitExporter} and {@link RscTcxExporter}.
+ * <p/>
+ * <p>An export streams: the measurement file is first walked through its chunk footers only, for
+ * the totals formats want up front, then decoded a chunk at a time into the same columns while the
+ * subclass writes each row out through a buffer. Memory use does not depend on the length of the
+ * session.
+ * <p/>
+ * <p>Measurements are stamped with elapsed realtime; the wall clock time of a row is taken from the
+ * start of the session it was recorded in, see {@link RscSessionReader#getStartWallMillis()} and
+ * {@link RscSessionReader#getStartElapsedNanos()}.
+ */
+public abstract class RscSessionExporter {
+
+    /**
+     * What the footers tell about the whole file.
+     */
+    public static final class Totals {
+        private long mRows;
+        private long mFirstTimestamp = Long.MAX_VALUE;
+        private long mLastTimestamp = Long.MIN_VALUE;
+        private long mFirstTotalDistance = Long.MAX_VALUE;
+        private long mLastTotalDistance = Long.MIN_VALUE;
+        private int mFlags;
+
+        public long getRows() {
+            return mRows;
+        }
+
+        public long getFirstTimestamp() {
+            return mFirstTimestamp;
+        }
+
+        public long getLastTimestamp() {
+            return mLastTimestamp;
+        }
+
+        /**
+         * @return the sensor's total distance at the start, 1/10 m, if {@link #hasTotalDistance()}
+         */
+        public long getFirstTotalDistance() {
+            return mFirstTotalDistance;
+        }
+
+        /**
+         * @return distance covered, 1/10 m, 0 if the sensor does not report it
+         */
+        public long getDistance() {
+            return hasTotalDistance() ? mLastTotalDistance - mFirstTotalDistance : 0;
+        }
+
+        public boolean hasTotalDistance() {
+            return (mFlags & RscMeasurement.FLAG_TOTAL_DISTANCE_PRESENT) != 0;
+        }
+
+        /**
+         * @return true if any row was running, not walking
+         */
+        public boolean isRunning() {
+            return (mFlags & RscMeasurement.FLAG_WALKING_OR_RUNNING_STATUS) != 0;
+        }
+    }
+
+    private final long mStartWallMillis;
+    private final long mStartElapsedNanos;
+
+    /**
+     * @param startWallMillis   {@link System#currentTimeMillis()} when the session started
+     * @param startElapsedNanos Elapsed realtime when the session started
+     */
+    protected RscSessionExporter(long startWallMillis, long startElapsedNanos) {
+        mStartWallMillis = startWallMillis;
+        mStartElapsedNanos = startElapsedNanos;
+    }
+
+    /**
+     * Export every row of a measurement file.
+     *
+     * @return number of rows exported
+     */
+    public final long export(RscChunkReader reader, File file) throws IOException {
+        Totals totals = scan(reader);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            begin(channel, totals);
+            RscMeasurementColumns rows = new RscMeasurementColumns(reader.getChunkRows());
+            reader.seek(RscChunkFormat.HEADER_SIZE);
+            long count = 0;
+            while (reader.next(rows)) {
+                for (int i = 0, size = rows.size(); i < size; i++) {
+                    write(rows, i);
+                }
+                count += rows.size();
+                rows.clear();
+            }
+            end();
+            return count;
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Totals scan(RscChunkReader reader) throws IOException {
+        Totals totals = new Totals();
+        RscChunkCodec.Summary summary = new RscChunkCodec.Summary();
+        reader.seek(RscChunkFormat.HEADER_SIZE);
+        while (reader.readSummary(summary)) {
+            totals.mRows += summary.getCount();
+            totals.mFirstTimestamp = Math.min(totals.mFirstTimestamp, summary.getMinTimestamp());
+            totals.mLastTimestamp = Math.max(totals.mLastTimestamp, summary.getMaxTimestamp());
+            // Sensors report the total distance in every frame or in none.
+            if ((summary.getFlags() & RscMeasurement.FLAG_TOTAL_DISTANCE_PRESENT) != 0) {
+                totals.mFirstTotalDistance = Math.min(totals.mFirstTotalDistance, summary.getMinTotalDistance());
+                totals.mLastTotalDistance = Math.max(totals.mLastTotalDistance, summary.getMaxTotalDistance());
+            }
+            totals.mFlags |= summary.getFlags();
+            reader.skip();
+        }
+        if (totals.mRows == 0) {
+            throw new IOException("Nothing to export in " + reader.getFile());
+        }
+        return totals;
+    }
+
+    /**
+     * @return {@link System#currentTimeMillis()} at the given elapsed realtime of the session
+     */
+    protected final long toWallMillis(long timestampNanos) {
+        return mStartWallMillis + (timestampNanos - mStartElapsedNanos) / 1000000L;
+    }
+
+    /**
+     * Write what comes before the first row.
+     */
+    protected abstract void begin(FileChannel out, Totals totals) throws IOException;
+
+    /**
+     * Write row {@code index}.
+     */
+    protected abstract void write(RscMeasurementColumns rows, int index) throws IOException;
+
+    /**
+     * Write what comes after the last row and flush.
+     */
+    protected abstract void end() throws IOException;
+}
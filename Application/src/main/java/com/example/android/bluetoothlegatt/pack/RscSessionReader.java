@@ -0,0 +1,167 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the frames of a session written by {@link RscSessionRecorder}, in order, segment after segment.
+ * <p/>
+ * <p>Segments are mapped read-only one at a time and every frame is copied into one reusable buffer,
+ * so reading does not allocate. A record cut short, e.g. by a crash while recording, ends its
+ * segment. Only plain Java is used, so sessions can be read off the device as well.
+ * <pre>
+ * RscSessionReader reader = new RscSessionReader(directory);
+ * while (reader.next()) {
+ *     use(reader.getTimestampNanos(), reader.getValue(), reader.getValueLength());
+ * }
+ * reader.close();
+ * </pre>
+ */
+public final class RscSessionReader implements Closeable {
+
+    private final File mDirectory;
+    private final long mStartWallMillis;
+    private final long mStartElapsedNanos;
+
+    private MappedByteBuffer mBuffer;
+    private int mSegment;
+
+    private long mTimestampNanos;
+    private long mAddress;
+    private int mShortUuid;
+    private final byte[] mValue = new byte[RscFrameFormat.MAX_VALUE_LENGTH];
+    private int mValueLength;
+
+    /**
+     * @throws IOException if the first segment is missing or not a session segment
+     */
+    public RscSessionReader(File directory) throws IOException {
+        mDirectory = directory;
+        mBuffer = map(0);
+        if (mBuffer == null) {
+            throw new IOException("No session in " + directory);
+        }
+        mStartWallMillis = mBuffer.getLong(RscFrameFormat.HEADER_START_WALL_MILLIS);
+        mStartElapsedNanos = mBuffer.getLong(RscFrameFormat.HEADER_START_ELAPSED_NANOS);
+    }
+
+    /**
+     * Move to the next frame.
+     *
+     * @return false at the end of the session
+     */
+    public boolean next() throws IOException {
+        while (mBuffer != null) {
+            MappedByteBuffer buffer = mBuffer;
+            if (buffer.remaining() >= RscFrameFormat.LENGTH_SIZE) {
+                int length = buffer.getShort(buffer.position()) & 0xFFFF;
+                if (length >= RscFrameFormat.RECORD_FIXED_SIZE
+                        && length - RscFrameFormat.RECORD_FIXED_SIZE <= RscFrameFormat.MAX_VALUE_LENGTH
+                        && length <= buffer.remaining() - RscFrameFormat.LENGTH_SIZE) {
+                    buffer.position(buffer.position() + RscFrameFormat.LENGTH_SIZE);
+                    mTimestampNanos = buffer.getLong();
+                    mAddress = (buffer.getShort() & 0xFFFFL) << 32 | buffer.getInt() & 0xFFFFFFFFL;
+                    int shortUuid = buffer.getShort() & 0xFFFF;
+                    mShortUuid = shortUuid == 0xFFFF ? -1 : shortUuid;
+                    mValueLength = length - RscFrameFormat.RECORD_FIXED_SIZE;
+                    buffer.get(mValue, 0, mValueLength);
+                    return true;
+                }
+            }
+            // End of the records of this segment.
+            mBuffer = map(mSegment + 1);
+            if (mBuffer != null && mBuffer.getLong(RscFrameFormat.HEADER_START_WALL_MILLIS) != mStartWallMillis) {
+                throw new IOException("Segment " + mSegment + " belongs to another session");
+            }
+        }
+        return false;
+    }
+
+    // Null if the segment does not exist.
+    private MappedByteBuffer map(int index) throws IOException {
+        File file = new File(mDirectory, RscFrameFormat.segmentName(index));
+        if (!file.isFile()) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping outlives the channel.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < RscFrameFormat.HEADER_SIZE
+                || buffer.getInt(RscFrameFormat.HEADER_MAGIC) != RscFrameFormat.MAGIC
+                || buffer.getShort(RscFrameFormat.HEADER_VERSION) != RscFrameFormat.VERSION
+                || buffer.getInt(RscFrameFormat.HEADER_SEGMENT) != index) {
+            throw new IOException("Not a session segment: " + file);
+        }
+        buffer.position(RscFrameFormat.HEADER_SIZE);
+        mSegment = index;
+        return buffer;
+    }
+
+    /**
+     * Stop reading; {@link #next()} returns false afterwards.
+     */
+    @Override
+    public void close() {
+        mBuffer = null;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * {@link System#currentTimeMillis()} when the session started.
+     */
+    public long getStartWallMillis() {
+        return mStartWallMillis;
+    }
+
+    /**
+     * Elapsed realtime when the session started, on the clock of the frame timestamps.
+     */
+    public long getStartElapsedNanos() {
+        return mStartElapsedNanos;
+    }
+
+    /**
+     * @return reception time of the current frame, elapsed realtime nanoseconds of the recording device
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * @return the device address as a 48-bit number, see {@link RscFrameFormat#formatAddress(long)}
+     */
+    public long getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return 16-bit UUID of the characteristic, -1 if it had none
+     */
+    public int getShortUuid() {
+        return mShortUuid;
+    }
+
+    /**
+     * Value of the current frame in its first {@link #getValueLength()} bytes; overwritten by {@link #next()}.
+     */
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public int getValueLength() {
+        return mValueLength;
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends every raw frame of a session to a segmented, memory-mapped log, see {@link RscFrameFormat}.
+ * <p/>
+ * <p>Segments are mapped {@link #DEFAULT_SEGMENT_SIZE} bytes at a time, so appending a frame is a
+ * handful of stores into the page cache: no allocation and no system call. Dirty pages are forced
+ * to storage every {@link #SYNC_EVERY_FRAMES} frames or {@link #SYNC_INTERVAL_NANOS}, whichever comes
+ * first, on a thread of the recorder's own so the caller never waits for the disk. A full segment
+ * is forced, trimmed to its records, and the next one is mapped. A record's length is stored last,
+ * so a record cut short by a crash reads as the end of the log.
+ * <p/>
+ * <p>One recorder may be shared by several devices; I/O errors stop the recording and are logged,
+ * frames arriving afterwards are counted as dropped.
+ */
+public final class RscSessionRecorder implements RscFrameSink {
+
+    private static final String TAG = RscSessionRecorder.class.getSimpleName();
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    public static final int SYNC_EVERY_FRAMES = 256;
+    public static final long SYNC_INTERVAL_NANOS = 10000000000L;
+
+    private static final int MAX_RECORD_SIZE = RscFrameFormat.LENGTH_SIZE + RscFrameFormat.RECORD_FIXED_SIZE
+            + RscFrameFormat.MAX_VALUE_LENGTH;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final long mStartWallMillis;
+    private final long mStartElapsedNanos;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private int mSegment = -1;
+
+    private final Object mSyncLock = new Object();
+    // Segment the sync thread may force, guarded by mSyncLock; cleared before a segment is trimmed.
+    private MappedByteBuffer mSyncBuffer;
+    private final HandlerThread mSyncThread;
+    private final Handler mSyncHandler;
+    private boolean mSyncPosted;
+
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RscSessionRecorder.this) {
+                mSyncPosted = false;
+            }
+            synchronized (mSyncLock) {
+                if (mSyncBuffer != null) {
+                    mSyncBuffer.force();
+                }
+            }
+        }
+    };
+
+    private int mUnsynced;
+    private long mLastSyncNanos;
+    private long mLastTimestampNanos;
+    private long mFrames;
+    private long mBytes;
+    private long mDropped;
+
+    /**
+     * Start a session in an empty directory, created if needed.
+     */
+    public RscSessionRecorder(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public RscSessionRecorder(File directory, int segmentSize) throws IOException {
+        if (segmentSize < RscFrameFormat.HEADER_SIZE + MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        if (new File(directory, RscFrameFormat.segmentName(0)).exists()) {
+            throw new IOException("Session exists: " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mStartWallMillis = System.currentTimeMillis();
+        mStartElapsedNanos = SystemClock.elapsedRealtimeNanos();
+        mLastSyncNanos = mStartElapsedNanos;
+        openSegment(0);
+        mSyncThread = new HandlerThread(TAG);
+        mSyncThread.start();
+        mSyncHandler = new Handler(mSyncThread.getLooper());
+    }
+
+    @Override
+    public synchronized void onFrame(long timestampNanos, long address, int shortUuid, byte[] value, int offset,
+                                     int length) {
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer == null || length > RscFrameFormat.MAX_VALUE_LENGTH) {
+            mDropped++;
+            return;
+        }
+        int size = RscFrameFormat.LENGTH_SIZE + RscFrameFormat.RECORD_FIXED_SIZE + length;
+        if (buffer.remaining() < size) {
+            try {
+                closeSegment();
+                openSegment(mSegment + 1);
+            } catch (IOException e) {
+                fail(e);
+                mDropped++;
+                return;
+            }
+            buffer = mBuffer;
+        }
+        // Frames of different devices may come in stamped out of order, see RscFrameFormat.
+        if (timestampNanos < mLastTimestampNanos) {
+            timestampNanos = mLastTimestampNanos;
+        }
+        mLastTimestampNanos = timestampNanos;
+        int start = buffer.position();
+        buffer.position(start + RscFrameFormat.LENGTH_SIZE);
+        buffer.putLong(timestampNanos);
+        buffer.putShort((short) (address >>> 32));
+        buffer.putInt((int) address);
+        buffer.putShort((short) shortUuid);
+        buffer.put(value, offset, length);
+        // Published last, see the class comment.
+        buffer.putShort(start, (short) (RscFrameFormat.RECORD_FIXED_SIZE + length));
+        mFrames++;
+        mBytes += size;
+        if (++mUnsynced >= SYNC_EVERY_FRAMES || timestampNanos - mLastSyncNanos >= SYNC_INTERVAL_NANOS) {
+            mUnsynced = 0;
+            mLastSyncNanos = timestampNanos;
+            if (!mSyncPosted) {
+                mSyncPosted = true;
+                mSyncHandler.post(mSync);
+            }
+        }
+    }
+
+    /**
+     * Force the last frames to storage and trim the last segment. Frames arriving afterwards are dropped.
+     */
+    public synchronized void close() {
+        mSyncThread.quitSafely();
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            fail(e);
+        }
+        Log.i(TAG, "Closed " + mDirectory + ": " + this);
+    }
+
+    private void openSegment(int index) throws IOException {
+        File file = new File(mDirectory, RscFrameFormat.segmentName(index));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            mChannel = raf.getChannel();
+            // Grows the file to the segment size.
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } catch (IOException e) {
+            mChannel = null;
+            raf.close();
+            throw e;
+        }
+        mFile = raf;
+        mSegment = index;
+        synchronized (mSyncLock) {
+            mSyncBuffer = mBuffer;
+        }
+        mBuffer.putInt(RscFrameFormat.HEADER_MAGIC, RscFrameFormat.MAGIC);
+        mBuffer.putShort(RscFrameFormat.HEADER_VERSION, (short) RscFrameFormat.VERSION);
+        mBuffer.putInt(RscFrameFormat.HEADER_SEGMENT, index);
+        mBuffer.putLong(RscFrameFormat.HEADER_START_WALL_MILLIS, mStartWallMillis);
+        mBuffer.putLong(RscFrameFormat.HEADER_START_ELAPSED_NANOS, mStartElapsedNanos);
+        mBuffer.position(RscFrameFormat.HEADER_SIZE);
+    }
+
+    private void closeSegment() throws IOException {
+        MappedByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        try {
+            // Waits for a sync in progress, the segment is not to be forced once trimmed.
+            synchronized (mSyncLock) {
+                mSyncBuffer = null;
+            }
+            buffer.force();
+            mUnsynced = 0;
+            // The mapping is never touched again, so the unused tail can go.
+            mChannel.truncate(buffer.position());
+        } finally {
+            mChannel = null;
+            mFile.close();
+            mFile = null;
+        }
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "Recording to " + mDirectory + " stopped: " + e);
+        mBuffer = null;
+        synchronized (mSyncLock) {
+            mSyncBuffer = null;
+        }
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException ignored) {
+            }
+            mFile = null;
+            mChannel = null;
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * {@link System#currentTimeMillis()} when the session started.
+     */
+    public long getStartWallMillis() {
+        return mStartWallMillis;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return bytes of records written, headers not included
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * @return frames not recorded, because the recorder was closed or failed, or the value was too long
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegment + 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mFrames + " frames, " + mBytes + " bytes, " + getSegmentCount() + " segments, " + mDropped + " dropped";
+    }
+}
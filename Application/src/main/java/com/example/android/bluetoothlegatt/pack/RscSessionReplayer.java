@@ -0,0 +1,191 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays recorded sessions back into an {@link RscFrameSink}, e.g. one that
+ * {@link BluetoothRscp#injectFrame injects} the frames into profiles, to reproduce field issues or to
+ * load the measurement pipeline without sensors.
+ * <p/>
+ * <p>Any number of sessions, each holding any number of devices, are merged into one stream ordered
+ * by time. Sessions are lined up by the wall clock time they started at and timestamps are
+ * delivered on the clock of the session that started first, so a single session plays back with
+ * its timestamps unchanged. Frames are paced at the {@link #setSpeed speed} asked for: in real time,
+ * N times faster, or {@link #AS_FAST_AS_POSSIBLE}.
+ * <p/>
+ * <p>A replay runs on the thread calling {@link #replay()} or {@link #run()}, which also calls the
+ * sink. Only plain Java is used, so throughput can be measured on a desktop JVM too.
+ */
+public final class RscSessionReplayer implements Runnable {
+
+    public static final double REAL_TIME = 1;
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final RscSessionReader[] mReaders;
+    private final long[] mOffsets;
+    private final RscFrameSink mSink;
+
+    private volatile double mSpeed = REAL_TIME;
+    private volatile boolean mCancelled;
+    private volatile Thread mThread;
+    private volatile long mFrames;
+    private volatile IOException mError;
+
+    /**
+     * @param sessions Session directories, see {@link RscSessionRecorder#getDirectory()}
+     * @throws IOException if a session cannot be opened
+     */
+    public RscSessionReplayer(File[] sessions, RscFrameSink sink) throws IOException {
+        mReaders = new RscSessionReader[sessions.length];
+        mOffsets = new long[sessions.length];
+        mSink = sink;
+        for (int i = 0; i < sessions.length; i++) {
+            mReaders[i] = new RscSessionReader(sessions[i]);
+        }
+        // Move every session onto the clock of the first one to start.
+        int first = 0;
+        for (int i = 1; i < mReaders.length; i++) {
+            if (mReaders[i].getStartWallMillis() < mReaders[first].getStartWallMillis()) {
+                first = i;
+            }
+        }
+        for (int i = 0; i < mReaders.length; i++) {
+            long wallNanos = (mReaders[i].getStartWallMillis() - mReaders[first].getStartWallMillis()) * 1000000L;
+            mOffsets[i] = mReaders[first].getStartElapsedNanos() + wallNanos - mReaders[i].getStartElapsedNanos();
+        }
+    }
+
+    /**
+     * @param speed Playback rate, {@link #REAL_TIME} or a multiple of it, or {@link #AS_FAST_AS_POSSIBLE}.
+     *              May be changed while playing.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Play every session to the end, or until {@link #cancel()}.
+     *
+     * @return number of frames played
+     */
+    public long replay() throws IOException {
+        mThread = Thread.currentThread();
+        try {
+            return replayFrames();
+        } finally {
+            mThread = null;
+            for (RscSessionReader reader : mReaders) {
+                reader.close();
+            }
+        }
+    }
+
+    private long replayFrames() throws IOException {
+        final long[] heads = new long[mReaders.length];
+        // Ties go to the session given first, so a replay is deterministic.
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(Math.max(1, mReaders.length),
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        long ta = heads[a];
+                        long tb = heads[b];
+                        return ta < tb ? -1 : (ta > tb ? 1 : a.compareTo(b));
+                    }
+                });
+        for (int i = 0; i < mReaders.length; i++) {
+            if (mReaders[i].next()) {
+                heads[i] = mReaders[i].getTimestampNanos() + mOffsets[i];
+                queue.add(i);
+            }
+        }
+
+        long frames = 0;
+        long baseTimestamp = 0;
+        long baseNanos = 0;
+        double baseSpeed = -1;
+        while (!queue.isEmpty() && !mCancelled) {
+            Integer index = queue.poll();
+            RscSessionReader reader = mReaders[index];
+            long timestamp = heads[index];
+
+            double speed = mSpeed;
+            if (speed != baseSpeed) {
+                // (Re)start pacing from this frame.
+                baseSpeed = speed;
+                baseTimestamp = timestamp;
+                baseNanos = System.nanoTime();
+            } else if (speed > 0) {
+                long due = baseNanos + (long) ((timestamp - baseTimestamp) / speed);
+                if (!waitUntil(due)) {
+                    break;
+                }
+            }
+
+            mSink.onFrame(timestamp, reader.getAddress(), reader.getShortUuid(), reader.getValue(), 0,
+                    reader.getValueLength());
+            mFrames = ++frames;
+
+            if (reader.next()) {
+                heads[index] = reader.getTimestampNanos() + mOffsets[index];
+                queue.add(index);
+            }
+        }
+        return frames;
+    }
+
+    // False if cancelled while waiting.
+    private boolean waitUntil(long dueNanos) {
+        long wait;
+        while ((wait = dueNanos - System.nanoTime()) > 0) {
+            if (mCancelled) {
+                return false;
+            }
+            LockSupport.parkNanos(this, wait);
+        }
+        return !mCancelled;
+    }
+
+    /**
+     * {@link #replay()}, keeping an error for {@link #getError()}.
+     */
+    @Override
+    public void run() {
+        try {
+            replay();
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Stop playing, from any thread. The frame being delivered, if any, is finished.
+     */
+    public void cancel() {
+        mCancelled = true;
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return frames played so far
+     */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return the error that ended {@link #run()}, or null
+     */
+    public IOException getError() {
+        return mError;
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.android.bluetoothlegatt.pack;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Exports recorded measurements as a TCX activity: one lap whose track has a trackpoint per row,
+ * with time, distance, and speed and cadence in the Garmin activity extension.
+ * <p/>
+ * <p>The lap totals precede the track in TCX, they are taken from the chunk footers. Trackpoints are
+ * formatted into one reusable char array, time stamps included, and written through a
+ * {@link #BUFFER_SIZE} character buffer. Cadence is exported as TCX expects it, in strides per
+ * minute. TCX has no field for stride length, it is left out.
+ */
+public final class RscTcxExporter extends RscSessionExporter {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String NAMESPACE = "http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2";
+    private static final String EXTENSION_NAMESPACE = "http://www.garmin.com/xmlschemas/ActivityExtension/v2";
+
+    private Writer mOut;
+    private Totals mTotals;
+    private final char[] mScratch = new char[32];
+
+    /**
+     * @see RscSessionExporter#RscSessionExporter(long, long)
+     */
+    public RscTcxExporter(long startWallMillis, long startElapsedNanos) {
+        super(startWallMillis, startElapsedNanos);
+    }
+
+    @Override
+    protected void begin(FileChannel out, Totals totals) throws IOException {
+        mOut = new BufferedWriter(Channels.newWriter(out, "UTF-8"), BUFFER_SIZE);
+        mTotals = totals;
+        Writer w = mOut;
+        w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        w.write("<TrainingCenterDatabase xmlns=\"" + NAMESPACE + "\" xmlns:ns3=\"" + EXTENSION_NAMESPACE + "\">\n");
+        w.write("<Activities>\n<Activity Sport=\"");
+        w.write(totals.isRunning() ? "Running" : "Other");
+        w.write("\">\n<Id>");
+        writeTime(totals.getFirstTimestamp());
+        w.write("</Id>\n<Lap StartTime=\"");
+        writeTime(totals.getFirstTimestamp());
+        w.write("\">\n<TotalTimeSeconds>");
+        writeDecimal((totals.getLastTimestamp() - totals.getFirstTimestamp()) / 1000000L, 3);
+        w.write("</TotalTimeSeconds>\n<DistanceMeters>");
+        writeDecimal(totals.getDistance(), 1);
+        w.write("</DistanceMeters>\n<Calories>0</Calories>\n<Intensity>Active</Intensity>\n");
+        w.write("<TriggerMethod>Manual</TriggerMethod>\n<Track>\n");
+    }
+
+    @Override
+    protected void write(RscMeasurementColumns rows, int index) throws IOException {
+        Writer w = mOut;
+        int flags = rows.getFlags()[index];
+        w.write("<Trackpoint><Time>");
+        writeTime(rows.getTimestamp()[index]);
+        w.write("</Time>");
+        long totalDistance = rows.getTotalDistance()[index] - mTotals.getFirstTotalDistance();
+        if ((flags & RscMeasurement.FLAG_TOTAL_DISTANCE_PRESENT) != 0 && totalDistance >= 0) {
+            w.write("<DistanceMeters>");
+            writeDecimal(totalDistance, 1);
+            w.write("</DistanceMeters>");
+        }
+        w.write("<Extensions><ns3:TPX><ns3:Speed>");
+        // 1/256 m/s to mm/s.
+        writeDecimal(((rows.getSpeed()[index] & 0xFFFF) * 1000L + 128) / 256, 3);
+        w.write("</ns3:Speed><ns3:RunCadence>");
+        writeDecimal((rows.getCadence()[index] & 0xFFFF) >> 1, 0);
+        w.write("</ns3:RunCadence></ns3:TPX></Extensions></Trackpoint>\n");
+    }
+
+    @Override
+    protected void end() throws IOException {
+        mOut.write("</Track>\n</Lap>\n</Activity>\n</Activities>\n</TrainingCenterDatabase>\n");
+        mOut.flush();
+        mOut = null;
+        mTotals = null;
+    }
+
+    // Writes value / 10^decimals.
+    private void writeDecimal(long value, int decimals) throws IOException {
+        char[] chars = mScratch;
+        int pos = chars.length;
+        boolean negative = value < 0;
+        long rest = negative ? -value : value;
+        for (int i = 0; i < decimals; i++) {
+            chars[--pos] = (char) ('0' + rest % 10);
+            rest /= 10;
+        }
+        if (decimals > 0) {
+            chars[--pos] = '.';
+        }
+        do {
+            chars[--pos] = (char) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (negative) {
+            chars[--pos] = '-';
+        }
+        mOut.write(chars, pos, chars.length - pos);
+    }
+
+    // Writes the wall clock time of the timestamp as yyyy-MM-ddTHH:mm:ss.SSSZ, in UTC.
+    private void writeTime(long timestampNanos) throws IOException {
+        long millis = toWallMillis(timestampNanos);
+        long days = millis / 86400000L;
+        if (millis < days * 86400000L) {
+            days--;
+        }
+        int millisOfDay = (int) (millis - days * 86400000L);
+
+        // Civil date from days since 1970-01-01, proleptic Gregorian.
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] chars = mScratch;
+        put(chars, 0, (int) year, 4);
+        chars[4] = '-';
+        put(chars, 5, month, 2);
+        chars[7] = '-';
+        put(chars, 8, day, 2);
+        chars[10] = 'T';
+        put(chars, 11, millisOfDay / 3600000, 2);
+        chars[13] = ':';
+        put(chars, 14, millisOfDay / 60000 % 60, 2);
+        chars[16] = ':';
+        put(chars, 17, millisOfDay / 1000 % 60, 2);
+        chars[19] = '.';
+        put(chars, 20, millisOfDay % 1000, 3);
+        chars[23] = 'Z';
+        mOut.write(chars, 0, 24);
+    }
+
+    private static void put(char[] chars, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
@@ -8,15 +8,50 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RscpService extends Service {
 
     private static final String TAG = RscpService.class.getSimpleName();
 
     private BluetoothAdapter mBluetoothAdapter;
+    private RscConnectionPool mConnectionPool;
+    // Profile of the device last passed to connect(), target of the single-device methods.
     private BluetoothRscp mBluetoothRscp;
 
+    private static final int MEASUREMENT_BUS_CAPACITY = 64;
+
+    private final ConcurrentHashMap<String, RscMeasurementBus> mMeasurementBuses =
+            new ConcurrentHashMap<String, RscMeasurementBus>();
+    // Kept per address, so subscriptions made before connecting, and across reconnects, stay valid.
+    private final ConcurrentHashMap<String, RscMeasurementPublisher> mMeasurementPublishers =
+            new ConcurrentHashMap<String, RscMeasurementPublisher>();
+    // Replayed measurements get buses and publishers of their own, see startReplay().
+    private final ConcurrentHashMap<String, RscMeasurementBus> mReplayMeasurementBuses =
+            new ConcurrentHashMap<String, RscMeasurementBus>();
+    private final ConcurrentHashMap<String, RscMeasurementPublisher> mReplayMeasurementPublishers =
+            new ConcurrentHashMap<String, RscMeasurementPublisher>();
+    private final ConcurrentHashMap<String, ReconnectScheduler> mReconnectSchedulers =
+            new ConcurrentHashMap<String, ReconnectScheduler>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mMeasurementBroadcastEnabled;
+    private volatile RscSessionRecorder mRecorder;
+    // Decoded measurements of the recording, per device address.
+    private final ConcurrentHashMap<String, RscChunkWriter> mChunkWriters =
+            new ConcurrentHashMap<String, RscChunkWriter>();
+    private RscSessionReplayer mReplayer;
+    private Thread mReplayThread;
+
+    private static final String SESSIONS_DIRECTORY = "sessions";
+
     public static final String ACTION_RSC_CONNECTED = "com.example.android.bluetoothlegatt.ACTION_RSC_CONNECTED";
     public static final String ACTION_RSC_DISCONNECTED = "com.example.android.bluetoothlegatt.ACTION_RSC_DISCONNECTED";
     public static final String ACTION_RSC_CONNECTING = "com.example.android.bluetoothlegatt.ACTION_RSC_CONNECTING";
@@ -34,6 +69,8 @@ public class RscpService extends Service {
     public static final String ACTION_RSC_SET_INDICATION = "com.example.android.bluetoothlegatt.ACTION_RSC_SET_INDICATION";
 
 
+    public static final String EXTRA_DEVICE_ADDRESS = "com.example.android.bluetoothlegatt.EXTRA_DEVICE_ADDRESS";
+
     public static final String RSC_SPEED_DATA = "com.example.android.bluetoothlegatt.RSC_SPEED_DATA";
     public static final String RSC_CADENCE_DATA = "com.example.android.bluetoothlegatt.RSC_CADENCE_DATA";
     public static final String RSC_STRIDE_LENGTH_DATA = "com.example.android.bluetoothlegatt.RSC_STRIDE_LENGTH_DATA";
@@ -51,29 +88,72 @@ public class RscpService extends Service {
     public static final String RSC_CURRENT_SENSOR_LOCATION_DATA = "com.example.android.bluetoothlegatt.RSC_SENSOR_LOCATION_DATA";
     public static final String RSC_SUPPORTED_SENSOR_LOCATION_DATA = "com.example.android.bluetoothlegatt.RSC_SUPPORTED_SENSOR_LOCATION_DATA";
 
-    private final BluetoothRscpCallback mRscpCallback = new BluetoothRscpCallback() {
+    /**
+     * Turns one device's profile callbacks into broadcasts tagged with {@link #EXTRA_DEVICE_ADDRESS},
+     * and publishes its measurements on the device's bus.
+     */
+    private final class DeviceCallback extends BluetoothRscpCallback {
+
+        private final String mAddress;
+        private final RscMeasurementBus mBus;
+        private final RscMeasurementPublisher mPublisher;
+        // False for replayed profiles: their measurements are not recorded again.
+        private final boolean mRecorded;
+
+        DeviceCallback(String address) {
+            this(address, getMeasurementBus(address), getMeasurementPublisher(address), true);
+        }
+
+        DeviceCallback(String address, RscMeasurementBus bus, RscMeasurementPublisher publisher,
+                       boolean recorded) {
+            mAddress = address;
+            mBus = bus;
+            mPublisher = publisher;
+            mRecorded = recorded;
+        }
+
+        private void broadcast(Intent intent) {
+            intent.putExtra(EXTRA_DEVICE_ADDRESS, mAddress);
+            sendBroadcast(intent);
+        }
+
         @Override
         public void onConnectionStateChange(int state, int newState) {
 
             if (newState == BluetoothProfile.STATE_CONNECTED) {
 
-                sendBroadcast(new Intent(ACTION_RSC_CONNECTED));
+                getReconnectScheduler(mAddress).onConnected();
+                broadcast(new Intent(ACTION_RSC_CONNECTED));
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
 
-                sendBroadcast(new Intent(ACTION_RSC_DISCONNECTED));
+                getReconnectScheduler(mAddress).onDisconnected();
+                broadcast(new Intent(ACTION_RSC_DISCONNECTED));
 
             } else if (newState == BluetoothProfile.STATE_CONNECTING) {
 
-                sendBroadcast(new Intent(ACTION_RSC_CONNECTING));
+                broadcast(new Intent(ACTION_RSC_CONNECTING));
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTING) {
 
-                sendBroadcast(new Intent(ACTION_RSC_DISCONNECTING));
+                broadcast(new Intent(ACTION_RSC_DISCONNECTING));
 
             }
         }
 
+        @Override
+        public void onRSCMeasurement(long timestampNanos, RscMeasurement measurement) {
+            mBus.publish(timestampNanos, measurement);
+            mPublisher.publish(timestampNanos, measurement);
+            RscChunkWriter writer = mRecorded ? getChunkWriter(mAddress) : null;
+            if (writer != null) {
+                writer.onMeasurement(timestampNanos, measurement);
+            }
+            if (mMeasurementBroadcastEnabled) {
+                super.onRSCMeasurement(timestampNanos, measurement);
+            }
+        }
+
         @Override
         public void onRSCMeasurementCharacChange(int speed, int cadence, int strideLength, int totalDistance, boolean isInstantaneousStrideLengthPresent,
                                                  boolean isTotalDistancePresent, String walkingOrRunning) {
@@ -87,7 +167,7 @@ public class RscpService extends Service {
             intent.putExtra(RSC_TOTAL_DISTANCE_PRESENT, isTotalDistancePresent);
             intent.putExtra(RSC_WALKING_OR_RUNNING, walkingOrRunning);
 
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
         @Override
@@ -104,33 +184,33 @@ public class RscpService extends Service {
             intent.putExtra(RSC_FEATURE_CALIBRATION_SUPPORTED, isCalibrationProcedureSupported);
             intent.putExtra(RSC_FEATURE_MULTIPLE_SENSOR_SUPPORTED, isMultipleSensorLocationSupported);
 
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
 //        @Override
 //        public void onSensorLocationChange() {
 //            Intent intent = new Intent(ACTION_RSC_CURRENT_SENSOR_LOCATION_DATA_AVAILABLE);
 //            intent.putExtra(RSC_CURRENT_SENSOR_LOCATION_DATA, mBluetoothRscp.getSensorLocation());
-//            sendBroadcast(intent);
+//            broadcast(intent);
 //        }
 
         @Override
         public void onSensorLocationGet(String location) {
             Intent intent = new Intent(ACTION_RSC_CURRENT_SENSOR_LOCATION_DATA_AVAILABLE);
             intent.putExtra(RSC_CURRENT_SENSOR_LOCATION_DATA, location);
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
         @Override
         public void onCumulativeValueSet() {
             Intent intent = new Intent(ACTION_RSC_CUMULATIVE_VALUE_SET);
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
         @Override
         public void onUpdateSensorLocation() {
             Intent intent = new Intent(ACTION_RSC_UPDATE_SENSOR_LOCATION);
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
 
@@ -139,35 +219,35 @@ public class RscpService extends Service {
         public void onSupportedSensorLocationGet(byte[] value) {
             Intent intent = new Intent(ACTION_RSC_REQUEST_SUPPORTED_SENSOR_LOCATION);
             intent.putExtra(RSC_SUPPORTED_SENSOR_LOCATION_DATA, value);
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
         @Override
         public void onStartCalibration() {
             Intent intent = new Intent(ACTION_RSC_START_SENSOR_CALIBRATION);
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
         @Override
         public void onServicesDiscovered(int state) {
             Intent intent = new Intent(ACTION_RSC_SERVICES_DISCOVERED);
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
         @Override
         public void onNotificationSet(int value) {
             Intent intent = new Intent(ACTION_RSC_SET_NOTIFICATION);
             intent.putExtra("value",value);
-            sendBroadcast(intent);
+            broadcast(intent);
         }
 
         @Override
         public void onIndicationSet(int value) {
             Intent intent = new Intent(ACTION_RSC_SET_INDICATION);
             intent.putExtra("value",value);
-            sendBroadcast(intent);
+            broadcast(intent);
         }
-    };
+    }
 
     public class LocalBinder extends Binder {
         public RscpService getService() {
@@ -195,31 +275,383 @@ public class RscpService extends Service {
             return false;
         }
 
-        mBluetoothRscp = new BluetoothRscp(getBaseContext(), mRscpCallback);
+        if (mConnectionPool == null) {
+            mConnectionPool = new RscConnectionPool(getBaseContext(), new RscConnectionPool.CallbackFactory() {
+                @Override
+                public BluetoothRscpCallback create(BluetoothDevice device) {
+                    return new DeviceCallback(device.getAddress());
+                }
+            });
+        }
         return true;
     }
 
+    /**
+     * Connect to a device and make it the target of the single-device methods. Devices connected
+     * before stay connected, see {@link #getConnectionPool()}.
+     */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null && address == null)
+        if (mBluetoothAdapter == null || address == null)
             return false;
 
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        mBluetoothRscp.connect(device, false);
+        BluetoothRscp rscp = mConnectionPool.connect(device, false);
+        if (rscp == null) {
+            return false;
+        }
+        rscp.setFrameSink(mRecorder);
+        mBluetoothRscp = rscp;
+        getReconnectScheduler(address).start();
         return true;
     }
 
+    /**
+     * Reconnection of a device whose link dropped, see {@link ReconnectScheduler}. Started by
+     * {@link #connect(String)}, stopped by {@link #disconnect()} and {@link #close()}.
+     */
+    public ReconnectScheduler getReconnectScheduler(final String address) {
+        ReconnectScheduler scheduler = mReconnectSchedulers.get(address);
+        if (scheduler == null) {
+            ReconnectScheduler created = new ReconnectScheduler(mHandler, new ReconnectScheduler.Target() {
+                @Override
+                public boolean connect(boolean autoConnect) {
+                    if (mConnectionPool == null) {
+                        return false;
+                    }
+                    BluetoothRscp rscp = mConnectionPool.connect(mBluetoothAdapter.getRemoteDevice(address), autoConnect);
+                    if (rscp == null) {
+                        return false;
+                    }
+                    rscp.setFrameSink(mRecorder);
+                    return true;
+                }
+
+                @Override
+                public void reset() {
+                    GattConnection connection = GattConnectionManager.getInstance(RscpService.this).getConnection(address);
+                    if (connection != null) {
+                        connection.reset();
+                    }
+                }
+
+                @Override
+                public boolean isConnected() {
+                    GattConnection connection = GattConnectionManager.getInstance(RscpService.this).getConnection(address);
+                    return connection != null && connection.getConnectionState() == BluetoothProfile.STATE_CONNECTED;
+                }
+            });
+            scheduler = mReconnectSchedulers.putIfAbsent(address, created);
+            if (scheduler == null) {
+                scheduler = created;
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Every RSC device of this service, e.g. for team sessions with several foot pods.
+     */
+    public RscConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
     public void disconnect() {
-        if (mBluetoothAdapter == null && mBluetoothRscp == null)
+        if (mBluetoothAdapter == null || mBluetoothRscp == null)
             return;
 
+        BluetoothDevice device = mBluetoothRscp.getDevice();
+        if (device != null) {
+            getReconnectScheduler(device.getAddress()).stop();
+        }
         mBluetoothRscp.disconnect();
     }
 
+    /**
+     * Close every device of the pool.
+     */
     public void close() {
-        if (mBluetoothRscp == null)
+        if (mConnectionPool == null)
             return;
-        mBluetoothRscp.close();
+        for (ReconnectScheduler scheduler : mReconnectSchedulers.values()) {
+            Log.d(TAG, "Reconnects: " + scheduler);
+            scheduler.stop();
+        }
+        mConnectionPool.closeAll();
         mBluetoothRscp = null;
+        stopRecording();
+        stopReplay();
+        for (RscMeasurementPublisher publisher : mMeasurementPublishers.values()) {
+            publisher.complete();
+        }
+        for (RscMeasurementPublisher publisher : mReplayMeasurementPublishers.values()) {
+            publisher.complete();
+        }
+    }
+
+    /**
+     * Record the raw frames of every device, connected now or later, to a new session under
+     * {@code files/sessions}, see {@link RscSessionRecorder}. The decoded measurements of each device
+     * are kept alongside in a compact file of their own, see {@link RscChunkWriter}. A recording in
+     * progress goes on.
+     *
+     * @return the recorder, or null if the session could not be created
+     */
+    public synchronized RscSessionRecorder startRecording() {
+        if (mRecorder != null) {
+            return mRecorder;
+        }
+        File directory = new File(new File(getFilesDir(), SESSIONS_DIRECTORY), Long.toString(System.currentTimeMillis()));
+        try {
+            mRecorder = new RscSessionRecorder(directory);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to record to " + directory + ": " + e);
+            return null;
+        }
+        setFrameSink(mRecorder);
+        return mRecorder;
+    }
+
+    /**
+     * Stop recording and close the session.
+     */
+    public synchronized void stopRecording() {
+        RscSessionRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return;
+        }
+        mRecorder = null;
+        setFrameSink(null);
+        recorder.close();
+        for (RscChunkWriter writer : mChunkWriters.values()) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + writer.getFile() + ": " + e);
+            }
+        }
+        mChunkWriters.clear();
+    }
+
+    // Writer of the device's measurements into the session being recorded, null if none is.
+    private RscChunkWriter getChunkWriter(String address) {
+        RscSessionRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return null;
+        }
+        RscChunkWriter writer = mChunkWriters.get(address);
+        if (writer == null) {
+            File file = new File(recorder.getDirectory(),
+                    RscChunkFormat.fileName(RscFrameFormat.packAddress(address)));
+            synchronized (this) {
+                // Recording may have stopped meanwhile.
+                if (mRecorder != recorder) {
+                    return null;
+                }
+                writer = mChunkWriters.get(address);
+                if (writer == null) {
+                    try {
+                        writer = new RscChunkWriter(file);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to record measurements to " + file + ": " + e);
+                        return null;
+                    }
+                    mChunkWriters.put(address, writer);
+                }
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * @return the session being recorded, or null
+     */
+    public RscSessionRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * Play recorded sessions back on a thread of their own. Every recorded device gets a profile of
+     * its own, not connected, whose measurements reach {@link #getReplayMeasurementBus} and
+     * {@link #getReplayMeasurementPublisher}, apart from the live ones, and the broadcasts. Replayed
+     * measurements are never recorded. The profiles are closed when the replay ends. A replay in
+     * progress is stopped first.
+     *
+     * @param speed see {@link RscSessionReplayer#setSpeed(double)}
+     * @return the replayer, or null if a session could not be opened
+     */
+    public synchronized RscSessionReplayer startReplay(File[] sessions, double speed) {
+        stopReplay();
+        // Only touched on the replay thread.
+        final HashMap<Long, BluetoothRscp> profiles = new HashMap<Long, BluetoothRscp>();
+        RscFrameSink sink = new RscFrameSink() {
+            @Override
+            public void onFrame(long timestampNanos, long address, int shortUuid, byte[] value, int offset,
+                                int length) {
+                BluetoothRscp rscp = profiles.get(address);
+                if (rscp == null) {
+                    String formatted = RscFrameFormat.formatAddress(address);
+                    rscp = new BluetoothRscp(RscpService.this, new DeviceCallback(formatted,
+                            getReplayMeasurementBus(formatted), getReplayMeasurementPublisher(formatted), false));
+                    profiles.put(address, rscp);
+                }
+                rscp.injectFrame(timestampNanos, shortUuid, value, offset, length);
+            }
+        };
+        final RscSessionReplayer replayer;
+        try {
+            replayer = new RscSessionReplayer(sessions, sink);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to replay: " + e);
+            return null;
+        }
+        replayer.setSpeed(speed);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replayer.run();
+                } finally {
+                    for (BluetoothRscp rscp : profiles.values()) {
+                        rscp.close();
+                    }
+                }
+                if (replayer.getError() != null) {
+                    Log.e(TAG, "Replay failed: " + replayer.getError());
+                }
+                Log.i(TAG, "Replayed " + replayer.getFrameCount() + " frames of " + profiles.size() + " devices");
+            }
+        }, "RscReplay");
+        thread.start();
+        mReplayer = replayer;
+        mReplayThread = thread;
+        return replayer;
+    }
+
+    /**
+     * Stop the replay in progress and wait for its thread, so the replay buses only ever have one
+     * publishing thread.
+     */
+    public synchronized void stopReplay() {
+        if (mReplayer == null) {
+            return;
+        }
+        mReplayer.cancel();
+        mReplayer = null;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                // Cancelling wakes the thread up, it ends after the frame being delivered.
+                mReplayThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mReplayThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void setFrameSink(RscFrameSink sink) {
+        if (mConnectionPool == null)
+            return;
+        for (BluetoothRscp rscp : mConnectionPool.getProfiles()) {
+            rscp.setFrameSink(sink);
+        }
+    }
+
+    /**
+     * A device's measurements are delivered in process through its own bus, see
+     * {@link RscMeasurementBus#subscribe}. The bus may be subscribed to before connecting.
+     */
+    public RscMeasurementBus getMeasurementBus(String address) {
+        return getMeasurementBus(mMeasurementBuses, address);
+    }
+
+    /**
+     * Bus of a device's replayed measurements, see {@link #startReplay}. It may be subscribed to
+     * before replaying and lasts across replays.
+     */
+    public RscMeasurementBus getReplayMeasurementBus(String address) {
+        return getMeasurementBus(mReplayMeasurementBuses, address);
+    }
+
+    private static RscMeasurementBus getMeasurementBus(ConcurrentHashMap<String, RscMeasurementBus> buses,
+                                                       String address) {
+        RscMeasurementBus bus = buses.get(address);
+        if (bus == null) {
+            RscMeasurementBus created = new RscMeasurementBus(MEASUREMENT_BUS_CAPACITY);
+            bus = buses.putIfAbsent(address, created);
+            if (bus == null) {
+                bus = created;
+            }
+        }
+        return bus;
+    }
+
+    /**
+     * A device's measurements with subscriber-driven demand, see {@link RscMeasurementPublisher}.
+     * Subscriptions last across reconnects and are completed by {@link #close()}; the publisher may be
+     * subscribed to before connecting.
+     */
+    public RscMeasurementPublisher getMeasurementPublisher(String address) {
+        return getMeasurementPublisher(mMeasurementPublishers, address);
+    }
+
+    /**
+     * Publisher of a device's replayed measurements, see {@link #startReplay} and
+     * {@link #getMeasurementPublisher(String)}.
+     */
+    public RscMeasurementPublisher getReplayMeasurementPublisher(String address) {
+        return getMeasurementPublisher(mReplayMeasurementPublishers, address);
+    }
+
+    private static RscMeasurementPublisher getMeasurementPublisher(
+            ConcurrentHashMap<String, RscMeasurementPublisher> publishers, String address) {
+        RscMeasurementPublisher publisher = publishers.get(address);
+        if (publisher == null) {
+            RscMeasurementPublisher created = new RscMeasurementPublisher();
+            publisher = publishers.putIfAbsent(address, created);
+            if (publisher == null) {
+                publisher = created;
+            }
+        }
+        return publisher;
+    }
+
+    /**
+     * Publisher of the device last passed to {@link #connect(String)}, see
+     * {@link #getMeasurementPublisher(String)}.
+     *
+     * @return the publisher, or null if no device was connected
+     */
+    public RscMeasurementPublisher getMeasurementPublisher() {
+        BluetoothRscp rscp = mBluetoothRscp;
+        BluetoothDevice device = rscp != null ? rscp.getDevice() : null;
+        if (device == null) {
+            return null;
+        }
+        return getMeasurementPublisher(device.getAddress());
+    }
+
+    /**
+     * Also send every measurement as an {@link #ACTION_RSC_MEASUREMENT_DATA_AVAILABLE} broadcast,
+     * for receivers outside this process. Off by default.
+     */
+    public void setMeasurementBroadcastEnabled(boolean enabled) {
+        mMeasurementBroadcastEnabled = enabled;
+    }
+
+    /**
+     * Whether the UI shows the data; links of a service in the background settle to low power.
+     */
+    public void setForeground(boolean foreground) {
+        if (mConnectionPool == null)
+            return;
+        for (BluetoothRscp rscp : mConnectionPool.getProfiles()) {
+            rscp.setForeground(foreground);
+        }
     }
 
     public void setCharacteristicNotification(boolean enable) {
@@ -258,4 +690,20 @@ public class RscpService extends Service {
         mBluetoothRscp.getSupportedSensorLocation();
     }
 
+    public RscControlPointRequest requestSetCumulativeValue(int cumulativeValue) {
+        return mBluetoothRscp.requestSetCumulativeValue(cumulativeValue);
+    }
+
+    public RscControlPointRequest requestStartCalibration() {
+        return mBluetoothRscp.requestStartCalibration();
+    }
+
+    public RscControlPointRequest requestUpdateSensorLocation(int location) {
+        return mBluetoothRscp.requestUpdateSensorLocation(location);
+    }
+
+    public RscControlPointRequest requestSupportedSensorLocations() {
+        return mBluetoothRscp.requestSupportedSensorLocations();
+    }
+
 }